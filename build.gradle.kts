@@ -1,6 +1,7 @@
 plugins {
     application
     alias(libs.plugins.spotless)
+    alias(libs.plugins.jmh)
     antlr
 }
 
@@ -53,3 +54,7 @@ tasks.named("spotlessJava") {
 tasks.test {
     useJUnitPlatform()
 }
+jmh {
+    jmhVersion = libs.versions.jmh.get()
+    profilers = listOf("gc")
+}
@@ -5,6 +5,8 @@ dependencyResolutionManagement {
         create("libs") {
             version("palantirJavaFormat", "2.67.0")
             plugin("spotless", "com.diffplug.spotless").version("7.0.3")
+            plugin("jmh", "me.champeau.jmh").version("0.7.3")
+            version("jmh", "1.37")
             version("antlr4", "4.13.0")
             library("lsp4j", "org.eclipse.lsp4j:org.eclipse.lsp4j:0.21.1")
             version("slf4j", "2.0.17")
@@ -0,0 +1,28 @@
+package com.mikosik.logoserver.analyse;
+
+/**
+ * Generates syntactically valid Logo documents of requested size for benchmarks.
+ * Generated documents resemble procedure libraries: many procedures using variables, loops,
+ * conditionals and calls to previously defined procedures, written in mixed case.
+ */
+public class LogoCorpus {
+  public static String procedureLibrary(int procedures) {
+    var builder = new StringBuilder();
+    builder.append("make \"Size 100\n");
+    for (int i = 0; i < procedures; i++) {
+      builder.append("to Shape").append(i).append(" :length :angle\n");
+      builder.append("  localmake \"step :length / 10\n");
+      builder.append("  repeat 4 [FORWARD :length RIGHT :angle]\n");
+      builder.append("  if :length > 10 [setpencolor 3 fd :step bk :step]\n");
+      builder.append("  for [i 1 10 2] [label sum :i 1]\n");
+      builder.append("  dotimes [j 5] [lt 72 fd first [10 20 30]]\n");
+      if (i > 0) {
+        builder.append("  Shape").append(i - 1).append(" :length / 2 :angle\n");
+      }
+      builder.append("end\n");
+    }
+    builder.append("define \"Main [[] [Shape0 :Size 90]]\n");
+    builder.append("Main\n");
+    return builder.toString();
+  }
+}
@@ -0,0 +1,79 @@
+package com.mikosik.logoserver.analyse.highlight;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.mikosik.logoserver.analyse.LogoCorpus;
+import com.mikosik.logoserver.analyse.parser.Parser;
+import com.mikosik.logoserver.analyse.parser.SyntaxTree;
+import com.mikosik.logoserver.endpoints.SemanticTokensDataTypeAdapter;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+import org.eclipse.lsp4j.SemanticTokens;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures computing semantic tokens of a parsed document and writing them to JSON.
+ * Allocation per token is {@code gc.alloc.rate} (reported by the gc profiler) divided by
+ * {@code tokens} secondary result (number of semantic tokens produced per second).
+ * Run with {@code ./gradlew jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SemanticTokensBenchmark {
+  @Param({"2000"})
+  private int procedures;
+
+  private SyntaxTree syntaxTree;
+  private SemanticTokensProvider provider;
+  private Gson gson;
+
+  @Setup
+  public void setup() {
+    syntaxTree = new Parser().parse(LogoCorpus.procedureLibrary(procedures)).syntaxTree();
+    provider = new SemanticTokensProvider();
+    var gsonBuilder = new GsonBuilder();
+    SemanticTokensDataTypeAdapter.register(gsonBuilder);
+    gson = gsonBuilder.create();
+  }
+
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class Counters {
+    public long tokens;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      tokens = 0;
+    }
+  }
+
+  @Benchmark
+  public SemanticTokensData semanticTokensOf(Counters counters) {
+    var data = provider.semanticTokensOf(syntaxTree);
+    counters.tokens += data.size() / 5;
+    return data;
+  }
+
+  @Benchmark
+  public void semanticTokensToJson(Counters counters) {
+    var data = provider.semanticTokensOf(syntaxTree);
+    gson.toJson(new SemanticTokens(data), Writer.nullWriter());
+    counters.tokens += data.size() / 5;
+  }
+}
@@ -0,0 +1,60 @@
+package com.mikosik.logoserver.analyse.parser;
+
+import com.mikosik.logoserver.analyse.LogoCorpus;
+import com.mikosik.logoserver.analyse.parser.antlr.LogoLexer;
+import com.mikosik.logoserver.analyse.parser.antlr.LogoParser;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares allocation per parse (reported as {@code gc.alloc.rate.norm} by the gc profiler) of
+ * parsing a document lowercased up front and parsing it via {@link CaseInsensitiveCharStream}.
+ * Run with {@code ./gradlew jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CharStreamAllocationBenchmark {
+  @Param({"100", "2000"})
+  private int procedures;
+
+  private String document;
+
+  @Setup
+  public void setup() {
+    document = LogoCorpus.procedureLibrary(procedures);
+  }
+
+  @Benchmark
+  public Object lowercaseCopy() {
+    return parse(CharStreams.fromString(document.toLowerCase(Locale.ROOT)));
+  }
+
+  @Benchmark
+  public Object caseInsensitiveStream() {
+    return parse(new CaseInsensitiveCharStream(document));
+  }
+
+  private static Object parse(CharStream charStream) {
+    var logoParser = new LogoParser(new CommonTokenStream(new LogoLexer(charStream)));
+    logoParser.removeErrorListeners();
+    return logoParser.document();
+  }
+}
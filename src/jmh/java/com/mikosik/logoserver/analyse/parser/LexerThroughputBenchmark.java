@@ -0,0 +1,72 @@
+package com.mikosik.logoserver.analyse.parser;
+
+import com.mikosik.logoserver.analyse.LogoCorpus;
+import com.mikosik.logoserver.analyse.parser.antlr.LogoLexer;
+import java.util.concurrent.TimeUnit;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenSource;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares lexing throughput of generated {@link LogoLexer} and {@link KeywordTableLexer}.
+ * Number of lexed tokens per second is reported as {@code tokens} secondary result.
+ * Run with {@code ./gradlew jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LexerThroughputBenchmark {
+  @Param({"2000"})
+  private int procedures;
+
+  private String document;
+
+  @Setup
+  public void setup() {
+    document = LogoCorpus.procedureLibrary(procedures);
+  }
+
+  @AuxCounters(AuxCounters.Type.OPERATIONS)
+  @State(Scope.Thread)
+  public static class Counters {
+    public long tokens;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+      tokens = 0;
+    }
+  }
+
+  @Benchmark
+  public void generatedLexer(Counters counters) {
+    counters.tokens += lex(new LogoLexer(new CaseInsensitiveCharStream(document)));
+  }
+
+  @Benchmark
+  public void keywordTableLexer(Counters counters) {
+    counters.tokens += lex(new KeywordTableLexer(new CaseInsensitiveCharStream(document)));
+  }
+
+  private static long lex(TokenSource tokenSource) {
+    long count = 0;
+    while (tokenSource.nextToken().getType() != Token.EOF) {
+      count++;
+    }
+    return count;
+  }
+}
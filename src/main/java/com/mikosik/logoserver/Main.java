@@ -1,12 +1,13 @@
 package com.mikosik.logoserver;
 
-import static org.eclipse.lsp4j.launch.LSPLauncher.createServerLauncher;
-
 import com.mikosik.logoserver.endpoints.LogoServer;
+import com.mikosik.logoserver.endpoints.SemanticTokensDataTypeAdapter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.concurrent.ExecutionException;
 import java.util.logging.LogManager;
+import org.eclipse.lsp4j.launch.LSPLauncher;
+import org.eclipse.lsp4j.services.LanguageClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,7 +19,13 @@ public class Main {
 
     logger.info("Starting LOGO Language Server");
     var logoServer = new LogoServer();
-    var launcher = createServerLauncher(logoServer, System.in, System.out);
+    var launcher = new LSPLauncher.Builder<LanguageClient>()
+        .setLocalService(logoServer)
+        .setRemoteInterface(LanguageClient.class)
+        .setInput(System.in)
+        .setOutput(System.out)
+        .configureGson(SemanticTokensDataTypeAdapter::register)
+        .create();
     logoServer.setClient(launcher.getRemoteProxy());
     var future = launcher.startListening();
     logger.info("LOGO Language Server started");
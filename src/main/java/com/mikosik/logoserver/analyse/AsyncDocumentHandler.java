@@ -1,110 +1,392 @@
 package com.mikosik.logoserver.analyse;
 
-import static java.util.concurrent.TimeUnit.HOURS;
+import static com.mikosik.logoserver.analyse.DocumentScheduler.Priority.BACKGROUND;
+import static com.mikosik.logoserver.analyse.DocumentScheduler.Priority.INTERACTIVE;
 
+import com.mikosik.logoserver.analyse.workspace.WorkspaceIndex;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
+import java.util.function.Supplier;
 import org.eclipse.lsp4j.Diagnostic;
+import org.eclipse.lsp4j.DocumentHighlight;
 import org.eclipse.lsp4j.Location;
+import org.eclipse.lsp4j.Range;
 import org.eclipse.lsp4j.SemanticTokens;
+import org.eclipse.lsp4j.SemanticTokensDelta;
+import org.eclipse.lsp4j.TextDocumentContentChangeEvent;
+import org.eclipse.lsp4j.jsonrpc.messages.Either;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
  * Provides asynchronous API for {@link DocumentHandler} functionality.
+ * Tasks of the document run one at a time on a {@link DocumentScheduler.Lane}, which confines
+ * {@link DocumentHandler} to a single thread at a time. Requests are interactive tasks, while
+ * analysis computed ahead of requests after every change is a background task.
+ * Parsing of a text is abandoned as soon as newer text or changes are submitted, so that
+ * a long parse of stale text does not delay requests queued behind it, and text that is already
+ * stale when it is applied is not parsed at all. Text updates that have not started before a newer
+ * text replacing the whole document was submitted are skipped altogether. Consecutive changes
+ * queued one after another are merged and applied to the document at once. Diagnostics futures
+ * of skipped, merged or stale updates are cancelled (see {@link UpdateMetrics}).
+ * Long document that has only been lexed (see {@link DocumentHandler#pendingParse()}) is parsed
+ * as a separate background task of the scheduler while requests are served from its lexer-only
+ * analysis. Once the parse replaces that analysis, diagnostics future of the change completes
+ * and {@code onAnalysisRefined} is run, so client can be asked to request semantic tokens again.
+ * Request whose future is cancelled (for example by client's {@code $/cancelRequest}) before
+ * it starts is dropped, and analysis computed for a request is abandoned once its future is
+ * cancelled.
+ * Requests answered from analysis do not wait in the queue at all when analysis of the most
+ * recently submitted text has already been published as {@link DocumentHandler#snapshot()},
+ * they are answered from it by an interactive task of their own, so neither a long task of the
+ * document nor the thread dispatching client messages is held up.
  */
 public class AsyncDocumentHandler {
   private static final Logger logger = LoggerFactory.getLogger(AsyncDocumentHandler.class);
 
-  private final BlockingQueue<Consumer<DocumentHandler>> queue;
-  private final Thread workerThread;
-  private boolean running;
+  private final String uri;
+  private final DocumentScheduler scheduler;
+  private final DocumentScheduler.Lane lane;
+  private final DocumentHandler documentHandler;
+  private final AtomicLong textVersion = new AtomicLong();
+  private final AtomicLong lastTextReplacement = new AtomicLong();
+  private final AtomicLong appliedTextVersion = new AtomicLong();
+  private final ConcurrentLinkedQueue<QueuedChanges> queuedChanges =
+      new ConcurrentLinkedQueue<>();
+  private final Runnable onAnalysisRefined;
+  private final UpdateMetrics metrics;
 
   public AsyncDocumentHandler(String uri) {
-    this(uri, new LinkedBlockingQueue<>());
+    this(uri, DocumentScheduler.shared(), UpdateMetrics.shared());
   }
 
   // visible for testing
-  AsyncDocumentHandler(String uri, BlockingQueue<Consumer<DocumentHandler>> queue) {
-    this.queue = queue;
-    this.workerThread = workerThread(uri, queue);
-    this.running = true;
+  AsyncDocumentHandler(String uri, DocumentScheduler scheduler, UpdateMetrics metrics) {
+    this(uri, new DocumentHandler(uri), scheduler, metrics);
   }
 
+  // visible for testing
+  AsyncDocumentHandler(
+      String uri,
+      DocumentHandler documentHandler,
+      DocumentScheduler scheduler,
+      UpdateMetrics metrics) {
+    this(uri, documentHandler, scheduler, () -> {}, metrics);
+  }
+
+  public AsyncDocumentHandler(
+      String uri,
+      DocumentScheduler scheduler,
+      WorkspaceIndex workspaceIndex,
+      Runnable onAnalysisRefined) {
+    this(
+        uri,
+        new DocumentHandler(uri, workspaceIndex),
+        scheduler,
+        onAnalysisRefined,
+        UpdateMetrics.shared());
+  }
+
+  private AsyncDocumentHandler(
+      String uri,
+      DocumentHandler documentHandler,
+      DocumentScheduler scheduler,
+      Runnable onAnalysisRefined,
+      UpdateMetrics metrics) {
+    this.uri = uri;
+    this.scheduler = scheduler;
+    this.lane = scheduler.newLane(uri, INTERACTIVE);
+    this.documentHandler = documentHandler;
+    this.onAnalysisRefined = onAnalysisRefined;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Drops tasks that have not started yet, new tasks cannot be submitted afterwards.
+   */
   void shutdown() {
-    workerThread.interrupt();
-    running = false;
+    logger.info("Shutting down handler for {}.", uri);
+    lane.close();
   }
 
-  public CompletableFuture<List<Diagnostic>> setText(String text) {
-    var future = new CompletableFuture<List<Diagnostic>>();
-    enqueue((documentHandler) -> {
-      documentHandler.setText(text);
-      future.complete(documentHandler.getDiagnostics());
-    });
-    return future;
+  /**
+   * Closes document once all tasks queued so far have run, see
+   * {@link DocumentHandler#closeDocument()}.
+   */
+  void closeDocument() {
+    enqueue(DocumentHandler::closeDocument);
   }
 
-  public CompletableFuture<SemanticTokens> semanticTokensFull() {
-    var future = new CompletableFuture<SemanticTokens>();
+  /**
+   * Makes tasks of this document scheduled after tasks of documents with higher priority.
+   */
+  void setPriority(DocumentScheduler.Priority priority) {
+    lane.setPriority(priority);
+  }
+
+  public CompletableFuture<List<Diagnostic>> setText(String text) {
+    var future = new CompletableFuture<List<Diagnostic>>();
+    long version = textVersion.incrementAndGet();
+    var isStale = isStale(version);
+    lastTextReplacement.accumulateAndGet(version, Math::max);
     enqueue((documentHandler) -> {
+      if (isSuperseded(version)) {
+        skip(future);
+        return;
+      }
+      metrics.recordAppliedUpdate();
       try {
-        future.complete(new SemanticTokens(documentHandler.semanticTokensFull()));
-      } catch (Exception e) {
+        documentHandler.setText(text, isStale);
+        appliedTextVersion.set(version);
+        completeDiagnostics(documentHandler, future, isStale);
+      } catch (Exception | StackOverflowError e) {
         future.completeExceptionally(e);
       }
     });
+    precomputeAnalysis(isStale);
     return future;
   }
 
-  public CompletableFuture<List<Location>> declaration(int line, int characterAtLine) {
-    var future = new CompletableFuture<List<Location>>();
-    enqueue((documentHandler) -> {
-      try {
-        future.complete(documentHandler.declaration(line, characterAtLine));
-      } catch (Exception e) {
-        future.completeExceptionally(e);
-      }
-    });
+  public CompletableFuture<List<Diagnostic>> applyChanges(
+      List<TextDocumentContentChangeEvent> changes) {
+    var future = new CompletableFuture<List<Diagnostic>>();
+    long version = textVersion.incrementAndGet();
+    queuedChanges.add(new QueuedChanges(version, changes, future));
+    enqueue((documentHandler) -> applyQueuedChanges(documentHandler, version));
+    precomputeAnalysis(isStale(version));
     return future;
   }
 
-  private void enqueue(Consumer<DocumentHandler> task) {
-    if (running) {
-      try {
-        queue.put(task);
-      } catch (InterruptedException e) {
-        logger.info("Interrupted while enqueuing task.");
-        Thread.currentThread().interrupt();
+  /**
+   * Applies changes with given version together with changes of consecutive versions queued
+   * after them, so that text in between is neither parsed nor diagnosed. Does nothing when
+   * changes with given version have already been merged into changes applied before them.
+   */
+  private void applyQueuedChanges(DocumentHandler documentHandler, long version) {
+    var first = queuedChanges.peek();
+    if (first == null || first.version() != version) {
+      return;
+    }
+    var merged = new ArrayList<QueuedChanges>();
+    merged.add(queuedChanges.poll());
+    for (var next = queuedChanges.peek();
+        next != null && next.version() == merged.getLast().version() + 1;
+        next = queuedChanges.peek()) {
+      merged.add(queuedChanges.poll());
+    }
+    var last = merged.getLast();
+    if (isSuperseded(last.version())) {
+      merged.forEach(queued -> skip(queued.future()));
+      return;
+    }
+    var changes = new ArrayList<TextDocumentContentChangeEvent>();
+    for (var queued : merged) {
+      metrics.recordAppliedUpdate();
+      if (queued != last) {
+        metrics.recordMergedUpdate();
+        queued.future().cancel(false);
       }
-    } else {
-      throw new IllegalStateException("AsynDocumentHandler is shutdown");
+      changes.addAll(queued.changes());
+    }
+    var isStale = isStale(last.version());
+    try {
+      documentHandler.applyChanges(changes, isStale);
+      appliedTextVersion.set(last.version());
+      completeDiagnostics(documentHandler, last.future(), isStale);
+    } catch (Exception | StackOverflowError e) {
+      last.future().completeExceptionally(e);
     }
   }
 
+  public CompletableFuture<SemanticTokens> semanticTokensFull() {
+    return analysisRequest(DocumentHandler::semanticTokensFull);
+  }
+
   /**
-   * Creates and starts a working thread holding a DocumentHandler instance confined to that thread.
-   * The thread polls tasks (Consumers) from a given queue and executes them by passing
-   * the DocumentHandler instance. To shut down the thread, call its interrupt() method.
+   * Answered from snapshot of analysis when it is available, otherwise only parse of the document
+   * (not its analysis) is needed.
    */
-  private Thread workerThread(String uri, BlockingQueue<Consumer<DocumentHandler>> queue) {
-    return Thread.ofVirtual().start(() -> {
-      logger.info("Thread started for {}.", uri);
-      var documentHandler = new DocumentHandler(uri);
-      while (true) {
-        try {
-          var task = queue.poll(Long.MAX_VALUE, HOURS);
-          task.accept(documentHandler);
-        } catch (InterruptedException e) {
-          logger.info("Interrupted. Shutting down thread for {}.", uri);
-          return;
-        } catch (RuntimeException e) {
-          logger.error("Unexpected exception in thread for {}.", uri, e);
-        }
+  public CompletableFuture<SemanticTokens> semanticTokensRange(Range range) {
+    return snapshotRequest(
+        (documentHandler, analysis) -> documentHandler.semanticTokensRange(analysis, range),
+        (documentHandler, isCancelled) -> documentHandler.semanticTokensRange(range, isCancelled));
+  }
+
+  public CompletableFuture<Either<SemanticTokens, SemanticTokensDelta>> semanticTokensFullDelta(
+      String previousResultId) {
+    return analysisRequest((documentHandler, analysis) ->
+        documentHandler.semanticTokensFullDelta(analysis, previousResultId));
+  }
+
+  public CompletableFuture<List<Location>> declaration(int line, int characterAtLine) {
+    return analysisRequest((documentHandler, analysis) ->
+        documentHandler.declaration(analysis, line, characterAtLine));
+  }
+
+  public CompletableFuture<List<Location>> references(
+      int line, int characterAtLine, boolean includeDeclaration) {
+    return analysisRequest((documentHandler, analysis) ->
+        documentHandler.references(analysis, line, characterAtLine, includeDeclaration));
+  }
+
+  public CompletableFuture<List<DocumentHighlight>> documentHighlight(
+      int line, int characterAtLine) {
+    return analysisRequest((documentHandler, analysis) ->
+        documentHandler.documentHighlight(analysis, line, characterAtLine));
+  }
+
+  /**
+   * Answers request from analysis of the document. When snapshot of analysis of the most
+   * recently submitted text is available, request is answered from it by a task run on its own
+   * lane, otherwise it is enqueued and analysis is computed (unless it already has been) before
+   * the request is run.
+   */
+  private <T> CompletableFuture<T> analysisRequest(
+      BiFunction<DocumentHandler, DocumentAnalysis, T> request) {
+    return snapshotRequest(request, (documentHandler, isCancelled) ->
+        request.apply(documentHandler, documentHandler.analysis(isCancelled)));
+  }
+
+  /**
+   * @param fromSnapshot answers request from snapshot of analysis of the most recently submitted
+   *     text, it is run by a task on its own lane when snapshot is available
+   * @param otherwise answers request when there is no such snapshot, it is enqueued as
+   *     {@link #request(BiFunction)}
+   */
+  private <T> CompletableFuture<T> snapshotRequest(
+      BiFunction<DocumentHandler, DocumentAnalysis, T> fromSnapshot,
+      BiFunction<DocumentHandler, BooleanSupplier, T> otherwise) {
+    var snapshot = currentSnapshot();
+    if (snapshot != null) {
+      var future = new CompletableFuture<T>();
+      scheduler.execute(uri, INTERACTIVE, () ->
+          complete(future, () -> fromSnapshot.apply(documentHandler, snapshot)));
+      return future;
+    }
+    return request(otherwise);
+  }
+
+  /**
+   * @param request receives supplier that returns true once the future has been cancelled
+   * @return future completed with result of request, request is dropped when the future has
+   *     been cancelled before request started
+   */
+  private <T> CompletableFuture<T> request(
+      BiFunction<DocumentHandler, BooleanSupplier, T> request) {
+    var future = new CompletableFuture<T>();
+    enqueue((documentHandler) ->
+        complete(future, () -> request.apply(documentHandler, future::isCancelled)));
+    return future;
+  }
+
+  /**
+   * Completes future with given result, unless the future has been cancelled before, in which
+   * case result is not computed at all.
+   */
+  private static <T> void complete(CompletableFuture<T> future, Supplier<T> result) {
+    if (future.isCancelled()) {
+      return;
+    }
+    try {
+      future.complete(result.get());
+    } catch (Exception | StackOverflowError e) {
+      future.completeExceptionally(e);
+    }
+  }
+
+  /**
+   * Can be called from any thread. Text version is read before the snapshot, and snapshot is
+   * withdrawn before text version is marked as applied, so returned snapshot cannot be an
+   * analysis of older text.
+   * @return published analysis of the most recently submitted text or null when that text has
+   *     not been applied and analysed yet
+   */
+  private DocumentAnalysis currentSnapshot() {
+    if (appliedTextVersion.get() != textVersion.get()) {
+      return null;
+    }
+    return documentHandler.snapshot();
+  }
+
+  /**
+   * Completes future with diagnostics right away, or once pending parse of lexed document has
+   * finished on a separate thread and its result has been handed back to the worker thread.
+   * Future is cancelled instead when text has become stale, as diagnostics of stale text would
+   * be replaced by diagnostics of newer text anyway.
+   */
+  private void completeDiagnostics(
+      DocumentHandler documentHandler,
+      CompletableFuture<List<Diagnostic>> future,
+      BooleanSupplier isStale) {
+    if (isStale.getAsBoolean()) {
+      future.cancel(false);
+      return;
+    }
+    var pendingParse = documentHandler.pendingParse();
+    if (pendingParse == null) {
+      future.complete(documentHandler.getDiagnostics());
+      return;
+    }
+    scheduler.execute(uri, BACKGROUND, () -> {
+      try {
+        var parsedDocument = pendingParse.run(isStale);
+        enqueue((handler) -> {
+          if (handler.completeParse(pendingParse, parsedDocument)) {
+            onAnalysisRefined.run();
+          }
+          if (isStale.getAsBoolean()) {
+            future.cancel(false);
+          } else {
+            future.complete(handler.getDiagnostics());
+          }
+        });
+      } catch (RuntimeException | StackOverflowError e) {
+        future.completeExceptionally(e);
       }
     });
   }
+
+  /**
+   * @return supplier that returns true once text version newer than given one has been created
+   */
+  private BooleanSupplier isStale(long version) {
+    return () -> textVersion.get() != version;
+  }
+
+  /**
+   * @return true when text of the whole document has been replaced by update newer than given
+   *     version, so applying update with given version would be wasted
+   */
+  private boolean isSuperseded(long version) {
+    return version < lastTextReplacement.get();
+  }
+
+  private void skip(CompletableFuture<List<Diagnostic>> future) {
+    metrics.recordSkippedUpdate();
+    future.cancel(false);
+  }
+
+  /**
+   * Computes analysis of the document version ahead of requests. It is not started, or is
+   * abandoned halfway, once newer text or changes have been submitted.
+   */
+  private void precomputeAnalysis(BooleanSupplier isStale) {
+    lane.submit(BACKGROUND, () -> documentHandler.precomputeAnalysis(isStale));
+  }
+
+  private record QueuedChanges(
+      long version,
+      List<TextDocumentContentChangeEvent> changes,
+      CompletableFuture<List<Diagnostic>> future) {}
+
+  // visible for testing
+  void enqueue(Consumer<DocumentHandler> task) {
+    lane.submit(INTERACTIVE, () -> task.accept(documentHandler));
+  }
 }
@@ -0,0 +1,29 @@
+package com.mikosik.logoserver.analyse;
+
+import com.google.common.collect.ImmutableList;
+import com.mikosik.logoserver.analyse.declaration.Declarations;
+import com.mikosik.logoserver.analyse.declaration.References;
+import com.mikosik.logoserver.analyse.declaration.SymbolIndex;
+import com.mikosik.logoserver.analyse.highlight.SemanticTokensData;
+import com.mikosik.logoserver.analyse.parser.SyntaxTree;
+import org.eclipse.lsp4j.Diagnostic;
+
+/**
+ * Results of analysing single version of a document. Computed once after every change of the
+ * document so that requests are answered with lookups. Must not be modified, diagnostics have
+ * to be copied before they are handed to LSP4J.
+ *
+ * @param version number of analysis version, increasing with every change of the document
+ *     and with every refinement of its lexer-only analysis
+ * @param lexerOnly whether document has only been lexed, see
+ *     {@link com.mikosik.logoserver.analyse.parser.ParsedDocument#lexerOnly()}
+ */
+public record DocumentAnalysis(
+    long version,
+    SyntaxTree syntaxTree,
+    ImmutableList<Diagnostic> diagnostics,
+    SemanticTokensData semanticTokens,
+    Declarations declarations,
+    References references,
+    SymbolIndex symbolIndex,
+    boolean lexerOnly) {}
@@ -0,0 +1,85 @@
+package com.mikosik.logoserver.analyse;
+
+import com.google.common.collect.ImmutableMultimap;
+import com.mikosik.logoserver.analyse.declaration.Declarations;
+import com.mikosik.logoserver.analyse.declaration.DeclarationsProvider;
+import com.mikosik.logoserver.analyse.declaration.References;
+import com.mikosik.logoserver.analyse.declaration.ReferencesProvider;
+import com.mikosik.logoserver.analyse.declaration.SymbolIndex;
+import com.mikosik.logoserver.analyse.highlight.LexicalSemanticTokensProvider;
+import com.mikosik.logoserver.analyse.highlight.SemanticTokensProvider;
+import com.mikosik.logoserver.analyse.parser.ParsedDocument;
+import java.util.concurrent.CancellationException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Analyses parsed document in a single traversal of its syntax tree that feeds every node to
+ * declarations and references collectors. Semantic tokens are classified in a separate scan of
+ * tokens that looks up tree nodes only for tokens whose classification depends on context.
+ * Lexer-only document has no statements, so its semantic tokens are classified by
+ * {@link LexicalSemanticTokensProvider} and it has no declarations nor references.
+ * Analysis can be cancelled, cancellation is checked before each phase and periodically during
+ * traversal of the tree.
+ */
+public class DocumentAnalyzer {
+  private final SemanticTokensProvider semanticTokensProvider = new SemanticTokensProvider();
+  private final DeclarationsProvider declarationsProvider = new DeclarationsProvider();
+  private final ReferencesProvider referencesProvider = new ReferencesProvider();
+  private final LexicalSemanticTokensProvider lexicalSemanticTokensProvider =
+      new LexicalSemanticTokensProvider();
+
+  private static final int NODES_BETWEEN_CANCELLATION_CHECKS = 4096;
+
+  public DocumentAnalysis analyse(long version, ParsedDocument parsedDocument) {
+    return analyse(version, parsedDocument, () -> false);
+  }
+
+  /**
+   * @param isCancelled polled during analysis, returns true when result is no longer needed
+   * @throws CancellationException when analysis has been cancelled
+   */
+  public DocumentAnalysis analyse(
+      long version, ParsedDocument parsedDocument, BooleanSupplier isCancelled) {
+    checkCancelled(isCancelled);
+    var syntaxTree = parsedDocument.syntaxTree();
+    if (parsedDocument.lexerOnly()) {
+      return new DocumentAnalysis(
+          version,
+          syntaxTree,
+          parsedDocument.diagnostics(),
+          lexicalSemanticTokensProvider.semanticTokensOf(syntaxTree),
+          new Declarations(ImmutableMultimap.of(), ImmutableMultimap.of()),
+          References.empty(),
+          SymbolIndex.empty(),
+          true);
+    }
+    var declarationsCollector = declarationsProvider.collector(syntaxTree);
+    var referencesCollector = referencesProvider.collector(syntaxTree);
+    for (int node = 0; node < syntaxTree.nodeCount(); node++) {
+      if (node % NODES_BETWEEN_CANCELLATION_CHECKS == 0) {
+        checkCancelled(isCancelled);
+      }
+      declarationsCollector.visit(node);
+      referencesCollector.visit(node);
+    }
+    var declarations = declarationsCollector.build();
+    var references = referencesCollector.build();
+    var symbolIndex = SymbolIndex.of(syntaxTree, references, declarations);
+    checkCancelled(isCancelled);
+    return new DocumentAnalysis(
+        version,
+        syntaxTree,
+        parsedDocument.diagnostics(),
+        semanticTokensProvider.semanticTokensOf(syntaxTree),
+        declarations,
+        References.of(syntaxTree, references),
+        symbolIndex,
+        false);
+  }
+
+  private static void checkCancelled(BooleanSupplier isCancelled) {
+    if (isCancelled.getAsBoolean()) {
+      throw new CancellationException("Analysis has been cancelled.");
+    }
+  }
+}
@@ -2,70 +2,558 @@ package com.mikosik.logoserver.analyse;
 
 import static com.google.common.collect.ImmutableList.toImmutableList;
 
+import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.mikosik.logoserver.analyse.base.Diagnostics;
-import com.mikosik.logoserver.analyse.declaration.DeclarationFinder;
-import com.mikosik.logoserver.analyse.declaration.DeclarationsProvider;
-import com.mikosik.logoserver.analyse.declaration.ReferencesProvider;
+import com.mikosik.logoserver.analyse.base.Ranges;
+import com.mikosik.logoserver.analyse.declaration.Declarations;
+import com.mikosik.logoserver.analyse.declaration.References;
+import com.mikosik.logoserver.analyse.declaration.SymbolIndex;
+import com.mikosik.logoserver.analyse.highlight.LexicalSemanticTokensProvider;
+import com.mikosik.logoserver.analyse.highlight.SemanticTokensData;
+import com.mikosik.logoserver.analyse.highlight.SemanticTokensDiff;
 import com.mikosik.logoserver.analyse.highlight.SemanticTokensProvider;
 import com.mikosik.logoserver.analyse.parser.ParsedDocument;
 import com.mikosik.logoserver.analyse.parser.Parser;
+import com.mikosik.logoserver.analyse.parser.SyntaxTree;
+import com.mikosik.logoserver.analyse.text.TextBuffer;
+import com.mikosik.logoserver.analyse.text.TextEdit;
+import com.mikosik.logoserver.analyse.workspace.WorkspaceIndex;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
 import org.eclipse.lsp4j.Diagnostic;
+import org.eclipse.lsp4j.DocumentHighlight;
+import org.eclipse.lsp4j.DocumentHighlightKind;
 import org.eclipse.lsp4j.Location;
+import org.eclipse.lsp4j.Range;
+import org.eclipse.lsp4j.SemanticTokens;
+import org.eclipse.lsp4j.SemanticTokensDelta;
+import org.eclipse.lsp4j.TextDocumentContentChangeEvent;
+import org.eclipse.lsp4j.jsonrpc.messages.Either;
 
 /**
- * Provides semantic tokens, diagnostics and declarations for a given document.
+ * Provides semantic tokens, diagnostics, declarations and references for a given document.
+ * Document at least {@code lexerFirstMinLength} (see parser settings) long that cannot be parsed
+ * incrementally is only lexed, so it is highlighted right away, and its full parse is left as
+ * {@link #pendingParse()} to be run in background.
+ * Text that is already stale when it is set or changed (newer text or changes are waiting) is
+ * not parsed at all. Edits applied since the last parse are composed into a single edit, so the
+ * next parse, done when text is no longer stale or when it is needed by a request, can still be
+ * incremental. Parse abandoned because text became stale is dropped, text stays unparsed instead
+ * of getting lexer-only result.
+ * Analysis of a document version is computed once, either on first request that needs it or
+ * ahead of requests with {@link #precomputeAnalysis()}, and is dropped on the next change.
+ * Declarations and references of every analysed version are put into {@link WorkspaceIndex},
+ * which is also consulted for declarations of names that are not declared in the document itself
+ * and for references from other files. Once the document is closed with {@link #closeDocument()}
+ * its analyses are no longer indexed, until it is opened again with new text.
+ * Every computed analysis is published as an immutable {@link #snapshot()}, which is withdrawn as
+ * soon as the document changes. Methods taking {@link DocumentAnalysis} read nothing but that
+ * analysis and thread-safe state, so they can answer requests from a snapshot on any thread
+ * while the document is being changed on another one.
  */
 public class DocumentHandler {
   private final String uri;
   private final Parser parser;
+  private final WorkspaceIndex workspaceIndex;
+  private final DocumentAnalyzer analyzer;
   private final SemanticTokensProvider semanticTokensProvider;
-  private final DeclarationsProvider declarationsProvider;
-  private final ReferencesProvider referencesProvider;
+  private final LexicalSemanticTokensProvider lexicalSemanticTokensProvider;
+  private final AtomicReference<DocumentAnalysis> snapshot = new AtomicReference<>();
+  private final AtomicLong semanticTokensVersion = new AtomicLong();
+  private final AtomicReference<RememberedTokens> semanticTokens = new AtomicReference<>();
+  private TextBuffer text;
   private ParsedDocument parsedDocument;
+  private long version;
+  private DocumentAnalysis analysis;
+  private boolean textParsed;
+  private TextEdit editSinceParse;
+  private PendingParse pendingParse;
+  private boolean open;
 
   public DocumentHandler(String uri) {
+    this(uri, new WorkspaceIndex());
+  }
+
+  public DocumentHandler(String uri, WorkspaceIndex workspaceIndex) {
+    this(uri, new Parser(), workspaceIndex);
+  }
+
+  // visible for testing
+  DocumentHandler(String uri, Parser parser) {
+    this(uri, parser, new WorkspaceIndex());
+  }
+
+  // visible for testing
+  DocumentHandler(String uri, Parser parser, WorkspaceIndex workspaceIndex) {
     this.uri = uri;
-    this.parser = new Parser();
+    this.parser = parser;
+    this.workspaceIndex = workspaceIndex;
+    this.analyzer = new DocumentAnalyzer();
     this.semanticTokensProvider = new SemanticTokensProvider();
-    this.declarationsProvider = new DeclarationsProvider();
-    this.referencesProvider = new ReferencesProvider();
+    this.lexicalSemanticTokensProvider = new LexicalSemanticTokensProvider();
+    this.text = null;
     this.parsedDocument = null;
+    this.version = 0;
+    this.analysis = null;
+    this.textParsed = false;
+    this.editSinceParse = null;
+    this.pendingParse = null;
   }
 
   public void setText(String text) {
-    parsedDocument = parser.parse(text);
+    setText(text, () -> false);
   }
 
-  public ImmutableList<Diagnostic> getDiagnostics() {
+  /**
+   * @param isStale returns true once newer text or changes are waiting to be applied, in which
+   *     case this text is left unparsed until it is needed
+   */
+  public void setText(String text, BooleanSupplier isStale) {
+    this.open = true;
+    this.text = new TextBuffer(text);
+    textChanged(null);
+    parse(isStale);
+  }
+
+  public void applyChanges(List<TextDocumentContentChangeEvent> changes) {
+    applyChanges(changes, () -> false);
+  }
+
+  /**
+   * Applies changes in order they are provided. When document has been parsed and it has been
+   * changed only by ranged changes since then, document is parsed incrementally, otherwise it is
+   * parsed from scratch.
+   * @param isStale returns true once newer text or changes are waiting to be applied, in which
+   *     case changed document is left unparsed until it is needed
+   * @throws IllegalArgumentException when range of any change is not valid, in which case none
+   *     of the changes is applied
+   */
+  public void applyChanges(
+      List<TextDocumentContentChangeEvent> changes, BooleanSupplier isStale) {
     checkState();
+    for (var change : changes) {
+      if (change.getRange() != null) {
+        TextBuffer.checkRange(change.getRange());
+      }
+    }
+    for (var change : changes) {
+      if (change.getRange() == null) {
+        text = new TextBuffer(change.getText());
+        textChanged(null);
+      } else {
+        textChanged(text.replace(change.getRange(), change.getText()));
+      }
+    }
+    parse(isStale);
+  }
+
+  /**
+   * Drops everything derived from previous text.
+   * @param edit edit that has been applied to the text or null when text has been replaced
+   */
+  private void textChanged(TextEdit edit) {
+    if (edit == null || parsedDocument == null) {
+      editSinceParse = null;
+    } else if (textParsed) {
+      editSinceParse = edit;
+    } else if (editSinceParse != null) {
+      editSinceParse = editSinceParse.followedBy(edit, text);
+    }
+    textParsed = false;
+    pendingParse = null;
+    analysis = null;
+    snapshot.set(null);
+  }
+
+  /**
+   * Parses text changed since the last parse, unless it is already cancelled.
+   * @param isCancelled polled during parsing, returns true when result is no longer needed
+   * @return true when parsed document matches the text, false when parse has been cancelled and
+   *     text has been left unparsed
+   */
+  private boolean parse(BooleanSupplier isCancelled) {
+    if (textParsed) {
+      return true;
+    }
+    if (isCancelled.getAsBoolean()) {
+      return false;
+    }
+    ParsedDocument result;
+    PendingParse pending = null;
+    if (editSinceParse != null && !parsedDocument.lexerOnly()) {
+      result = parser.reparse(parsedDocument, editSinceParse, text, isCancelled);
+    } else if (text.length() < parser.settings().lexerFirstMinLength()) {
+      result = parser.parse(text.toString(), isCancelled);
+    } else {
+      var string = text.toString();
+      result = parser.lex(string);
+      pending = new PendingParse(parser, string);
+    }
+    if (pending == null && result.lexerOnly() && isCancelled.getAsBoolean()) {
+      return false;
+    }
+    setParsedDocument(result);
+    pendingParse = pending;
+    return true;
+  }
+
+  /**
+   * @throws CancellationException when text has not been parsed yet and parsing it has been
+   *     cancelled
+   */
+  private void ensureParsed(BooleanSupplier isCancelled) {
+    checkState();
+    if (!parse(isCancelled)) {
+      throw new CancellationException("Parse has been cancelled.");
+    }
+  }
+
+  /**
+   * @return full parse of the current version of the document that has only been lexed so far,
+   *     or null when there is none
+   */
+  public PendingParse pendingParse() {
+    return pendingParse;
+  }
+
+  /**
+   * Replaces lexer-only analysis with analysis of fully parsed document, unless the document has
+   * changed since the parse was pending or the parse has been abandoned.
+   * @return true when analysis has been replaced
+   */
+  public boolean completeParse(PendingParse parse, ParsedDocument parsedDocument) {
+    if (parse != pendingParse) {
+      return false;
+    }
+    pendingParse = null;
+    if (parsedDocument.lexerOnly()) {
+      return false;
+    }
+    setParsedDocument(parsedDocument);
+    return true;
+  }
+
+  /**
+   * Makes given document the new version whose analysis is computed when it is first needed.
+   */
+  private void setParsedDocument(ParsedDocument parsedDocument) {
+    this.pendingParse = null;
+    this.parsedDocument = parsedDocument;
+    this.textParsed = true;
+    this.editSinceParse = null;
+    this.version++;
+    this.analysis = null;
+    this.snapshot.set(null);
+  }
+
+  /**
+   * @return analysis of the current version of the document, computed once per version
+   */
+  public DocumentAnalysis analysis() {
+    return analysis(() -> false);
+  }
+
+  /**
+   * @param isCancelled polled while analysis is computed, returns true when it is no longer
+   *     needed, in which case analysis is left to be computed by the next call
+   * @throws CancellationException when computing analysis has been cancelled
+   */
+  public DocumentAnalysis analysis(BooleanSupplier isCancelled) {
+    ensureParsed(isCancelled);
+    if (analysis == null) {
+      analysis = analyzer.analyse(version, parsedDocument, isCancelled);
+      if (open && !analysis.lexerOnly()) {
+        workspaceIndex.indexOpenDocument(uri, analysis.declarations(), analysis.references());
+      }
+      snapshot.set(analysis);
+    }
+    return analysis;
+  }
+
+  /**
+   * Can be called from any thread.
+   * @return analysis of the current version of the document or null when it has not been
+   *     computed yet or the document has changed since it was computed
+   */
+  public DocumentAnalysis snapshot() {
+    return snapshot.get();
+  }
+
+  /**
+   * Hands declarations and references of the document back to files read from disk in
+   * {@link WorkspaceIndex}. Analyses computed afterwards are not indexed, so that tasks queued
+   * before the document was closed do not mark it as open again.
+   */
+  public void closeDocument() {
+    open = false;
+    workspaceIndex.closeDocument(uri);
+  }
+
+  /**
+   * Computes analysis of the current version (if there is one) ahead of requests that need it.
+   */
+  public void precomputeAnalysis() {
+    precomputeAnalysis(() -> false);
+  }
+
+  /**
+   * @param isStale polled while analysis is computed, returns true once newer text or changes are
+   *     waiting to be applied, in which case computing analysis is abandoned
+   */
+  public void precomputeAnalysis(BooleanSupplier isStale) {
+    if (text != null) {
+      try {
+        analysis(isStale);
+      } catch (CancellationException e) {
+        // analysis is computed by the next call that needs it
+      }
+    }
+  }
+
+  public ImmutableList<Diagnostic> getDiagnostics() {
+    ensureParsed(() -> false);
     return parsedDocument.diagnostics().stream()
         .map(Diagnostics::newDiagnostic)
         .collect(ImmutableList.toImmutableList());
   }
 
-  public ImmutableList<Integer> semanticTokensFull() {
-    checkState();
-    return semanticTokensProvider.semanticTokensOf(parsedDocument.parseTree());
+  public SemanticTokens semanticTokensFull() {
+    return semanticTokensFull(analysis());
+  }
+
+  public SemanticTokens semanticTokensFull(DocumentAnalysis analysis) {
+    var data = analysis.semanticTokens();
+    return new SemanticTokens(remember(data), data);
   }
 
+  public SemanticTokens semanticTokensRange(Range range) {
+    return semanticTokensRange(range, () -> false);
+  }
+
+  /**
+   * @param isCancelled polled while document that has not been parsed yet is parsed, returns
+   *     true when tokens are no longer needed
+   * @throws CancellationException when parsing the document has been cancelled
+   */
+  public SemanticTokens semanticTokensRange(Range range, BooleanSupplier isCancelled) {
+    ensureParsed(isCancelled);
+    return semanticTokensRange(parsedDocument.syntaxTree(), parsedDocument.lexerOnly(), range);
+  }
+
+  public SemanticTokens semanticTokensRange(DocumentAnalysis analysis, Range range) {
+    return semanticTokensRange(analysis.syntaxTree(), analysis.lexerOnly(), range);
+  }
+
+  private SemanticTokens semanticTokensRange(
+      SyntaxTree syntaxTree, boolean lexerOnly, Range range) {
+    var data = lexerOnly
+        ? lexicalSemanticTokensProvider.semanticTokensOf(syntaxTree, range)
+        : semanticTokensProvider.semanticTokensOf(syntaxTree, range);
+    return new SemanticTokens(data);
+  }
+
+  /**
+   * @param previousResultId result id of semantic tokens previously returned to the client
+   * @return edits to previous semantic tokens or full semantic tokens when previous ones are no
+   *     longer remembered (only the most recent result is remembered)
+   */
+  public Either<SemanticTokens, SemanticTokensDelta> semanticTokensFullDelta(
+      String previousResultId) {
+    return semanticTokensFullDelta(analysis(), previousResultId);
+  }
+
+  public Either<SemanticTokens, SemanticTokensDelta> semanticTokensFullDelta(
+      DocumentAnalysis analysis, String previousResultId) {
+    var data = analysis.semanticTokens();
+    while (true) {
+      var previous = semanticTokens.get();
+      var current = rememberedTokens(previous, data);
+      if (current != previous && !semanticTokens.compareAndSet(previous, current)) {
+        continue;
+      }
+      // edits are computed against exactly the tokens that have just been replaced, so
+      // concurrent requests cannot pair edits with result id of other tokens
+      if (previous == null || !previous.resultId().equals(previousResultId)) {
+        return Either.forLeft(new SemanticTokens(current.resultId(), data));
+      }
+      var edits = SemanticTokensDiff.diff(previous.data(), data);
+      return Either.forRight(new SemanticTokensDelta(edits, current.resultId()));
+    }
+  }
+
+  /**
+   * @return result id of given semantic tokens, which is the same as previous one when tokens of
+   *     the same analysis are requested again
+   */
+  private String remember(SemanticTokensData data) {
+    return semanticTokens.updateAndGet(previous -> rememberedTokens(previous, data)).resultId();
+  }
+
+  private RememberedTokens rememberedTokens(RememberedTokens previous, SemanticTokensData data) {
+    return previous != null && previous.data() == data
+        ? previous
+        : new RememberedTokens(Long.toString(semanticTokensVersion.incrementAndGet()), data);
+  }
+
+  /**
+   * @return declarations of a name referenced at given position found in this document or, when
+   *     there are none, in other files of the workspace
+   */
   public ImmutableList<Location> declaration(int line, int characterAtLine) {
-    checkState();
-    var declarationFinder = createDeclarationFinder();
-    return declarationFinder.findDeclarationsOf(line, characterAtLine).stream()
-        .map(r -> new Location(uri, r))
-        .collect(toImmutableList());
+    return declaration(analysis(), line, characterAtLine);
+  }
+
+  public ImmutableList<Location> declaration(
+      DocumentAnalysis analysis, int line, int characterAtLine) {
+    var symbolIndex = analysis.symbolIndex();
+    int reference = symbolIndex.referenceAt(line, characterAtLine);
+    if (reference == SymbolIndex.NONE) {
+      return ImmutableList.of();
+    }
+    var declarations = symbolIndex.declarations(reference);
+    if (!declarations.isEmpty()) {
+      return declarations.stream()
+          .map(r -> new Location(uri, Ranges.newRange(r)))
+          .collect(toImmutableList());
+    }
+    var name = symbolIndex.name(reference);
+    return symbolIndex.isVariable(reference)
+        ? workspaceIndex.variableDeclarations(name, uri)
+        : workspaceIndex.procedureDeclarations(name, uri);
+  }
+
+  /**
+   * @return references to a name referenced or declared at given position found in this document
+   *     and in other files of the workspace, preceded by declarations of that name when
+   *     {@code includeDeclaration} is true
+   */
+  public ImmutableList<Location> references(
+      int line, int characterAtLine, boolean includeDeclaration) {
+    return references(analysis(), line, characterAtLine, includeDeclaration);
+  }
+
+  public ImmutableList<Location> references(
+      DocumentAnalysis analysis, int line, int characterAtLine, boolean includeDeclaration) {
+    var symbol = symbolAt(analysis, line, characterAtLine);
+    if (symbol == null) {
+      return ImmutableList.of();
+    }
+    var name = symbol.name();
+    var result = ImmutableList.<Location>builder();
+    if (includeDeclaration) {
+      symbol.rangesIn(analysis.declarations()).forEach(r -> result.add(location(r)));
+      result.addAll(symbol.variable()
+          ? workspaceIndex.variableDeclarations(name, uri)
+          : workspaceIndex.procedureDeclarations(name, uri));
+    }
+    symbol.rangesIn(analysis.references()).forEach(r -> result.add(location(r)));
+    result.addAll(symbol.variable()
+        ? workspaceIndex.variableReferences(name, uri)
+        : workspaceIndex.procedureReferences(name, uri));
+    return result.build();
+  }
+
+  /**
+   * @return declarations (as writes) and references (as reads) in this document of a name
+   *     referenced or declared at given position
+   */
+  public ImmutableList<DocumentHighlight> documentHighlight(int line, int characterAtLine) {
+    return documentHighlight(analysis(), line, characterAtLine);
+  }
+
+  public ImmutableList<DocumentHighlight> documentHighlight(
+      DocumentAnalysis analysis, int line, int characterAtLine) {
+    var symbol = symbolAt(analysis, line, characterAtLine);
+    if (symbol == null) {
+      return ImmutableList.of();
+    }
+    var result = ImmutableList.<DocumentHighlight>builder();
+    for (var range : symbol.rangesIn(analysis.declarations())) {
+      result.add(new DocumentHighlight(Ranges.newRange(range), DocumentHighlightKind.Write));
+    }
+    for (var range : symbol.rangesIn(analysis.references())) {
+      result.add(new DocumentHighlight(Ranges.newRange(range), DocumentHighlightKind.Read));
+    }
+    return result.build();
   }
 
-  private DeclarationFinder createDeclarationFinder() {
-    var references = referencesProvider.referencesFrom(parsedDocument.parseTree());
-    var declarations = declarationsProvider.declarationsFrom(parsedDocument.parseTree());
-    return new DeclarationFinder(references, declarations);
+  /**
+   * @return name referenced or declared at given position (position right after the name also
+   *     counts) or null when there is none
+   */
+  private static Symbol symbolAt(DocumentAnalysis analysis, int line, int characterAtLine) {
+    var symbolIndex = analysis.symbolIndex();
+    int reference = symbolIndex.referenceAt(line, characterAtLine);
+    if (reference != SymbolIndex.NONE) {
+      return new Symbol(symbolIndex.name(reference), symbolIndex.isVariable(reference));
+    }
+    var declarations = analysis.declarations();
+    for (var entry : declarations.procedures().entries()) {
+      if (contains(entry.getValue(), line, characterAtLine)) {
+        return new Symbol(entry.getKey(), false);
+      }
+    }
+    for (var entry : declarations.variables().entries()) {
+      if (contains(entry.getValue(), line, characterAtLine)) {
+        return new Symbol(entry.getKey(), true);
+      }
+    }
+    return null;
   }
 
+  private static boolean contains(Range range, int line, int characterAtLine) {
+    var start = range.getStart();
+    var end = range.getEnd();
+    return start.getLine() == line
+        && start.getCharacter() <= characterAtLine
+        && characterAtLine <= end.getCharacter();
+  }
+
+  private Location location(Range range) {
+    return new Location(uri, Ranges.newRange(range));
+  }
+
+  private record Symbol(String name, boolean variable) {
+    ImmutableCollection<Range> rangesIn(Declarations declarations) {
+      return (variable ? declarations.variables() : declarations.procedures()).get(name);
+    }
+
+    ImmutableCollection<Range> rangesIn(References references) {
+      return (variable ? references.variables() : references.procedures()).get(name);
+    }
+  }
+
+  private record RememberedTokens(String resultId, SemanticTokensData data) {}
+
   private void checkState() {
-    if (parsedDocument == null) {
+    if (text == null) {
       throw new IllegalStateException("Document has not been opened yet.");
     }
   }
+
+  /**
+   * Full parse of a document version that has only been lexed. Can be run on any thread, its
+   * result is handed back to {@link DocumentHandler#completeParse}.
+   */
+  public static final class PendingParse {
+    private final Parser parser;
+    private final String text;
+
+    private PendingParse(Parser parser, String text) {
+      this.parser = parser;
+      this.text = text;
+    }
+
+    /**
+     * Parse is not limited by parse time budget, as lexer-only documents are the longest ones.
+     * @param isStale returns true once document has changed, in which case parse is abandoned
+     */
+    public ParsedDocument run(BooleanSupplier isStale) {
+      return parser.parseInBackground(text, isStale);
+    }
+  }
 }
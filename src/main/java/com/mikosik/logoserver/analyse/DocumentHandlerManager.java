@@ -1,5 +1,9 @@
 package com.mikosik.logoserver.analyse;
 
+import static com.mikosik.logoserver.analyse.DocumentScheduler.Priority.BACKGROUND;
+import static com.mikosik.logoserver.analyse.DocumentScheduler.Priority.INTERACTIVE;
+
+import com.mikosik.logoserver.analyse.workspace.WorkspaceIndex;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.HashMap;
@@ -14,7 +18,9 @@ import org.slf4j.LoggerFactory;
  * Creates instances on demand or reuses cached instance if already created for the given URI.
  * Allows scheduling {@link AsyncDocumentHandler} for removal in which case it will be shutdown
  * after delay of 5 minutes. The actual shutdown is triggered during execution of public methods
- * if shutdown delay has been reached.
+ * if shutdown delay has been reached. Until then tasks of the handler are scheduled in
+ * background, behind tasks of open documents.
+ * All handlers share single {@link DocumentScheduler}.
  */
 public class DocumentHandlerManager {
   private static final Logger logger = LoggerFactory.getLogger(DocumentHandlerManager.class);
@@ -25,7 +31,19 @@ public class DocumentHandlerManager {
   private final Supplier<Instant> currentInstantSupplier;
 
   public DocumentHandlerManager() {
-    this(AsyncDocumentHandler::new, Instant::now);
+    this(new WorkspaceIndex(), () -> {});
+  }
+
+  /**
+   * @param workspaceIndex index that handlers put declarations of their documents into
+   * @param onAnalysisRefined run when lexer-only analysis of a long document has been replaced
+   *     by analysis of its full parse
+   */
+  public DocumentHandlerManager(WorkspaceIndex workspaceIndex, Runnable onAnalysisRefined) {
+    this(
+        uri -> new AsyncDocumentHandler(
+            uri, DocumentScheduler.shared(), workspaceIndex, onAnalysisRefined),
+        Instant::now);
   }
 
   DocumentHandlerManager(
@@ -46,6 +64,7 @@ public class DocumentHandlerManager {
     if (recycled == null) {
       return factory.apply(uri);
     } else {
+      recycled.asyncDocumentHandler.setPriority(INTERACTIVE);
       return recycled.asyncDocumentHandler;
     }
   }
@@ -56,6 +75,8 @@ public class DocumentHandlerManager {
     if (handler == null) {
       logger.warn("Ignoring request to remove handler for {} as it does not exist.", uri);
     } else {
+      handler.setPriority(BACKGROUND);
+      handler.closeDocument();
       recyclable.put(
           uri, new Recyclable(handler, currentInstantSupplier.get().plus(SHUTDOWN_DELAY)));
     }
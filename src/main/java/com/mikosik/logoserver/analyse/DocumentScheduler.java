@@ -0,0 +1,227 @@
+package com.mikosik.logoserver.analyse;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs tasks of all documents on at most {@code maxConcurrency} threads.
+ * Threads are started when tasks need them and are never stopped, idle thread waits for the next
+ * ready lane, so that state cached per thread (like recognizers of
+ * {@link com.mikosik.logoserver.analyse.parser.Parser}) is reused by later tasks.
+ * Tasks are submitted to {@link Lane}s, one per document. Tasks of a lane run one at a time in
+ * order of submission, while tasks of different lanes run concurrently. Whenever a thread is
+ * free it runs the next task of the ready lane with the highest priority. Lanes of the same
+ * priority take turns, one task at a time, in order they became ready, so a document with many
+ * queued tasks does not starve other documents. Ready lanes are kept in one FIFO per priority,
+ * so queuing, requeuing and removing a lane take constant time however many lanes are waiting,
+ * a lane whose priority changes while it waits goes to the end of lanes of its new priority.
+ * Lane is scheduled with {@link Priority#INTERACTIVE} priority when it has been given that
+ * priority and has at least one interactive task queued, otherwise it is scheduled with
+ * {@link Priority#BACKGROUND} priority.
+ * Worker survives any exception or error thrown by a task (for example
+ * {@link StackOverflowError} of parser recursing into deeply nested brackets), so a failing
+ * task never takes a thread away from the scheduler.
+ */
+public class DocumentScheduler {
+  private static final Logger logger = LoggerFactory.getLogger(DocumentScheduler.class);
+  private static final DocumentScheduler SHARED =
+      new DocumentScheduler(Runtime.getRuntime().availableProcessors());
+  private final int maxConcurrency;
+  private final EnumMap<Priority, LinkedHashSet<Lane>> ready = new EnumMap<>(Priority.class);
+  private int workers;
+  private int idleWorkers;
+
+  public enum Priority {
+    INTERACTIVE,
+    BACKGROUND
+  }
+
+  public DocumentScheduler(int maxConcurrency) {
+    this.maxConcurrency = maxConcurrency;
+    for (var priority : Priority.values()) {
+      ready.put(priority, new LinkedHashSet<>());
+    }
+  }
+
+  /**
+   * @return scheduler shared by all documents of the server limited to the number of cores
+   */
+  public static DocumentScheduler shared() {
+    return SHARED;
+  }
+
+  public int maxConcurrency() {
+    return maxConcurrency;
+  }
+
+  public Lane newLane(String name, Priority priority) {
+    return new Lane(name, priority);
+  }
+
+  /**
+   * Runs given task on its own lane.
+   */
+  public void execute(String name, Priority priority, Runnable task) {
+    newLane(name, priority).submit(priority, task);
+  }
+
+  private void work() {
+    while (true) {
+      var lane = next();
+      try {
+        lane.runningTask.run();
+      } catch (Throwable e) {
+        logger.error("Unexpected exception in task of {}.", lane.name, e);
+      } finally {
+        finished(lane);
+      }
+    }
+  }
+
+  /**
+   * Waits until there is a ready lane.
+   * @return lane whose next task has been taken for running
+   */
+  private synchronized Lane next() {
+    Lane lane;
+    while ((lane = pollReady()) == null) {
+      idleWorkers++;
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        // workers are never interrupted, they keep waiting for tasks
+      } finally {
+        idleWorkers--;
+      }
+    }
+    lane.queued = false;
+    var task = lane.tasks.poll();
+    if (task.priority() == Priority.INTERACTIVE) {
+      lane.interactiveTasks--;
+    }
+    lane.runningTask = task.runnable();
+    return lane;
+  }
+
+  /**
+   * @return first lane of the highest priority that has ready lanes or null when no lane is ready
+   */
+  private Lane pollReady() {
+    for (var lanes : ready.values()) {
+      if (!lanes.isEmpty()) {
+        return lanes.removeFirst();
+      }
+    }
+    return null;
+  }
+
+  private int readyCount() {
+    return ready.values().stream().mapToInt(LinkedHashSet::size).sum();
+  }
+
+  private synchronized void finished(Lane lane) {
+    lane.runningTask = null;
+    if (!lane.tasks.isEmpty()) {
+      enqueue(lane);
+    }
+  }
+
+  /**
+   * Puts lane that is neither queued nor running at the end of lanes with the same priority.
+   */
+  private void enqueue(Lane lane) {
+    lane.queued = true;
+    ready.get(lane.priority()).add(lane);
+    if (idleWorkers > 0) {
+      notify();
+    }
+    if (readyCount() > idleWorkers && workers < maxConcurrency) {
+      workers++;
+      Thread.ofPlatform().daemon().name("document-scheduler-" + workers).start(this::work);
+    }
+  }
+
+  /**
+   * Serial queue of tasks of a single document.
+   */
+  public final class Lane {
+    private final String name;
+    private final ArrayDeque<Task> tasks = new ArrayDeque<>();
+    private Priority priority;
+    private int interactiveTasks;
+    private boolean queued;
+    private Runnable runningTask;
+    private boolean closed;
+
+    private Lane(String name, Priority priority) {
+      this.name = name;
+      this.priority = priority;
+    }
+
+    /**
+     * @throws IllegalStateException when lane is closed
+     */
+    public void submit(Priority taskPriority, Runnable task) {
+      synchronized (DocumentScheduler.this) {
+        if (closed) {
+          throw new IllegalStateException("Lane " + name + " is closed.");
+        }
+        update(() -> {
+          tasks.add(new Task(taskPriority, task));
+          if (taskPriority == Priority.INTERACTIVE) {
+            interactiveTasks++;
+          }
+        });
+        if (!queued && runningTask == null) {
+          enqueue(this);
+        }
+      }
+    }
+
+    public void setPriority(Priority priority) {
+      synchronized (DocumentScheduler.this) {
+        update(() -> this.priority = priority);
+      }
+    }
+
+    /**
+     * Drops queued tasks, task that is already running is completed.
+     */
+    public void close() {
+      synchronized (DocumentScheduler.this) {
+        if (queued) {
+          ready.get(priority()).remove(this);
+          queued = false;
+        }
+        tasks.clear();
+        interactiveTasks = 0;
+        closed = true;
+      }
+    }
+
+    private Priority priority() {
+      return priority == Priority.INTERACTIVE && interactiveTasks > 0
+          ? Priority.INTERACTIVE
+          : Priority.BACKGROUND;
+    }
+
+    /**
+     * Applies change that can affect priority of this lane, moving it to ready lanes of its new
+     * priority when it is queued and its priority has changed.
+     */
+    private void update(Runnable change) {
+      var previous = priority();
+      change.run();
+      var current = priority();
+      if (queued && current != previous) {
+        ready.get(previous).remove(this);
+        ready.get(current).add(this);
+      }
+    }
+  }
+
+  private record Task(Priority priority, Runnable runnable) {}
+}
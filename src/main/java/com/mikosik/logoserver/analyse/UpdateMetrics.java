@@ -0,0 +1,61 @@
+package com.mikosik.logoserver.analyse;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters describing how updates of document text are handled. Thread-safe.
+ */
+public class UpdateMetrics {
+  private static final UpdateMetrics SHARED = new UpdateMetrics();
+  private final LongAdder appliedUpdates = new LongAdder();
+  private final LongAdder skippedUpdates = new LongAdder();
+  private final LongAdder mergedUpdates = new LongAdder();
+
+  /**
+   * @return instance shared by all document handlers in the server
+   */
+  public static UpdateMetrics shared() {
+    return SHARED;
+  }
+
+  void recordAppliedUpdate() {
+    appliedUpdates.increment();
+  }
+
+  void recordSkippedUpdate() {
+    skippedUpdates.increment();
+  }
+
+  void recordMergedUpdate() {
+    mergedUpdates.increment();
+  }
+
+  /**
+   * @return number of text updates (new text or changes) applied to documents
+   */
+  public long appliedUpdates() {
+    return appliedUpdates.sum();
+  }
+
+  /**
+   * @return number of text updates skipped because newer text replaced them before they started
+   */
+  public long skippedUpdates() {
+    return skippedUpdates.sum();
+  }
+
+  /**
+   * @return number of applied changes that have been merged with changes queued right after them,
+   *     so their text has been neither parsed nor diagnosed
+   */
+  public long mergedUpdates() {
+    return mergedUpdates.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "UpdateMetrics{appliedUpdates=" + appliedUpdates()
+        + ", skippedUpdates=" + skippedUpdates()
+        + ", mergedUpdates=" + mergedUpdates() + "}";
+  }
+}
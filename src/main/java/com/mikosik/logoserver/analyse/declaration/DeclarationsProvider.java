@@ -1,67 +1,63 @@
 package com.mikosik.logoserver.analyse.declaration;
 
-import static com.mikosik.logoserver.analyse.base.Ranges.newRange;
+import static com.google.common.base.Ascii.toLowerCase;
 
 import com.google.common.collect.ImmutableMultimap;
-import com.mikosik.logoserver.analyse.parser.antlr.LogoBaseListener;
-import com.mikosik.logoserver.analyse.parser.antlr.LogoParser.DefineContext;
-import com.mikosik.logoserver.analyse.parser.antlr.LogoParser.DocumentContext;
-import com.mikosik.logoserver.analyse.parser.antlr.LogoParser.LocalmakeContext;
-import com.mikosik.logoserver.analyse.parser.antlr.LogoParser.MakevarContext;
-import com.mikosik.logoserver.analyse.parser.antlr.LogoParser.NamevarContext;
-import com.mikosik.logoserver.analyse.parser.antlr.LogoParser.ToContext;
-import org.antlr.v4.runtime.Token;
-import org.antlr.v4.runtime.tree.ParseTreeWalker;
-import org.antlr.v4.runtime.tree.TerminalNode;
+import com.mikosik.logoserver.analyse.parser.SyntaxTree;
+import com.mikosik.logoserver.analyse.parser.antlr.LogoLexer;
+import com.mikosik.logoserver.analyse.parser.antlr.LogoParser;
 import org.eclipse.lsp4j.Range;
 
 /**
- * Provides variable and procedure declarations from a given parse tree.
+ * Provides variable and procedure declarations from a given syntax tree.
+ * Names are case-insensitive so they are stored in lower case.
  */
 public class DeclarationsProvider {
-  public Declarations declarationsFrom(DocumentContext parseTree) {
-    var listener = new Listener();
-    new ParseTreeWalker().walk(listener, parseTree);
-    return listener.build();
+  public Declarations declarationsFrom(SyntaxTree syntaxTree) {
+    var collector = collector(syntaxTree);
+    for (int node = 0; node < syntaxTree.nodeCount(); node++) {
+      collector.visit(node);
+    }
+    return collector.build();
+  }
+
+  public Collector collector(SyntaxTree syntaxTree) {
+    return new Collector(syntaxTree);
   }
 
-  private static class Listener extends LogoBaseListener {
+  /**
+   * Collects declarations from nodes visited in pre-order, so that single traversal of a tree
+   * can feed several analyses.
+   */
+  public static class Collector {
+    private final SyntaxTree syntaxTree;
     private final ImmutableMultimap.Builder<String, Range> variables = ImmutableMultimap.builder();
     private final ImmutableMultimap.Builder<String, Range> procedures = ImmutableMultimap.builder();
 
-    @Override
-    public void enterMakevar(MakevarContext makevarContext) {
-      addVariableDeclaration(makevarContext.WORD());
-    }
-
-    @Override
-    public void enterNamevar(NamevarContext namevarContext) {
-      addVariableDeclaration(namevarContext.WORD());
-    }
-
-    @Override
-    public void enterLocalmake(LocalmakeContext localmakeContext) {
-      addVariableDeclaration(localmakeContext.WORD());
-    }
-
-    private void addVariableDeclaration(TerminalNode word) {
-      Token symbol = word.getSymbol();
-      // remove leading double quotes `"` from variable name declaration
-      var name = symbol.getText().substring(1);
-      var value = newRange(symbol);
-      variables.put(name, value);
+    private Collector(SyntaxTree syntaxTree) {
+      this.syntaxTree = syntaxTree;
     }
 
-    @Override
-    public void enterTo(ToContext toContext) {
-      procedures.put(toContext.NAME().getText(), newRange(toContext.NAME().getSymbol()));
+    public void visit(int node) {
+      switch (syntaxTree.kind(node)) {
+        case LogoParser.RULE_makevar, LogoParser.RULE_namevar, LogoParser.RULE_localmake ->
+            // remove leading double quotes `"` from variable name declaration
+            put(variables, syntaxTree.childToken(node, LogoLexer.WORD), 1);
+        case LogoParser.RULE_to ->
+            put(procedures, syntaxTree.childToken(node, LogoLexer.NAME), 0);
+        case LogoParser.RULE_define ->
+            // remove leading double quotes `"` from procedure name declaration
+            put(procedures, syntaxTree.childToken(node, LogoLexer.WORD), 1);
+        default -> {}
+      }
     }
 
-    @Override
-    public void enterDefine(DefineContext defineContext) {
-      // remove leading double quotes `"` from procedure name declaration
-      var name = defineContext.WORD().getText().substring(1);
-      procedures.put(name, newRange(defineContext.WORD().getSymbol()));
+    private void put(
+        ImmutableMultimap.Builder<String, Range> declarations, int token, int prefixLength) {
+      if (token != SyntaxTree.NONE) {
+        var name = toLowerCase(syntaxTree.tokenText(token).substring(prefixLength));
+        declarations.put(name, syntaxTree.tokenRange(token));
+      }
     }
 
     public Declarations build() {
@@ -0,0 +1,41 @@
+package com.mikosik.logoserver.analyse.declaration;
+
+import static com.google.common.base.Ascii.toLowerCase;
+
+import com.google.common.collect.ImmutableMultimap;
+import com.mikosik.logoserver.analyse.parser.SyntaxTree;
+import org.eclipse.lsp4j.Range;
+
+/**
+ * Holds references to variables and procedures as maps from lower case name (variable names
+ * without leading {@code :}) to ranges of references, in document order.
+ */
+public record References(
+    ImmutableMultimap<String, Range> variables, ImmutableMultimap<String, Range> procedures) {
+  private static final References EMPTY =
+      new References(ImmutableMultimap.of(), ImmutableMultimap.of());
+
+  /**
+   * @return references without any names
+   */
+  public static References empty() {
+    return EMPTY;
+  }
+
+  /**
+   * @param references indexes of reference tokens of {@code syntaxTree} in document order
+   */
+  public static References of(SyntaxTree syntaxTree, int[] references) {
+    var variables = ImmutableMultimap.<String, Range>builder();
+    var procedures = ImmutableMultimap.<String, Range>builder();
+    for (int token : references) {
+      var text = toLowerCase(syntaxTree.tokenText(token));
+      if (text.startsWith(":")) {
+        variables.put(text.substring(1), syntaxTree.tokenRange(token));
+      } else {
+        procedures.put(text, syntaxTree.tokenRange(token));
+      }
+    }
+    return new References(variables.build(), procedures.build());
+  }
+}
@@ -1,38 +1,63 @@
 package com.mikosik.logoserver.analyse.declaration;
 
-import com.google.common.collect.ImmutableList;
-import com.mikosik.logoserver.analyse.parser.antlr.LogoBaseListener;
-import com.mikosik.logoserver.analyse.parser.antlr.LogoParser.CallContext;
-import com.mikosik.logoserver.analyse.parser.antlr.LogoParser.DocumentContext;
-import com.mikosik.logoserver.analyse.parser.antlr.LogoParser.ThingshortContext;
-import org.antlr.v4.runtime.Token;
-import org.antlr.v4.runtime.tree.ParseTreeWalker;
+import static com.mikosik.logoserver.analyse.parser.SyntaxTree.NONE;
+
+import com.mikosik.logoserver.analyse.parser.SyntaxTree;
+import com.mikosik.logoserver.analyse.parser.antlr.LogoLexer;
+import com.mikosik.logoserver.analyse.parser.antlr.LogoParser;
+import java.util.Arrays;
 
 /**
- * Finds all variable and procedure references in a given parse tree.
+ * Finds all variable and procedure references in a given syntax tree.
  */
 public class ReferencesProvider {
-  public ImmutableList<Token> referencesFrom(DocumentContext parseTree) {
-    var listener = new Listener();
-    new ParseTreeWalker().walk(listener, parseTree);
-    return listener.build();
+  /**
+   * @return indexes of reference tokens in document order
+   */
+  public int[] referencesFrom(SyntaxTree syntaxTree) {
+    var collector = collector(syntaxTree);
+    for (int node = 0; node < syntaxTree.nodeCount(); node++) {
+      collector.visit(node);
+    }
+    return collector.build();
+  }
+
+  public Collector collector(SyntaxTree syntaxTree) {
+    return new Collector(syntaxTree);
   }
 
-  private static class Listener extends LogoBaseListener {
-    private final ImmutableList.Builder<Token> builder = ImmutableList.builder();
+  /**
+   * Collects references from nodes visited in pre-order, so that single traversal of a tree
+   * can feed several analyses.
+   */
+  public static class Collector {
+    private final SyntaxTree syntaxTree;
+    private int[] references = new int[16];
+    private int count = 0;
 
-    @Override
-    public void enterThingshort(ThingshortContext thingshortContext) {
-      builder.add(thingshortContext.COLON_NAME().getSymbol());
+    private Collector(SyntaxTree syntaxTree) {
+      this.syntaxTree = syntaxTree;
     }
 
-    @Override
-    public void enterCall(CallContext callContext) {
-      builder.add(callContext.NAME().getSymbol());
+    public void visit(int node) {
+      int token = switch (syntaxTree.kind(node)) {
+        case LogoParser.RULE_thingshort -> syntaxTree.childToken(node, LogoLexer.COLON_NAME);
+        case LogoParser.RULE_call -> syntaxTree.childToken(node, LogoLexer.NAME);
+        default -> NONE;
+      };
+      if (token != NONE) {
+        if (count == references.length) {
+          references = Arrays.copyOf(references, count * 2);
+        }
+        references[count++] = token;
+      }
     }
 
-    public ImmutableList<Token> build() {
-      return builder.build();
+    /**
+     * @return indexes of reference tokens in document order
+     */
+    public int[] build() {
+      return Arrays.copyOf(references, count);
     }
   }
 }
@@ -0,0 +1,148 @@
+package com.mikosik.logoserver.analyse.declaration;
+
+import static com.google.common.base.Ascii.toLowerCase;
+
+import com.google.common.collect.ImmutableList;
+import com.mikosik.logoserver.analyse.parser.SyntaxTree;
+import java.util.HashMap;
+import org.eclipse.lsp4j.Range;
+
+/**
+ * Index of variable and procedure references of a single document version, each of them already
+ * resolved to ranges of declarations whose names are equal to referenced name.
+ * References are stored in document order as packed arrays of their start and end characters,
+ * with line-start table pointing at the first reference of each line, so finding declarations
+ * at a given position is a binary search within one line that does not allocate.
+ * Immutable and thread-safe. Returned ranges are shared, so they must not be modified.
+ */
+public class SymbolIndex {
+  public static final int NONE = -1;
+  private static final SymbolIndex EMPTY = new SymbolIndex(
+      new int[] {0}, new int[0], new int[0], new String[0], new boolean[0], ImmutableList.of());
+  private final int[] lineStarts;
+  private final int[] starts;
+  private final int[] ends;
+  private final String[] names;
+  private final boolean[] variables;
+  private final ImmutableList<ImmutableList<Range>> declarations;
+
+  private SymbolIndex(
+      int[] lineStarts,
+      int[] starts,
+      int[] ends,
+      String[] names,
+      boolean[] variables,
+      ImmutableList<ImmutableList<Range>> declarations) {
+    this.lineStarts = lineStarts;
+    this.starts = starts;
+    this.ends = ends;
+    this.names = names;
+    this.variables = variables;
+    this.declarations = declarations;
+  }
+
+  /**
+   * @return index without any references
+   */
+  public static SymbolIndex empty() {
+    return EMPTY;
+  }
+
+  /**
+   * @param references indexes of reference tokens of {@code syntaxTree} in document order
+   */
+  public static SymbolIndex of(SyntaxTree syntaxTree, int[] references, Declarations declarations) {
+    int lineCount = references.length == 0
+        ? 0
+        : syntaxTree.tokenLine(references[references.length - 1]) + 1;
+    var lineStarts = new int[lineCount + 1];
+    var starts = new int[references.length];
+    var ends = new int[references.length];
+    var names = new String[references.length];
+    var variables = new boolean[references.length];
+    var resolved = ImmutableList.<ImmutableList<Range>>builderWithExpectedSize(references.length);
+    var cache = new HashMap<String, ImmutableList<Range>>();
+    for (int i = 0; i < references.length; i++) {
+      int token = references[i];
+      lineStarts[syntaxTree.tokenLine(token) + 1]++;
+      starts[i] = syntaxTree.tokenCharacter(token);
+      ends[i] = starts[i] + syntaxTree.tokenLength(token);
+      var text = toLowerCase(syntaxTree.tokenText(token));
+      variables[i] = isVariableReference(text);
+      names[i] = variables[i] ? text.substring(1) : text;
+      resolved.add(cache.computeIfAbsent(text, t -> resolve(t, declarations)));
+    }
+    for (int line = 0; line < lineCount; line++) {
+      lineStarts[line + 1] += lineStarts[line];
+    }
+    return new SymbolIndex(lineStarts, starts, ends, names, variables, resolved.build());
+  }
+
+  private static ImmutableList<Range> resolve(String text, Declarations declarations) {
+    if (isVariableReference(text)) {
+      return declarations.variables().get(text.substring(1)).asList();
+    } else {
+      return declarations.procedures().get(text).asList();
+    }
+  }
+
+  private static boolean isVariableReference(String text) {
+    return text.startsWith(":");
+  }
+
+  /**
+   * @return ranges of declarations of a reference at given position (position right after
+   *     the reference also counts) or empty list when there is no reference there
+   */
+  public ImmutableList<Range> declarationsAt(int line, int character) {
+    int reference = referenceAt(line, character);
+    return reference == NONE ? ImmutableList.of() : declarations.get(reference);
+  }
+
+  /**
+   * @return reference at given position (position right after the reference also counts) or
+   *     {@link #NONE} when there is no reference there
+   */
+  public int referenceAt(int line, int character) {
+    if (line < 0 || lineStarts.length - 1 <= line) {
+      return NONE;
+    }
+    int from = lineStarts[line];
+    int low = from;
+    int high = lineStarts[line + 1];
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (starts[middle] <= character) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    int reference = low - 1;
+    if (from <= reference && character <= ends[reference]) {
+      return reference;
+    }
+    return NONE;
+  }
+
+  /**
+   * @return lower case name of referenced variable (without leading {@code :}) or procedure
+   */
+  public String name(int reference) {
+    return names[reference];
+  }
+
+  /**
+   * @return true when given reference refers to a variable, false when it refers to a procedure
+   */
+  public boolean isVariable(int reference) {
+    return variables[reference];
+  }
+
+  /**
+   * @return ranges of declarations in this document of given reference
+   */
+  public ImmutableList<Range> declarations(int reference) {
+    return declarations.get(reference);
+  }
+}
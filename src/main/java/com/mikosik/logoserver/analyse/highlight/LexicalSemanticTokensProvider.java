@@ -0,0 +1,84 @@
+package com.mikosik.logoserver.analyse.highlight;
+
+import static com.mikosik.logoserver.analyse.base.TokenModifier.DEFINITION;
+import static com.mikosik.logoserver.analyse.base.TokenType.FUNCTION;
+import static com.mikosik.logoserver.analyse.base.TokenType.NUMBER;
+import static com.mikosik.logoserver.analyse.base.TokenType.STRING;
+import static com.mikosik.logoserver.analyse.base.TokenType.VARIABLE;
+
+import com.mikosik.logoserver.analyse.base.TokenType;
+import com.mikosik.logoserver.analyse.parser.KeywordTable;
+import com.mikosik.logoserver.analyse.parser.SyntaxTree;
+import com.mikosik.logoserver.analyse.parser.antlr.LogoLexer;
+import org.eclipse.lsp4j.Range;
+
+/**
+ * Provider of semantic tokens classified by token types alone, in a single linear scan of
+ * tokens, so it works for lexer-only documents (see
+ * {@link com.mikosik.logoserver.analyse.parser.Parser#lex(String)}). It approximates
+ * {@link SemanticTokensProvider}: keywords, numbers, words and variable references are
+ * classified the same way regardless of statement they belong to, and procedure definitions are
+ * recognized as names following {@code to} keyword. Names of called procedures are not
+ * classified as they cannot be told apart from other names without parsing.
+ */
+public class LexicalSemanticTokensProvider {
+  private static final int TO = KeywordTable.logo().typeOf("to");
+  private static final int NO_MODIFIERS = 0;
+  private static final int DEFINITION_MASK =
+      SemanticTokensMarshaller.buildTokenModifierMask(DEFINITION);
+
+  public SemanticTokensData semanticTokensOf(SyntaxTree syntaxTree) {
+    return semanticTokensOf(syntaxTree, 0, syntaxTree.tokenCount());
+  }
+
+  /**
+   * @return semantic tokens of tokens intersecting given range
+   */
+  public SemanticTokensData semanticTokensOf(SyntaxTree syntaxTree, Range range) {
+    var start = range.getStart();
+    var end = range.getEnd();
+    int firstToken = syntaxTree.tokensBefore(start.getLine(), start.getCharacter());
+    int tokenEnd = syntaxTree.tokensStartingBefore(end.getLine(), end.getCharacter());
+    if (tokenEnd <= firstToken) {
+      return SemanticTokensData.empty();
+    }
+    return semanticTokensOf(syntaxTree, firstToken, tokenEnd);
+  }
+
+  private static SemanticTokensData semanticTokensOf(
+      SyntaxTree syntaxTree, int firstToken, int tokenEnd) {
+    var marshaller = new SemanticTokensMarshaller(tokenEnd - firstToken);
+    int previousType = firstToken == 0 ? 0 : syntaxTree.tokenType(firstToken - 1);
+    for (int token = firstToken; token < tokenEnd; token++) {
+      int type = syntaxTree.tokenType(token);
+      var contextFree = TokenTypeTable.contextFree(type);
+      if (contextFree != null) {
+        add(marshaller, syntaxTree, token, contextFree, NO_MODIFIERS);
+      } else if (type == LogoLexer.NUMBER) {
+        add(marshaller, syntaxTree, token, NUMBER, NO_MODIFIERS);
+      } else if (type == LogoLexer.WORD) {
+        add(marshaller, syntaxTree, token, STRING, NO_MODIFIERS);
+      } else if (type == LogoLexer.COLON_NAME) {
+        add(marshaller, syntaxTree, token, VARIABLE, NO_MODIFIERS);
+      } else if (type == LogoLexer.NAME && previousType == TO) {
+        add(marshaller, syntaxTree, token, FUNCTION, DEFINITION_MASK);
+      }
+      previousType = type;
+    }
+    return marshaller.build();
+  }
+
+  private static void add(
+      SemanticTokensMarshaller marshaller,
+      SyntaxTree tree,
+      int token,
+      TokenType tokenType,
+      int modifiers) {
+    marshaller.add(
+        tree.tokenLine(token),
+        tree.tokenCharacter(token),
+        tree.tokenLength(token),
+        tokenType,
+        modifiers);
+  }
+}
@@ -0,0 +1,72 @@
+package com.mikosik.logoserver.analyse.highlight;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.RandomAccess;
+
+/**
+ * Immutable list of encoded semantic tokens (see {@link SemanticTokensMarshaller}) backed by
+ * {@code int[]}. Elements can be read without boxing with {@link #getInt(int)} and the list is
+ * written to JSON without boxing by {@code SemanticTokensDataTypeAdapter}, so it can be used as
+ * data of LSP4J {@code SemanticTokens} and {@code SemanticTokensEdit}.
+ */
+public final class SemanticTokensData extends AbstractList<Integer> implements RandomAccess {
+  private static final SemanticTokensData EMPTY = new SemanticTokensData(new int[0], 0, 0);
+  private final int[] data;
+  private final int from;
+  private final int to;
+
+  /**
+   * Wraps array without copying it, caller must not modify it afterwards.
+   */
+  SemanticTokensData(int[] data, int from, int to) {
+    this.data = data;
+    this.from = from;
+    this.to = to;
+  }
+
+  public static SemanticTokensData of(int... data) {
+    return new SemanticTokensData(data.clone(), 0, data.length);
+  }
+
+  public static SemanticTokensData empty() {
+    return EMPTY;
+  }
+
+  public int getInt(int index) {
+    Objects.checkIndex(index, size());
+    return data[from + index];
+  }
+
+  @Override
+  public Integer get(int index) {
+    return getInt(index);
+  }
+
+  @Override
+  public int size() {
+    return to - from;
+  }
+
+  /**
+   * @return view of this list sharing its array
+   */
+  @Override
+  public SemanticTokensData subList(int fromIndex, int toIndex) {
+    Objects.checkFromToIndex(fromIndex, toIndex, size());
+    return new SemanticTokensData(data, from + fromIndex, from + toIndex);
+  }
+
+  public int[] toIntArray() {
+    return Arrays.copyOfRange(data, from, to);
+  }
+
+  /**
+   * @return index of the first element that differs from element of {@code other} list at the
+   *     same index, or -1 when lists are equal
+   */
+  int mismatch(SemanticTokensData other) {
+    return Arrays.mismatch(data, from, to, other.data, other.from, other.to);
+  }
+}
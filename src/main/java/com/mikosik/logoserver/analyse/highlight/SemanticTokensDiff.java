@@ -0,0 +1,36 @@
+package com.mikosik.logoserver.analyse.highlight;
+
+import com.google.common.collect.ImmutableList;
+import org.eclipse.lsp4j.SemanticTokensEdit;
+
+/**
+ * Computes edits that turn previously sent semantic tokens into current ones, so that
+ * {@code textDocument/semanticTokens/full/delta} response contains only tokens that changed.
+ * Single edit replaces everything between common prefix and common suffix of both arrays.
+ * Typing changes a contiguous range of tokens, for which it is the minimal edit.
+ * Prefix and suffix are trimmed to whole tokens (5 integers each) so edits never split a token.
+ */
+public class SemanticTokensDiff {
+  private static final int TOKEN_SIZE = 5;
+
+  public static ImmutableList<SemanticTokensEdit> diff(
+      SemanticTokensData previous, SemanticTokensData current) {
+    int prefix = previous.mismatch(current);
+    if (prefix == -1) {
+      return ImmutableList.of();
+    }
+    prefix -= prefix % TOKEN_SIZE;
+    int previousSize = previous.size();
+    int currentSize = current.size();
+    int maxSuffix = Math.min(previousSize, currentSize) - prefix;
+    int suffix = 0;
+    while (suffix < maxSuffix
+        && previous.getInt(previousSize - 1 - suffix) == current.getInt(currentSize - 1 - suffix)) {
+      suffix++;
+    }
+    suffix -= suffix % TOKEN_SIZE;
+    int deleteCount = previousSize - prefix - suffix;
+    var data = current.subList(prefix, currentSize - suffix);
+    return ImmutableList.of(new SemanticTokensEdit(prefix, deleteCount, data));
+  }
+}
@@ -1,8 +1,8 @@
 package com.mikosik.logoserver.analyse.highlight;
 
-import com.google.common.collect.ImmutableList;
 import com.mikosik.logoserver.analyse.base.TokenModifier;
 import com.mikosik.logoserver.analyse.base.TokenType;
+import java.util.Arrays;
 
 /**
  * Builder for SemanticTokens using relative positioning as specified in the LSP.
@@ -16,22 +16,48 @@ import com.mikosik.logoserver.analyse.base.TokenType;
  * - length: the length of the token
  * - tokenType: the type of the token
  * - tokenModifiers: bit flags for token modifiers
+ * Integers are stored in growable {@code int[]}, so adding a token does not allocate unless
+ * the array has to grow. Marshaller must not be used after {@link #build()}.
  */
 public class SemanticTokensMarshaller {
-  private final ImmutableList.Builder<Integer> data = ImmutableList.builder();
+  private static final int TOKEN_SIZE = 5;
+  private int[] data;
+  private int size = 0;
   private int previousLine = 0;
   private int previousStartChar = 0;
 
+  public SemanticTokensMarshaller() {
+    this(16);
+  }
+
+  /**
+   * @param expectedTokens number of tokens that array is sized for up front
+   */
+  public SemanticTokensMarshaller(int expectedTokens) {
+    this.data = new int[Math.max(1, expectedTokens) * TOKEN_SIZE];
+  }
+
   public SemanticTokensMarshaller add(
       int line, int startChar, int length, TokenType tokenType, TokenModifier... tokenModifiers) {
+    return add(line, startChar, length, tokenType, buildTokenModifierMask(tokenModifiers));
+  }
+
+  /**
+   * @param tokenModifiers bit flags of token modifiers (see {@link #buildTokenModifierMask})
+   */
+  public SemanticTokensMarshaller add(
+      int line, int startChar, int length, TokenType tokenType, int tokenModifiers) {
     int deltaLine = line - previousLine;
     int deltaStartChar = (deltaLine == 0) ? startChar - previousStartChar : startChar;
 
-    data.add(deltaLine);
-    data.add(deltaStartChar);
-    data.add(length);
-    data.add(tokenType.ordinal());
-    data.add(buildTokenModifierMask(tokenModifiers));
+    if (size + TOKEN_SIZE > data.length) {
+      data = Arrays.copyOf(data, data.length * 2);
+    }
+    data[size++] = deltaLine;
+    data[size++] = deltaStartChar;
+    data[size++] = length;
+    data[size++] = tokenType.ordinal();
+    data[size++] = tokenModifiers;
 
     previousLine = line;
     previousStartChar = startChar;
@@ -47,7 +73,7 @@ public class SemanticTokensMarshaller {
     return result;
   }
 
-  public ImmutableList<Integer> build() {
-    return data.build();
+  public SemanticTokensData build() {
+    return new SemanticTokensData(data, 0, size);
   }
 }
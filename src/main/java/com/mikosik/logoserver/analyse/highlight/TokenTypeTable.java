@@ -0,0 +1,57 @@
+package com.mikosik.logoserver.analyse.highlight;
+
+import static com.mikosik.logoserver.analyse.base.TokenType.KEYWORD;
+
+import com.mikosik.logoserver.analyse.base.TokenType;
+import com.mikosik.logoserver.analyse.parser.KeywordTable;
+import com.mikosik.logoserver.analyse.parser.antlr.LogoLexer;
+
+/**
+ * Lookup tables indexed by ANTLR token type, built once from vocabulary of {@link LogoLexer}
+ * generated from Logo grammar, so they follow the grammar without manual updates.
+ * Keywords are classified by their token type alone, while {@code NUMBER}, {@code WORD},
+ * {@code NAME} and {@code COLON_NAME} tokens are classified by the statement they belong to.
+ */
+class TokenTypeTable {
+  private static final TokenType[] CONTEXT_FREE = contextFree();
+  private static final boolean[] CONTEXT_DEPENDENT = contextDependent();
+
+  /**
+   * @return semantic token type of given ANTLR token type that does not depend on token context
+   *     or null when there is no such type
+   */
+  static TokenType contextFree(int antlrTokenType) {
+    return 0 <= antlrTokenType && antlrTokenType < CONTEXT_FREE.length
+        ? CONTEXT_FREE[antlrTokenType]
+        : null;
+  }
+
+  /**
+   * @return true when token of given ANTLR token type can have semantic token type that depends
+   *     on its context
+   */
+  static boolean contextDependent(int antlrTokenType) {
+    return 0 <= antlrTokenType
+        && antlrTokenType < CONTEXT_DEPENDENT.length
+        && CONTEXT_DEPENDENT[antlrTokenType];
+  }
+
+  private static TokenType[] contextFree() {
+    var result = new TokenType[LogoLexer.VOCABULARY.getMaxTokenType() + 1];
+    for (int type = 0; type < result.length; type++) {
+      if (KeywordTable.logo().isKeyword(type)) {
+        result[type] = KEYWORD;
+      }
+    }
+    return result;
+  }
+
+  private static boolean[] contextDependent() {
+    var result = new boolean[LogoLexer.VOCABULARY.getMaxTokenType() + 1];
+    result[LogoLexer.NUMBER] = true;
+    result[LogoLexer.WORD] = true;
+    result[LogoLexer.NAME] = true;
+    result[LogoLexer.COLON_NAME] = true;
+    return result;
+  }
+}
@@ -0,0 +1,85 @@
+package com.mikosik.logoserver.analyse.parser;
+
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.IntStream;
+import org.antlr.v4.runtime.misc.Interval;
+
+/**
+ * {@link CharStream} over a string that presents ASCII letters to the lexer in lower case
+ * ({@link #LA(int)}) while {@link #getText(Interval)} returns text in its original case.
+ * Characters are folded lazily, one at a time, so no copy of the document is created.
+ * Stream indexes UTF-16 code units of the string which matches position encoding used by LSP.
+ */
+public class CaseInsensitiveCharStream implements CharStream {
+  private final String text;
+  private int index;
+
+  public CaseInsensitiveCharStream(String text) {
+    this.text = text;
+    this.index = 0;
+  }
+
+  @Override
+  public String getText(Interval interval) {
+    int start = Math.min(interval.a, text.length());
+    int stop = Math.min(interval.b + 1, text.length());
+    return start < stop ? text.substring(start, stop) : "";
+  }
+
+  @Override
+  public void consume() {
+    if (index >= text.length()) {
+      throw new IllegalStateException("cannot consume EOF");
+    }
+    index++;
+  }
+
+  @Override
+  public int LA(int i) {
+    if (i == 0) {
+      return 0;
+    }
+    int position = i > 0 ? index + i - 1 : index + i;
+    if (position < 0 || text.length() <= position) {
+      return IntStream.EOF;
+    }
+    return toLowerCase(text.charAt(position));
+  }
+
+  private static int toLowerCase(char c) {
+    return 'A' <= c && c <= 'Z' ? c + ('a' - 'A') : c;
+  }
+
+  @Override
+  public int mark() {
+    return -1;
+  }
+
+  @Override
+  public void release(int marker) {}
+
+  @Override
+  public int index() {
+    return index;
+  }
+
+  @Override
+  public void seek(int index) {
+    this.index = Math.min(index, text.length());
+  }
+
+  @Override
+  public int size() {
+    return text.length();
+  }
+
+  @Override
+  public String getSourceName() {
+    return UNKNOWN_SOURCE_NAME;
+  }
+
+  @Override
+  public String toString() {
+    return text;
+  }
+}
@@ -0,0 +1,169 @@
+package com.mikosik.logoserver.analyse.parser;
+
+import com.mikosik.logoserver.analyse.parser.antlr.LogoLexer;
+import com.mikosik.logoserver.analyse.parser.antlr.LogoParser;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.function.Supplier;
+import org.antlr.v4.runtime.atn.ATN;
+import org.antlr.v4.runtime.atn.PredictionContextCache;
+import org.antlr.v4.runtime.dfa.DFA;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded cache of DFA states built by lexer and parser ATN simulators.
+ * ANTLR generated recognizers keep DFA states in static fields that grow without bound for
+ * the lifetime of the process. Recognizers configured with {@link Generation} from this cache
+ * use its DFA instead. Whole generation is dropped (and a new empty one created) once it holds
+ * more than configured number of states or has not been used for configured idle time.
+ * Number of states stands in for memory used by the cache, which cannot be measured cheaply.
+ * Counting states walks every DFA decision, so it is not done by {@link #acquire()} but
+ * periodically by cleaner thread of the shared cache (see {@link #clearIfFull()}), which means
+ * cache can exceed its limit until the next check.
+ * Recognizers still using dropped generation finish their parse with it and switch to the
+ * current generation before the next parse. Thread-safe, acquiring generation does not lock.
+ */
+public class DfaCache {
+  private static final Logger logger = LoggerFactory.getLogger(DfaCache.class);
+  private static final DfaCache SHARED = newSharedCache();
+  private static final Duration MAX_CLEANER_INTERVAL = Duration.ofSeconds(10);
+  private final int maxStates;
+  private final Duration idleTimeout;
+  private final Supplier<Instant> clock;
+  private volatile Generation generation;
+  private volatile Instant lastUse;
+
+  public DfaCache(int maxStates, Duration idleTimeout, Supplier<Instant> clock) {
+    this.maxStates = maxStates;
+    this.idleTimeout = idleTimeout;
+    this.clock = clock;
+    this.generation = new Generation();
+    this.lastUse = null;
+  }
+
+  /**
+   * @return cache shared by all parsers in the server that is cleared periodically when idle
+   */
+  public static DfaCache shared() {
+    return SHARED;
+  }
+
+  private static DfaCache newSharedCache() {
+    var settings = ParserSettings.fromSystemProperties();
+    var cache = new DfaCache(
+        settings.dfaCacheMaxStates(), settings.dfaCacheIdleTimeout(), Instant::now);
+    var interval = settings.dfaCacheIdleTimeout().compareTo(MAX_CLEANER_INTERVAL) < 0
+        ? settings.dfaCacheIdleTimeout()
+        : MAX_CLEANER_INTERVAL;
+    Thread.ofVirtual().name("dfa-cache-cleaner").start(() -> {
+      while (true) {
+        try {
+          Thread.sleep(interval);
+        } catch (InterruptedException e) {
+          return;
+        }
+        cache.clearIfIdle();
+        cache.clearIfFull();
+      }
+    });
+    return cache;
+  }
+
+  /**
+   * @return generation that should be used for the next parse
+   */
+  public Generation acquire() {
+    var now = clock.get();
+    if (isIdle(now)) {
+      clearIfIdle();
+    }
+    lastUse = now;
+    return generation;
+  }
+
+  public synchronized void clearIfIdle() {
+    if (isIdle(clock.get())) {
+      clear("idle timeout");
+    }
+  }
+
+  /**
+   * Clears cache that holds more than configured number of states. Reads sizes of DFA state
+   * maps and prediction context caches without locks ANTLR uses when it writes them, so counted
+   * number of states is an estimate only.
+   */
+  public synchronized void clearIfFull() {
+    var states = generation.states();
+    if (maxStates < states) {
+      clear(states + " states");
+    }
+  }
+
+  /**
+   * @return true when cache has been used but not within idle timeout
+   */
+  private boolean isIdle(Instant now) {
+    var used = lastUse;
+    return used != null && !now.isBefore(used.plus(idleTimeout));
+  }
+
+  private void clear(String reason) {
+    logger.info("Clearing DFA cache ({}).", reason);
+    generation = new Generation();
+    lastUse = null;
+  }
+
+  /**
+   * DFA arrays and prediction context caches for lexer and parser simulators.
+   */
+  public static class Generation {
+    private final DFA[] lexerDfa = newDfa(LogoLexer._ATN);
+    private final PredictionContextCache lexerContextCache = new PredictionContextCache();
+    private final DFA[] parserDfa = newDfa(LogoParser._ATN);
+    private final PredictionContextCache parserContextCache = new PredictionContextCache();
+
+    private static DFA[] newDfa(ATN atn) {
+      var result = new DFA[atn.getNumberOfDecisions()];
+      for (int i = 0; i < result.length; i++) {
+        result[i] = new DFA(atn.getDecisionState(i), i);
+      }
+      return result;
+    }
+
+    public DFA[] lexerDfa() {
+      return lexerDfa;
+    }
+
+    public PredictionContextCache lexerContextCache() {
+      return lexerContextCache;
+    }
+
+    public DFA[] parserDfa() {
+      return parserDfa;
+    }
+
+    public PredictionContextCache parserContextCache() {
+      return parserContextCache;
+    }
+
+    /**
+     * @return approximate number of cached DFA states and prediction contexts. As other threads
+     *     may add states concurrently, the result is an estimate only.
+     */
+    public int states() {
+      return statesIn(lexerDfa)
+          + lexerContextCache.size()
+          + statesIn(parserDfa)
+          + parserContextCache.size();
+    }
+
+    private static int statesIn(DFA[] dfa) {
+      int result = 0;
+      for (var decision : dfa) {
+        result += decision.states.size();
+      }
+      return result;
+    }
+  }
+}
@@ -0,0 +1,166 @@
+package com.mikosik.logoserver.analyse.parser;
+
+import static java.util.Comparator.comparingInt;
+
+import com.mikosik.logoserver.analyse.parser.antlr.LogoLexer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.Vocabulary;
+
+/**
+ * Perfect hash table mapping keyword literals declared in Logo grammar ({@code 'forward'},
+ * {@code 'fd'}, {@code 'substring?'}, ...) to their token types.
+ * Table is built once from lexer {@link Vocabulary} using hash-and-displace scheme: keywords
+ * are grouped into buckets by their hash and for each bucket a displacement is searched that
+ * moves all its keywords into free slots. Lookup hashes candidate characters once, reads
+ * displacement of its bucket and compares candidate with at most one keyword. Lookups do not
+ * allocate. Immutable and thread-safe.
+ */
+public class KeywordTable {
+  private static final KeywordTable LOGO = new KeywordTable(LogoLexer.VOCABULARY);
+  private final int[] displacements;
+  private final String[] keywords;
+  private final int[] types;
+  private final boolean[] isKeyword;
+
+  KeywordTable(Vocabulary vocabulary) {
+    var entries = new ArrayList<Entry>();
+    for (int type = 1; type <= vocabulary.getMaxTokenType(); type++) {
+      var literal = literalOf(vocabulary, type);
+      if (literal != null && 'a' <= literal.charAt(0) && literal.charAt(0) <= 'z') {
+        entries.add(new Entry(literal, type, hash(literal.length(), literal::charAt)));
+      }
+    }
+    this.displacements = new int[powerOfTwoAtLeast(entries.size())];
+    this.keywords = new String[powerOfTwoAtLeast(entries.size() * 2)];
+    this.types = new int[keywords.length];
+    this.isKeyword = new boolean[vocabulary.getMaxTokenType() + 1];
+    entries.forEach(e -> isKeyword[e.type] = true);
+    var buckets = new ArrayList<List<Entry>>();
+    for (int i = 0; i < displacements.length; i++) {
+      buckets.add(new ArrayList<>());
+    }
+    entries.forEach(e -> buckets.get(bucketOf(e.hash)).add(e));
+    buckets.sort(comparingInt(List<Entry>::size).reversed());
+    for (var bucket : buckets) {
+      place(bucket);
+    }
+  }
+
+  private void place(List<Entry> bucket) {
+    if (bucket.isEmpty()) {
+      return;
+    }
+    for (int displacement = 0; displacement < 1 << 20; displacement++) {
+      if (fits(bucket, displacement)) {
+        displacements[bucketOf(bucket.getFirst().hash)] = displacement;
+        for (var entry : bucket) {
+          int slot = slotOf(entry.hash, displacement);
+          keywords[slot] = entry.keyword;
+          types[slot] = entry.type;
+        }
+        return;
+      }
+    }
+    throw new IllegalStateException("Cannot build perfect hash table for keywords " + bucket);
+  }
+
+  private boolean fits(List<Entry> bucket, int displacement) {
+    for (int i = 0; i < bucket.size(); i++) {
+      int slot = slotOf(bucket.get(i).hash, displacement);
+      if (keywords[slot] != null) {
+        return false;
+      }
+      for (int j = 0; j < i; j++) {
+        if (slotOf(bucket.get(j).hash, displacement) == slot) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return table of keywords declared in Logo grammar
+   */
+  public static KeywordTable logo() {
+    return LOGO;
+  }
+
+  /**
+   * @return literal text (without quotes) of given token type or null when token type is not
+   *     a literal token (for example {@code NAME})
+   */
+  static String literalOf(Vocabulary vocabulary, int type) {
+    var literalName = vocabulary.getLiteralName(type);
+    if (literalName == null) {
+      return null;
+    }
+    return literalName.substring(1, literalName.length() - 1);
+  }
+
+  /**
+   * @param length number of characters of the candidate
+   * @param charAt returns lower case character of the candidate at given index
+   * @return type of keyword equal to the candidate or {@link Token#INVALID_TYPE}
+   */
+  public int typeOf(int length, IntUnaryOperator charAt) {
+    int hash = hash(length, charAt);
+    int slot = slotOf(hash, displacements[bucketOf(hash)]);
+    var keyword = keywords[slot];
+    if (keyword == null || keyword.length() != length) {
+      return Token.INVALID_TYPE;
+    }
+    for (int i = 0; i < length; i++) {
+      if (keyword.charAt(i) != charAt.applyAsInt(i)) {
+        return Token.INVALID_TYPE;
+      }
+    }
+    return types[slot];
+  }
+
+  public int typeOf(String candidate) {
+    return typeOf(candidate.length(), candidate::charAt);
+  }
+
+  /**
+   * @return true when given token type is a type of keyword from this table
+   */
+  public boolean isKeyword(int tokenType) {
+    return 0 <= tokenType && tokenType < isKeyword.length && isKeyword[tokenType];
+  }
+
+  private static int hash(int length, IntUnaryOperator charAt) {
+    int hash = 0;
+    for (int i = 0; i < length; i++) {
+      hash = hash * 31 + charAt.applyAsInt(i);
+    }
+    return hash;
+  }
+
+  private int bucketOf(int hash) {
+    return mix(hash) & (displacements.length - 1);
+  }
+
+  private int slotOf(int hash, int displacement) {
+    return mix(hash ^ displacement * 0x9E3779B9) & (keywords.length - 1);
+  }
+
+  // finalizer of murmur3 hash
+  private static int mix(int hash) {
+    hash ^= hash >>> 16;
+    hash *= 0x85EBCA6B;
+    hash ^= hash >>> 13;
+    hash *= 0xC2B2AE35;
+    hash ^= hash >>> 16;
+    return hash;
+  }
+
+  private static int powerOfTwoAtLeast(int value) {
+    return Math.max(1, Integer.highestOneBit(Math.max(1, value - 1)) << 1);
+  }
+
+  private record Entry(String keyword, int type, int hash) {}
+}
@@ -0,0 +1,307 @@
+package com.mikosik.logoserver.analyse.parser;
+
+import com.mikosik.logoserver.analyse.parser.antlr.LogoLexer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntUnaryOperator;
+import org.antlr.v4.runtime.ANTLRErrorListener;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonTokenFactory;
+import org.antlr.v4.runtime.IntStream;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenFactory;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.misc.Pair;
+
+/**
+ * Hand written replacement of {@link LogoLexer} producing the same tokens.
+ * Instead of running keyword literals through lexer ATN, identifiers are lexed as
+ * {@code NAME} and classified into keyword token types with {@link KeywordTable}.
+ * Keywords that are not valid names ({@code 'shown?'}, {@code 'do.while'}, ...) are matched
+ * explicitly when name is followed by {@code ?} or {@code .} character.
+ * Expects input that presents characters in lower case, like {@link CaseInsensitiveCharStream}.
+ * Lexical errors are reported with the same messages as generated lexer.
+ */
+public class KeywordTableLexer implements TokenSource {
+  private static final Symbols SYMBOLS = new Symbols();
+  private final List<ANTLRErrorListener> listeners = new ArrayList<>();
+  private TokenFactory<?> tokenFactory = CommonTokenFactory.DEFAULT;
+  private Pair<TokenSource, CharStream> source;
+  private CharStream input;
+  private final IntUnaryOperator candidate = i -> input.LA(i + 1);
+  private int line;
+  private int charPositionInLine;
+
+  public KeywordTableLexer(CharStream input) {
+    setInputStream(input);
+  }
+
+  public void setInputStream(CharStream input) {
+    this.input = input;
+    this.source = new Pair<>(this, input);
+    this.line = 1;
+    this.charPositionInLine = 0;
+  }
+
+  public void addErrorListener(ANTLRErrorListener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeErrorListeners() {
+    listeners.clear();
+  }
+
+  @Override
+  public Token nextToken() {
+    while (true) {
+      int start = input.index();
+      int startLine = line;
+      int startCharPositionInLine = charPositionInLine;
+      int c = input.LA(1);
+      if (c == IntStream.EOF) {
+        return tokenFactory.create(source, Token.EOF, null, Token.DEFAULT_CHANNEL, start,
+            start - 1, line, charPositionInLine);
+      }
+      int type = lexToken(c);
+      if (type == Token.INVALID_TYPE) {
+        reportError(start, startLine, startCharPositionInLine);
+      } else if (type != LogoLexer.WS) {
+        return tokenFactory.create(source, type, null, Token.DEFAULT_CHANNEL, start,
+            input.index() - 1, startLine, startCharPositionInLine);
+      }
+    }
+  }
+
+  /**
+   * Consumes single token.
+   * @return type of consumed token or {@link Token#INVALID_TYPE} when characters consumed do
+   *     not form a token
+   */
+  private int lexToken(int c) {
+    if (isLetter(c)) {
+      return lexNameOrKeyword();
+    } else if (isDigit(c) || c == '.' || (c == '-' && isNumberAfterMinus())) {
+      return lexNumber();
+    } else if (c == ':' || c == '"') {
+      consume(1);
+      if (!isLetter(input.LA(1))) {
+        consumeFailingCharacter();
+        return Token.INVALID_TYPE;
+      }
+      consume(nameLength(1));
+      return c == ':' ? LogoLexer.COLON_NAME : LogoLexer.WORD;
+    } else if (isWhitespace(c)) {
+      while (isWhitespace(input.LA(1))) {
+        consume(1);
+      }
+      return LogoLexer.WS;
+    } else {
+      consume(1);
+      return SYMBOLS.punctuationType(c);
+    }
+  }
+
+  private int lexNameOrKeyword() {
+    int length = nameLength(1);
+    int type = KeywordTable.logo().typeOf(length, candidate);
+    int next = input.LA(length + 1);
+    if (next == '?' || next == '.') {
+      int keywordLength = SYMBOLS.longestSymbolicKeyword(candidate, length);
+      if (keywordLength != 0) {
+        int keywordType = KeywordTable.logo().typeOf(keywordLength, candidate);
+        consume(keywordLength);
+        return keywordType;
+      }
+    }
+    consume(length);
+    return type == Token.INVALID_TYPE ? LogoLexer.NAME : type;
+  }
+
+  private boolean isNumberAfterMinus() {
+    int next = input.LA(2);
+    return isDigit(next) || (next == '.' && isDigit(input.LA(3)));
+  }
+
+  /**
+   * Lexes {@code '-'? DIGIT+ ('.' DIGIT)? | '-'? '.' DIGIT+}.
+   */
+  private int lexNumber() {
+    if (input.LA(1) == '-') {
+      consume(1);
+    }
+    if (input.LA(1) == '.') {
+      consume(1);
+      if (!isDigit(input.LA(1))) {
+        consumeFailingCharacter();
+        return Token.INVALID_TYPE;
+      }
+      consumeDigits();
+    } else {
+      consumeDigits();
+      if (input.LA(1) == '.' && isDigit(input.LA(2))) {
+        consume(2);
+      }
+    }
+    return LogoLexer.NUMBER;
+  }
+
+  private void consumeDigits() {
+    while (isDigit(input.LA(1))) {
+      consume(1);
+    }
+  }
+
+  /**
+   * @return length of name fragment starting at given lookahead position
+   */
+  private int nameLength(int lookahead) {
+    int length = 1;
+    while (isNameCharacter(input.LA(lookahead + length))) {
+      length++;
+    }
+    return length;
+  }
+
+  /**
+   * Generated lexer includes character it failed at in error message and skips it.
+   */
+  private void consumeFailingCharacter() {
+    if (input.LA(1) != IntStream.EOF) {
+      consume(1);
+    }
+  }
+
+  private void consume(int count) {
+    for (int i = 0; i < count; i++) {
+      if (input.LA(1) == '\n') {
+        line++;
+        charPositionInLine = 0;
+      } else {
+        charPositionInLine++;
+      }
+      input.consume();
+    }
+  }
+
+  private void reportError(int start, int startLine, int startCharPositionInLine) {
+    var text = input.getText(Interval.of(start, input.index() - 1));
+    var message = "token recognition error at: '" + escape(text) + "'";
+    for (var listener : listeners) {
+      listener.syntaxError(null, null, startLine, startCharPositionInLine, message, null);
+    }
+  }
+
+  private static String escape(String text) {
+    return text.replace("\n", "\\n").replace("\r", "\\r").replace("\t", "\\t");
+  }
+
+  private static boolean isLetter(int c) {
+    return 'a' <= c && c <= 'z';
+  }
+
+  private static boolean isDigit(int c) {
+    return '0' <= c && c <= '9';
+  }
+
+  private static boolean isNameCharacter(int c) {
+    return isLetter(c) || isDigit(c) || c == '_';
+  }
+
+  private static boolean isWhitespace(int c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+  }
+
+  @Override
+  public int getLine() {
+    return line;
+  }
+
+  public void setLine(int line) {
+    this.line = line;
+  }
+
+  @Override
+  public int getCharPositionInLine() {
+    return charPositionInLine;
+  }
+
+  public void setCharPositionInLine(int charPositionInLine) {
+    this.charPositionInLine = charPositionInLine;
+  }
+
+  @Override
+  public CharStream getInputStream() {
+    return input;
+  }
+
+  @Override
+  public String getSourceName() {
+    return input.getSourceName();
+  }
+
+  @Override
+  public void setTokenFactory(TokenFactory<?> tokenFactory) {
+    this.tokenFactory = tokenFactory;
+  }
+
+  @Override
+  public TokenFactory<?> getTokenFactory() {
+    return tokenFactory;
+  }
+
+  /**
+   * Punctuation and keywords of {@link LogoLexer} vocabulary that cannot be lexed as names.
+   */
+  private static class Symbols {
+    private final int[] punctuationTypes = new int[128];
+    private final String[] symbolicKeywords;
+
+    private Symbols() {
+      var symbolic = new ArrayList<String>();
+      var vocabulary = LogoLexer.VOCABULARY;
+      for (int type = 1; type <= vocabulary.getMaxTokenType(); type++) {
+        var literal = KeywordTable.literalOf(vocabulary, type);
+        if (literal == null) {
+          continue;
+        }
+        if (literal.length() == 1 && !isLetter(literal.charAt(0))) {
+          punctuationTypes[literal.charAt(0)] = type;
+        } else if (!literal.chars().allMatch(KeywordTableLexer::isNameCharacter)) {
+          symbolic.add(literal);
+        }
+      }
+      this.symbolicKeywords = symbolic.toArray(String[]::new);
+    }
+
+    private int punctuationType(int c) {
+      return c < punctuationTypes.length && punctuationTypes[c] != 0
+          ? punctuationTypes[c]
+          : Token.INVALID_TYPE;
+    }
+
+    /**
+     * @return length of the longest keyword that is not a valid name, is longer than
+     *     {@code nameLength} and matches candidate characters, or 0 when there is no such keyword
+     */
+    private int longestSymbolicKeyword(IntUnaryOperator candidate, int nameLength) {
+      int result = 0;
+      for (var keyword : symbolicKeywords) {
+        if (nameLength < keyword.length() && result < keyword.length()
+            && matches(keyword, candidate)) {
+          result = keyword.length();
+        }
+      }
+      return result;
+    }
+
+    private static boolean matches(String keyword, IntUnaryOperator candidate) {
+      for (int i = 0; i < keyword.length(); i++) {
+        if (keyword.charAt(i) != candidate.applyAsInt(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+}
@@ -0,0 +1,73 @@
+package com.mikosik.logoserver.analyse.parser;
+
+import java.time.Duration;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Limits time spent on a single parse and lets caller abandon a parse whose result is no longer
+ * needed. Checked cooperatively by the token stream the parser reads from, so both prediction
+ * and error recovery are interrupted. Deadline starts when the budget is created.
+ */
+class ParseBudget {
+  private static final int CHECK_INTERVAL = 256;
+  private static final Duration UNLIMITED_TIME = Duration.ofNanos(Long.MAX_VALUE / 2);
+  private static final ParseBudget UNLIMITED = new ParseBudget(UNLIMITED_TIME, () -> false);
+  private final long deadline;
+  private final LongSupplier nanoTime;
+  private final BooleanSupplier isCancelled;
+  private int untilCheck = 1;
+
+  ParseBudget(Duration timeBudget, BooleanSupplier isCancelled) {
+    this(timeBudget, isCancelled, System::nanoTime);
+  }
+
+  ParseBudget(Duration timeBudget, BooleanSupplier isCancelled, LongSupplier nanoTime) {
+    this.nanoTime = nanoTime;
+    this.deadline = nanoTime.getAsLong() + timeBudget.toNanos();
+    this.isCancelled = isCancelled;
+  }
+
+  static ParseBudget unlimited() {
+    return UNLIMITED;
+  }
+
+  /**
+   * @return budget without time limit that is exceeded only when parse gets cancelled
+   */
+  static ParseBudget cancellable(BooleanSupplier isCancelled) {
+    return new ParseBudget(UNLIMITED_TIME, isCancelled);
+  }
+
+  /**
+   * Checks the budget once per {@link #CHECK_INTERVAL} calls so that it can be called for
+   * every token lookahead. Can be called concurrently by parsers of chunks of single document,
+   * in which case some checks may be skipped.
+   * @throws ExceededException when parse has been cancelled or has run out of time
+   */
+  void check() {
+    if (--untilCheck <= 0) {
+      untilCheck = CHECK_INTERVAL;
+      if (isCancelled.getAsBoolean()) {
+        throw new ExceededException(true);
+      }
+      if (nanoTime.getAsLong() - deadline > 0) {
+        throw new ExceededException(false);
+      }
+    }
+  }
+
+  static class ExceededException extends RuntimeException {
+    private final boolean cancelled;
+
+    private ExceededException(boolean cancelled) {
+      super(cancelled ? "Parse has been cancelled." : "Parse time budget exceeded.", null, false,
+          false);
+      this.cancelled = cancelled;
+    }
+
+    boolean cancelled() {
+      return cancelled;
+    }
+  }
+}
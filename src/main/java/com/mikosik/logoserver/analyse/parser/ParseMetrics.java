@@ -0,0 +1,99 @@
+package com.mikosik.logoserver.analyse.parser;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters describing how documents are parsed. Thread-safe.
+ */
+public class ParseMetrics {
+  private static final ParseMetrics SHARED = new ParseMetrics();
+  private final LongAdder sllParses = new LongAdder();
+  private final LongAdder llFallbacks = new LongAdder();
+  private final LongAdder parallelParses = new LongAdder();
+  private final LongAdder parallelFallbacks = new LongAdder();
+  private final LongAdder timedOutParses = new LongAdder();
+  private final LongAdder cancelledParses = new LongAdder();
+
+  /**
+   * @return instance shared by all parsers in the server
+   */
+  public static ParseMetrics shared() {
+    return SHARED;
+  }
+
+  void recordSllParse() {
+    sllParses.increment();
+  }
+
+  void recordLlFallback() {
+    llFallbacks.increment();
+  }
+
+  void recordParallelParse() {
+    parallelParses.increment();
+  }
+
+  void recordParallelFallback() {
+    parallelFallbacks.increment();
+  }
+
+  void recordTimedOutParse() {
+    timedOutParses.increment();
+  }
+
+  void recordCancelledParse() {
+    cancelledParses.increment();
+  }
+
+  /**
+   * @return number of parses completed successfully in SLL prediction mode
+   */
+  public long sllParses() {
+    return sllParses.sum();
+  }
+
+  /**
+   * @return number of parses that failed in SLL prediction mode and were repeated in LL mode
+   */
+  public long llFallbacks() {
+    return llFallbacks.sum();
+  }
+
+  /**
+   * @return number of documents parsed as chunks in parallel
+   */
+  public long parallelParses() {
+    return parallelParses.sum();
+  }
+
+  /**
+   * @return number of documents split into chunks that had to be parsed again sequentially
+   */
+  public long parallelFallbacks() {
+    return parallelFallbacks.sum();
+  }
+
+  /**
+   * @return number of parses abandoned because they exceeded parse time budget
+   */
+  public long timedOutParses() {
+    return timedOutParses.sum();
+  }
+
+  /**
+   * @return number of parses abandoned because their caller cancelled them
+   */
+  public long cancelledParses() {
+    return cancelledParses.sum();
+  }
+
+  @Override
+  public String toString() {
+    return "ParseMetrics{sllParses=" + sllParses()
+        + ", llFallbacks=" + llFallbacks()
+        + ", parallelParses=" + parallelParses()
+        + ", parallelFallbacks=" + parallelFallbacks()
+        + ", timedOutParses=" + timedOutParses()
+        + ", cancelledParses=" + cancelledParses() + "}";
+  }
+}
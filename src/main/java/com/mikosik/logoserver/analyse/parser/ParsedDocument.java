@@ -1,10 +1,14 @@
 package com.mikosik.logoserver.analyse.parser;
 
 import com.google.common.collect.ImmutableList;
-import com.mikosik.logoserver.analyse.parser.antlr.LogoParser.DocumentContext;
 import org.eclipse.lsp4j.Diagnostic;
 
 /**
- * Parse tree of document together with diagnostics.
+ * Syntax tree of document together with diagnostics.
+ *
+ * @param lexerOnly whether parsing has been abandoned, in which case syntax tree contains all
+ *     tokens of the document as direct children of the root node and diagnostics contain lexical
+ *     errors only
  */
-public record ParsedDocument(DocumentContext parseTree, ImmutableList<Diagnostic> diagnostics) {}
+public record ParsedDocument(
+    SyntaxTree syntaxTree, ImmutableList<Diagnostic> diagnostics, boolean lexerOnly) {}
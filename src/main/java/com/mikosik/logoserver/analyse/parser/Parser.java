@@ -1,40 +1,577 @@
 package com.mikosik.logoserver.analyse.parser;
 
 import static com.mikosik.logoserver.analyse.base.Ranges.newRange;
+import static com.mikosik.logoserver.analyse.parser.SyntaxTree.NONE;
+import static com.mikosik.logoserver.analyse.parser.SyntaxTree.ROOT;
 
+import static com.mikosik.logoserver.analyse.DocumentScheduler.Priority.BACKGROUND;
+
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableList.Builder;
+import com.mikosik.logoserver.analyse.DocumentScheduler;
 import com.mikosik.logoserver.analyse.parser.antlr.LogoLexer;
 import com.mikosik.logoserver.analyse.parser.antlr.LogoParser;
-import java.util.Locale;
+import com.mikosik.logoserver.analyse.parser.antlr.LogoParser.DocumentContext;
+import com.mikosik.logoserver.analyse.text.TextBuffer;
+import com.mikosik.logoserver.analyse.text.TextEdit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import org.antlr.v4.runtime.BailErrorStrategy;
 import org.antlr.v4.runtime.BaseErrorListener;
-import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CommonToken;
+import org.antlr.v4.runtime.CommonTokenFactory;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.ListTokenSource;
 import org.antlr.v4.runtime.RecognitionException;
 import org.antlr.v4.runtime.Recognizer;
 import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenFactory;
+import org.antlr.v4.runtime.TokenSource;
+import org.antlr.v4.runtime.WritableToken;
+import org.antlr.v4.runtime.atn.LexerATNSimulator;
+import org.antlr.v4.runtime.atn.ParserATNSimulator;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.Pair;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.eclipse.lsp4j.Diagnostic;
 import org.eclipse.lsp4j.DiagnosticSeverity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Antlr based Logo files parser.
+ * Lexer and parser instances are reused between parses performed by the same thread and use
+ * DFA states from {@link DfaCache} instead of unbounded static cache of generated recognizers.
+ * Parse that exceeds {@link ParserSettings#parseTimeBudget()} or gets cancelled by its caller is
+ * abandoned and degrades to lexer-only result (see {@link ParsedDocument#lexerOnly()}).
  */
 public class Parser {
+  private static final Logger logger = LoggerFactory.getLogger(Parser.class);
+  private static final int MIN_CHUNK_SIZE = 1_000;
+  private static final ThreadLocal<Recognizers> recognizers =
+      ThreadLocal.withInitial(Recognizers::new);
+  private final ParserSettings settings;
+  private final ParseMetrics metrics;
+  private final DfaCache dfaCache;
+  private final DocumentScheduler scheduler;
+
+  public Parser() {
+    this(ParserSettings.fromSystemProperties(), ParseMetrics.shared(), DfaCache.shared());
+  }
+
+  public Parser(ParserSettings settings, ParseMetrics metrics, DfaCache dfaCache) {
+    this(settings, metrics, dfaCache, DocumentScheduler.shared());
+  }
+
+  /**
+   * @param scheduler runs chunks of document parsed in parallel, so parallel parsing stays
+   *     within concurrency limit of the scheduler
+   */
+  public Parser(
+      ParserSettings settings,
+      ParseMetrics metrics,
+      DfaCache dfaCache,
+      DocumentScheduler scheduler) {
+    this.settings = settings;
+    this.metrics = metrics;
+    this.dfaCache = dfaCache;
+    this.scheduler = scheduler;
+  }
+
+  public ParserSettings settings() {
+    return settings;
+  }
+
   public ParsedDocument parse(String document) {
+    return parse(document, () -> false);
+  }
+
+  /**
+   * @param isCancelled polled during parsing, returns true when result is no longer needed
+   */
+  public ParsedDocument parse(String document, BooleanSupplier isCancelled) {
+    return parseWithin(document, new ParseBudget(settings.parseTimeBudget(), isCancelled));
+  }
+
+  /**
+   * Parses document without {@link ParserSettings#parseTimeBudget()}, which is meant for
+   * interactive parses. Used for parses run in background, where a long document has to end up
+   * fully parsed however long it takes.
+   * @param isCancelled polled during parsing, returns true when result is no longer needed
+   */
+  public ParsedDocument parseInBackground(String document, BooleanSupplier isCancelled) {
+    return parseWithin(document, ParseBudget.cancellable(isCancelled));
+  }
+
+  private ParsedDocument parseWithin(String document, ParseBudget budget) {
+    try {
+      return parse(document, budget);
+    } catch (ParseBudget.ExceededException e) {
+      return lexerOnly(document, e);
+    }
+  }
+
+  private ParsedDocument parse(String document, ParseBudget budget) {
+    if (settings.parallelParsingMinLength() <= document.length()) {
+      var parsedDocument = parseInParallel(document, budget);
+      if (parsedDocument != null) {
+        return parsedDocument;
+      }
+    }
+    return parseSequentially(document, budget);
+  }
+
+  private ParsedDocument parseSequentially(String document, ParseBudget budget) {
+    var errorListener = new LogoErrorListener();
+    var recognizers =
+        acquireRecognizers(document, CommonTokenFactory.DEFAULT, 1, 0, errorListener, budget);
+    try {
+      var documentContext = parseDocument(recognizers, errorListener);
+      var syntaxTree = SyntaxTree.of(documentContext, document);
+      return new ParsedDocument(syntaxTree, errorListener.diagnostics.build(), false);
+    } finally {
+      recognizers.release();
+    }
+  }
+
+  private ParsedDocument lexerOnly(String document, ParseBudget.ExceededException exception) {
+    if (exception.cancelled()) {
+      metrics.recordCancelledParse();
+    } else {
+      metrics.recordTimedOutParse();
+    }
+    logger.debug("{} Falling back to lexer-only result.", exception.getMessage());
+    return lex(document);
+  }
+
+  /**
+   * Lexes document without parsing it, which takes a fraction of parse time.
+   * @return lexer-only document with tokens only, all of them being direct children of the root
+   *     node, and lexer diagnostics
+   */
+  public ParsedDocument lex(String document) {
+    var errorListener = new LogoErrorListener();
+    var recognizers = acquireRecognizers(
+        document, CommonTokenFactory.DEFAULT, 1, 0, errorListener, ParseBudget.unlimited());
+    try {
+      recognizers.tokenStream.fill();
+      var syntaxTree = new SyntaxTree.Builder(document).startNode(LogoParser.RULE_document);
+      recognizers.tokenStream.getTokens().forEach(syntaxTree::addToken);
+      var diagnostics = errorListener.diagnostics.build();
+      return new ParsedDocument(syntaxTree.endNode().build(), diagnostics, true);
+    } finally {
+      recognizers.release();
+    }
+  }
+
+  /**
+   * Splits document into chunks at top-level procedure definitions (see {@link TopLevelChunks})
+   * and parses them in parallel. Every chunk is submitted as a background task of the
+   * {@link DocumentScheduler}, while the calling thread parses chunks that no scheduler thread
+   * has taken yet, so parsing never waits for a free scheduler thread and never runs on more
+   * threads than the scheduler allows (plus the calling one). Document is lexed once up front
+   * so tokens of all chunks, and therefore diagnostics reported for them, are positioned
+   * relative to the whole document. Parse trees and diagnostics of chunks are stitched in
+   * document order and converted to single {@link SyntaxTree}.
+   * @return parsed document or null when it has to be parsed sequentially because it does not
+   *     split into multiple chunks, contains lexical errors or some chunk contains syntax error
+   *     that could be caused by chunk boundary
+   */
+  private ParsedDocument parseInParallel(String document, ParseBudget budget) {
+    var lexerListener = new LogoErrorListener();
+    List<Token> tokens;
+    var recognizers =
+        acquireRecognizers(document, CommonTokenFactory.DEFAULT, 1, 0, lexerListener, budget);
+    try {
+      recognizers.tokenStream.fill();
+      tokens = new ArrayList<>(recognizers.tokenStream.getTokens());
+    } finally {
+      recognizers.release();
+    }
+    if (!lexerListener.diagnostics.build().isEmpty()) {
+      return null;
+    }
+    tokens.removeLast();
+    int parallelism = scheduler.maxConcurrency();
+    int minChunkSize = Math.max(MIN_CHUNK_SIZE, tokens.size() / (parallelism * 4));
+    var chunks = TopLevelChunks.split(tokens, minChunkSize);
+    if (chunks.size() < 2) {
+      return null;
+    }
+    var tasks = chunks.stream().map(chunk -> new ChunkTask(chunk, budget)).toList();
+    for (var task : tasks.subList(1, tasks.size())) {
+      scheduler.execute("parse-chunk", BACKGROUND, task::run);
+    }
+    tasks.forEach(ChunkTask::run);
+    var parsedChunks = tasks.stream().map(ChunkTask::join).toList();
+    if (parsedChunks.contains(null)) {
+      metrics.recordParallelFallback();
+      logger.debug("Parallel parsing failed, falling back to sequential parsing.");
+      return null;
+    }
+    metrics.recordParallelParse();
+    for (int i = 0; i < tokens.size(); i++) {
+      ((WritableToken) tokens.get(i)).setTokenIndex(i);
+    }
+    var syntaxTree = new SyntaxTree.Builder(document).startNode(LogoParser.RULE_document);
+    var diagnostics = ImmutableList.<Diagnostic>builder();
+    for (var parsedChunk : parsedChunks) {
+      parsedChunk.parseTree().statement().forEach(syntaxTree::addParseTree);
+      diagnostics.addAll(parsedChunk.diagnostics());
+    }
+    return new ParsedDocument(syntaxTree.endNode().build(), diagnostics.build(), false);
+  }
+
+  /**
+   * @return parsed chunk or null when chunk has not been fully consumed or contains syntax error
+   *     at its end, as such error could be reported differently when parsing whole document
+   */
+  private ParsedChunk parseChunk(List<Token> tokens, ParseBudget budget) {
+    var errorListener = new LogoErrorListener();
+    var recognizers = acquireRecognizers(tokens, budget);
+    try {
+      var document = parseDocument(recognizers, errorListener);
+      var valid = !errorListener.errorAtEof && recognizers.tokenStream.LA(1) == Token.EOF;
+      return valid ? new ParsedChunk(document, errorListener.diagnostics.build()) : null;
+    } finally {
+      recognizers.release();
+    }
+  }
+
+  private record ParsedChunk(DocumentContext parseTree, ImmutableList<Diagnostic> diagnostics) {}
+
+  /**
+   * Parse of a chunk run by whichever thread gets to it first.
+   */
+  private final class ChunkTask {
+    private final List<Token> tokens;
+    private final ParseBudget budget;
+    private final AtomicBoolean taken = new AtomicBoolean();
+    private final CompletableFuture<ParsedChunk> result = new CompletableFuture<>();
+
+    private ChunkTask(List<Token> tokens, ParseBudget budget) {
+      this.tokens = tokens;
+      this.budget = budget;
+    }
+
+    private void run() {
+      if (taken.compareAndSet(false, true)) {
+        try {
+          result.complete(parseChunk(tokens, budget));
+        } catch (Throwable e) {
+          result.completeExceptionally(e);
+        }
+      }
+    }
+
+    /**
+     * @throws ParseBudget.ExceededException (as any other exception) thrown by parse of the chunk
+     */
+    private ParsedChunk join() {
+      try {
+        return result.join();
+      } catch (CompletionException e) {
+        Throwables.throwIfUnchecked(e.getCause());
+        throw e;
+      }
+    }
+  }
+
+  /**
+   * Parses document after a single edit has been applied to it.
+   * Only top-level statements touched by the edit (together with their direct neighbours) are
+   * lexed and parsed again. They are spliced with untouched statements of the previous parse tree
+   * whose tokens are shifted to their new positions.
+   * Falls back to full parse when previous document or reparsed region contains syntax errors,
+   * as error recovery can cross statement boundaries, and when previous document is lexer-only.
+   */
+  public ParsedDocument reparse(ParsedDocument previous, TextEdit edit, TextBuffer text) {
+    return reparse(previous, edit, text, () -> false);
+  }
+
+  /**
+   * @param isCancelled polled during parsing, returns true when result is no longer needed
+   */
+  public ParsedDocument reparse(
+      ParsedDocument previous, TextEdit edit, TextBuffer text, BooleanSupplier isCancelled) {
+    var document = text.toString();
+    var budget = new ParseBudget(settings.parseTimeBudget(), isCancelled);
+    try {
+      return reparse(previous, edit, document, budget);
+    } catch (ParseBudget.ExceededException e) {
+      return lexerOnly(document, e);
+    }
+  }
+
+  private ParsedDocument reparse(
+      ParsedDocument previous, TextEdit edit, String document, ParseBudget budget) {
+    var tree = previous.syntaxTree();
+    var statements = statementsOf(tree);
+    if (!previous.diagnostics().isEmpty() || previous.lexerOnly() || statements.isEmpty()) {
+      return parse(document, budget);
+    }
+    int first = firstAffected(tree, statements, edit.start());
+    int last = lastAffected(tree, statements, edit.oldEnd());
+    int firstToken = tree.firstToken(statements.get(first));
+    var regionStartsAtToken = tree.tokenStart(firstToken) <= edit.start();
+    var regionStart = regionStartsAtToken ? tree.tokenStart(firstToken) : edit.start();
+    var regionLine = regionStartsAtToken ? tree.tokenLine(firstToken) : edit.startLine();
+    var regionCharacter =
+        regionStartsAtToken ? tree.tokenCharacter(firstToken) : edit.startCharacter();
+    var regionOldEnd = Math.max(endOf(tree, statements.get(last)), edit.oldEnd());
+    var regionText = document.substring(regionStart, regionOldEnd + edit.delta());
+
+    var region =
+        parseRegion(regionText, regionStart, regionLine + 1, regionCharacter, budget);
+    if (region == null) {
+      return parse(document, budget);
+    }
+
+    var syntaxTree = new SyntaxTree.Builder(document).startNode(LogoParser.RULE_document);
+    statements.subList(0, first).forEach(s -> syntaxTree.addSubtree(tree, s));
+    region.statement().forEach(syntaxTree::addParseTree);
+    for (var statement : statements.subList(last + 1, statements.size())) {
+      syntaxTree.addShiftedSubtree(tree, statement, edit);
+    }
+    return new ParsedDocument(syntaxTree.endNode().build(), ImmutableList.of(), false);
+  }
+
+  private static List<Integer> statementsOf(SyntaxTree tree) {
+    var result = new ArrayList<Integer>();
+    for (int node = tree.firstChild(ROOT); node != NONE; node = tree.nextSibling(node)) {
+      result.add(node);
+    }
+    return result;
+  }
+
+  private static int firstAffected(SyntaxTree tree, List<Integer> statements, int editStart) {
+    int result = 0;
+    for (int i = 0; i < statements.size(); i++) {
+      if (tree.tokenStart(tree.firstToken(statements.get(i))) < editStart) {
+        result = i;
+      } else {
+        break;
+      }
+    }
+    return result;
+  }
+
+  private static int lastAffected(SyntaxTree tree, List<Integer> statements, int editOldEnd) {
+    for (int i = 0; i < statements.size(); i++) {
+      if (endOf(tree, statements.get(i)) > editOldEnd) {
+        return i;
+      }
+    }
+    return statements.size() - 1;
+  }
+
+  /**
+   * @return offset of the first character after the last token of a node
+   */
+  private static int endOf(SyntaxTree tree, int node) {
+    int lastToken = tree.tokenEnd(node) - 1;
+    return tree.tokenStart(lastToken) + tree.tokenLength(lastToken);
+  }
+
+  /**
+   * Parses text that starts at given offset, line and character of the whole document.
+   * @return parse tree or null when text contains syntax errors or has not been fully consumed
+   */
+  private DocumentContext parseRegion(
+      String text, int offset, int line, int character, ParseBudget budget) {
     var errorListener = new LogoErrorListener();
-    var logoLexer = new LogoLexer(CharStreams.fromString(document.toLowerCase(Locale.ROOT)));
-    logoLexer.removeErrorListeners();
-    logoLexer.addErrorListener(errorListener);
+    var tokenFactory = new OffsetTokenFactory(offset);
+    var recognizers =
+        acquireRecognizers(text, tokenFactory, line, character, errorListener, budget);
+    try {
+      var document = parseDocument(recognizers, errorListener);
+      var valid = errorListener.diagnostics.build().isEmpty()
+          && recognizers.tokenStream.LA(1) == Token.EOF;
+      return valid ? document : null;
+    } finally {
+      recognizers.release();
+    }
+  }
+
+  private Recognizers acquireRecognizers(
+      String text,
+      TokenFactory<?> tokenFactory,
+      int line,
+      int character,
+      LogoErrorListener errorListener,
+      ParseBudget budget) {
+    var result = recognizers.get();
+    result.reset(
+        dfaCache.acquire(), new CaseInsensitiveCharStream(text), tokenFactory, budget);
+    if (settings.keywordTableLexing()) {
+      result.useKeywordTableLexer(line, character, errorListener);
+    } else {
+      result.useLexer(line, character, errorListener);
+    }
+    return result;
+  }
+
+  private Recognizers acquireRecognizers(List<Token> tokens, ParseBudget budget) {
+    var result = recognizers.get();
+    result.reset(dfaCache.acquire(), Recognizers.EMPTY, CommonTokenFactory.DEFAULT, budget);
+    result.useTokens(tokens);
+    return result;
+  }
 
-    var logoParser = new LogoParser(new CommonTokenStream(logoLexer));
-    logoParser.removeErrorListeners();
-    logoParser.addErrorListener(errorListener);
+  /**
+   * Parses tokens with SLL prediction mode first (when enabled) as it is much faster than full LL
+   * mode. SLL parsing bails out at the first syntax error in which case tokens are parsed again
+   * with full LL mode and error reporting. That gives the same result as parsing with LL mode
+   * only, as SLL mode fails only for input that is invalid or needs full LL context to predict.
+   */
+  private DocumentContext parseDocument(Recognizers recognizers, LogoErrorListener listener) {
+    var logoParser = recognizers.parser;
+    if (settings.twoStageParsing()) {
+      logoParser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+      logoParser.setErrorHandler(new BailErrorStrategy());
+      try {
+        var document = logoParser.document();
+        metrics.recordSllParse();
+        return document;
+      } catch (ParseCancellationException e) {
+        metrics.recordLlFallback();
+        logger.debug("SLL parsing failed, falling back to LL parsing.");
+        logoParser.reset();
+      }
+    }
+    logoParser.getInterpreter().setPredictionMode(PredictionMode.LL);
+    logoParser.setErrorHandler(new DefaultErrorStrategy());
+    logoParser.addErrorListener(listener);
+    return logoParser.document();
+  }
+
+  /**
+   * Lexer, token stream and parser reused by a single thread.
+   */
+  private static class Recognizers {
+    private static final CharStream EMPTY = new CaseInsensitiveCharStream("");
+    private final LogoLexer lexer = new LogoLexer(EMPTY);
+    private final KeywordTableLexer keywordTableLexer = new KeywordTableLexer(EMPTY);
+    private final BudgetedTokenStream tokenStream = new BudgetedTokenStream(lexer);
+    private final LogoParser parser = new LogoParser(tokenStream);
+    private DfaCache.Generation generation;
+
+    private void reset(
+        DfaCache.Generation generation,
+        CharStream input,
+        TokenFactory<?> tokenFactory,
+        ParseBudget budget) {
+      if (this.generation != generation) {
+        this.generation = generation;
+        lexer.setInterpreter(new LexerATNSimulator(
+            lexer, LogoLexer._ATN, generation.lexerDfa(), generation.lexerContextCache()));
+        parser.setInterpreter(new ParserATNSimulator(
+            parser, LogoParser._ATN, generation.parserDfa(), generation.parserContextCache()));
+      }
+      lexer.setInputStream(input);
+      lexer.setTokenFactory(tokenFactory);
+      lexer.removeErrorListeners();
+      keywordTableLexer.setInputStream(input);
+      keywordTableLexer.setTokenFactory(tokenFactory);
+      keywordTableLexer.removeErrorListeners();
+      tokenStream.budget = budget;
+      parser.removeErrorListeners();
+    }
+
+    private void useLexer(int line, int character, LogoErrorListener errorListener) {
+      lexer.setLine(line);
+      lexer.setCharPositionInLine(character);
+      lexer.addErrorListener(errorListener);
+      tokenStream.setTokenSource(lexer);
+      parser.setTokenStream(tokenStream);
+    }
+
+    private void useKeywordTableLexer(
+        int line, int character, LogoErrorListener errorListener) {
+      keywordTableLexer.setLine(line);
+      keywordTableLexer.setCharPositionInLine(character);
+      keywordTableLexer.addErrorListener(errorListener);
+      tokenStream.setTokenSource(keywordTableLexer);
+      parser.setTokenStream(tokenStream);
+    }
+
+    private void useTokens(List<Token> tokens) {
+      tokenStream.setTokenSource(new ListTokenSource(tokens));
+      parser.setTokenStream(tokenStream);
+    }
+
+    /**
+     * Drops references to the last parsed document so it can be garbage collected.
+     */
+    private void release() {
+      lexer.setInputStream(EMPTY);
+      lexer.removeErrorListeners();
+      keywordTableLexer.setInputStream(EMPTY);
+      keywordTableLexer.removeErrorListeners();
+      tokenStream.setTokenSource(lexer);
+      tokenStream.budget = ParseBudget.unlimited();
+      parser.setTokenStream(tokenStream);
+      parser.removeErrorListeners();
+    }
+  }
+
+  /**
+   * Token stream that checks {@link ParseBudget} whenever parser looks at a token.
+   */
+  private static class BudgetedTokenStream extends CommonTokenStream {
+    private ParseBudget budget = ParseBudget.unlimited();
+
+    private BudgetedTokenStream(TokenSource tokenSource) {
+      super(tokenSource);
+    }
 
-    return new ParsedDocument(logoParser.document(), errorListener.diagnostics.build());
+    @Override
+    public Token LT(int k) {
+      budget.check();
+      return super.LT(k);
+    }
+  }
+
+  /**
+   * Creates tokens positioned relative to the whole document for text that starts at given
+   * offset of the document. Token text is copied as token positions no longer match the
+   * character stream they were lexed from.
+   */
+  private static class OffsetTokenFactory extends CommonTokenFactory {
+    private final int offset;
+
+    private OffsetTokenFactory(int offset) {
+      super(true);
+      this.offset = offset;
+    }
+
+    @Override
+    public CommonToken create(
+        Pair<TokenSource, CharStream> source,
+        int type,
+        String text,
+        int channel,
+        int start,
+        int stop,
+        int line,
+        int charPositionInLine) {
+      var token = super.create(source, type, text, channel, start, stop, line, charPositionInLine);
+      token.setStartIndex(start + offset);
+      token.setStopIndex(stop + offset);
+      return token;
+    }
   }
 
   public static class LogoErrorListener extends BaseErrorListener {
     private final Builder<Diagnostic> diagnostics = ImmutableList.builder();
+    private boolean errorAtEof = false;
 
     @Override
     public void syntaxError(
@@ -44,6 +581,9 @@ public class Parser {
         int charPositionInLine,
         String msg,
         RecognitionException e) {
+      if (offendingSymbol instanceof Token token && token.getType() == Token.EOF) {
+        errorAtEof = true;
+      }
       var length = lengthOf(offendingSymbol);
       var range = newRange(line, charPositionInLine, length);
       diagnostics.add(new Diagnostic(range, msg, DiagnosticSeverity.Error, null));
@@ -0,0 +1,89 @@
+package com.mikosik.logoserver.analyse.parser;
+
+import java.time.Duration;
+
+/**
+ * Settings of {@link Parser}.
+ * Default values can be overridden with system properties prefixed with {@code logo.parser.}
+ * (for example {@code -Dlogo.parser.twoStageParsing=false}).
+ *
+ * @param twoStageParsing whether document is first parsed with faster SLL prediction mode and
+ *     parsed again with full LL prediction mode only when SLL parsing fails
+ * @param keywordTableLexing whether document is lexed with {@link KeywordTableLexer} instead of
+ *     generated ANTLR lexer
+ * @param parallelParsingMinLength length of document (in characters) from which document is
+ *     split at top-level procedure definitions and its chunks are parsed in parallel
+ * @param dfaCacheMaxStates number of DFA states and prediction contexts in {@link DfaCache} after
+ *     which it is cleared, it stands in for a bound on memory used by the cache, which cannot be
+ *     measured cheaply, and it is checked periodically, not on every parse
+ * @param dfaCacheIdleTimeout time without any parse after which {@link DfaCache} is cleared
+ *     (ISO-8601 duration when set via system property, for example {@code PT10M})
+ * @param parseTimeBudget time after which parse is abandoned and document gets lexer-only
+ *     result (see {@link ParsedDocument#lexerOnly()})
+ * @param lexerFirstMinLength length of document (in characters) from which document is only
+ *     lexed when it is opened or changed, so it can be highlighted right away, and it is parsed
+ *     in background afterwards
+ */
+public record ParserSettings(
+    boolean twoStageParsing,
+    boolean keywordTableLexing,
+    int parallelParsingMinLength,
+    int dfaCacheMaxStates,
+    Duration dfaCacheIdleTimeout,
+    Duration parseTimeBudget,
+    int lexerFirstMinLength) {
+  static final String PREFIX = "logo.parser.";
+  public static final ParserSettings DEFAULT =
+      new ParserSettings(
+      true, false, 32_768, 50_000, Duration.ofMinutes(10), Duration.ofSeconds(2), 262_144);
+
+  public static ParserSettings fromSystemProperties() {
+    return new ParserSettings(
+        booleanProperty("twoStageParsing", DEFAULT.twoStageParsing()),
+        booleanProperty("keywordTableLexing", DEFAULT.keywordTableLexing()),
+        intProperty("parallelParsingMinLength", DEFAULT.parallelParsingMinLength()),
+        intProperty("dfaCacheMaxStates", DEFAULT.dfaCacheMaxStates()),
+        durationProperty("dfaCacheIdleTimeout", DEFAULT.dfaCacheIdleTimeout()),
+        durationProperty("parseTimeBudget", DEFAULT.parseTimeBudget()),
+        intProperty("lexerFirstMinLength", DEFAULT.lexerFirstMinLength()));
+  }
+
+  private static boolean booleanProperty(String name, boolean defaultValue) {
+    var value = System.getProperty(PREFIX + name);
+    return value == null ? defaultValue : Boolean.parseBoolean(value);
+  }
+
+  private static int intProperty(String name, int defaultValue) {
+    return Integer.getInteger(PREFIX + name, defaultValue);
+  }
+
+  private static Duration durationProperty(String name, Duration defaultValue) {
+    var value = System.getProperty(PREFIX + name);
+    return value == null ? defaultValue : Duration.parse(value);
+  }
+
+  public ParserSettings withTwoStageParsing(boolean twoStageParsing) {
+    return new ParserSettings(twoStageParsing, keywordTableLexing, parallelParsingMinLength,
+        dfaCacheMaxStates, dfaCacheIdleTimeout, parseTimeBudget, lexerFirstMinLength);
+  }
+
+  public ParserSettings withKeywordTableLexing(boolean keywordTableLexing) {
+    return new ParserSettings(twoStageParsing, keywordTableLexing, parallelParsingMinLength,
+        dfaCacheMaxStates, dfaCacheIdleTimeout, parseTimeBudget, lexerFirstMinLength);
+  }
+
+  public ParserSettings withParallelParsingMinLength(int parallelParsingMinLength) {
+    return new ParserSettings(twoStageParsing, keywordTableLexing, parallelParsingMinLength,
+        dfaCacheMaxStates, dfaCacheIdleTimeout, parseTimeBudget, lexerFirstMinLength);
+  }
+
+  public ParserSettings withParseTimeBudget(Duration parseTimeBudget) {
+    return new ParserSettings(twoStageParsing, keywordTableLexing, parallelParsingMinLength,
+        dfaCacheMaxStates, dfaCacheIdleTimeout, parseTimeBudget, lexerFirstMinLength);
+  }
+
+  public ParserSettings withLexerFirstMinLength(int lexerFirstMinLength) {
+    return new ParserSettings(twoStageParsing, keywordTableLexing, parallelParsingMinLength,
+        dfaCacheMaxStates, dfaCacheIdleTimeout, parseTimeBudget, lexerFirstMinLength);
+  }
+}
@@ -0,0 +1,410 @@
+package com.mikosik.logoserver.analyse.parser;
+
+import com.mikosik.logoserver.analyse.parser.antlr.LogoParser;
+import com.mikosik.logoserver.analyse.text.TextEdit;
+import java.util.Arrays;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.TerminalNode;
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+
+/**
+ * Compact, immutable syntax tree of a document stored as a struct of {@code int} arrays.
+ * It is built once from ANTLR parse tree, so that ANTLR contexts, terminal nodes and tokens
+ * can be garbage collected right after parsing.
+ *
+ * <p>Nodes are numbered in pre-order with document node being {@link #ROOT}. Kind of a rule node
+ * is its ANTLR rule index (for example {@link LogoParser#RULE_to}), kind of a leaf node is
+ * {@link #TOKEN} or {@link #ERROR_TOKEN} (token skipped by parser error recovery).
+ * Descendants of a node occupy consecutive node numbers up to {@link #subtreeEnd(int)}.
+ * Tokens conjured by error recovery are not part of the tree as they do not exist in the text.
+ *
+ * <p>Tokens are numbered in document order. Their lines and characters are zero-based
+ * (as in LSP) and their text is a substring of the document text. As tokens are leaves of the
+ * tree, nodes between leaves of two tokens are exactly the nodes intersecting text between
+ * those tokens, which together with {@link #tokensBefore(int, int)} allows visiting only part
+ * of the tree that covers given range of the document.
+ */
+public class SyntaxTree {
+  public static final int ROOT = 0;
+  public static final int NONE = -1;
+  public static final int TOKEN = -1;
+  public static final int ERROR_TOKEN = -2;
+
+  private final String text;
+  private final int nodeCount;
+  private final int[] kinds;
+  private final int[] parents;
+  private final int[] subtreeEnds;
+  private final int[] firstTokens;
+  private final int[] tokenEnds;
+  private final int tokenCount;
+  private final int[] tokenTypes;
+  private final int[] tokenStarts;
+  private final int[] tokenLengths;
+  private final int[] tokenLines;
+  private final int[] tokenCharacters;
+  private final int[] tokenNodes;
+
+  private SyntaxTree(Builder builder) {
+    this.text = builder.text;
+    this.nodeCount = builder.nodeCount;
+    this.kinds = Arrays.copyOf(builder.kinds, nodeCount);
+    this.parents = Arrays.copyOf(builder.parents, nodeCount);
+    this.subtreeEnds = Arrays.copyOf(builder.subtreeEnds, nodeCount);
+    this.firstTokens = Arrays.copyOf(builder.firstTokens, nodeCount);
+    this.tokenEnds = Arrays.copyOf(builder.tokenEnds, nodeCount);
+    this.tokenCount = builder.tokenCount;
+    this.tokenTypes = Arrays.copyOf(builder.tokenTypes, tokenCount);
+    this.tokenStarts = Arrays.copyOf(builder.tokenStarts, tokenCount);
+    this.tokenLengths = Arrays.copyOf(builder.tokenLengths, tokenCount);
+    this.tokenLines = Arrays.copyOf(builder.tokenLines, tokenCount);
+    this.tokenCharacters = Arrays.copyOf(builder.tokenCharacters, tokenCount);
+    this.tokenNodes = new int[tokenCount];
+    for (int node = 0; node < nodeCount; node++) {
+      if (kinds[node] < 0) {
+        tokenNodes[firstTokens[node]] = node;
+      }
+    }
+  }
+
+  /**
+   * @param text document text that {@code document} has been parsed from
+   */
+  public static SyntaxTree of(ParserRuleContext document, String text) {
+    return new Builder(text).addParseTree(document).build();
+  }
+
+  public String text() {
+    return text;
+  }
+
+  public int nodeCount() {
+    return nodeCount;
+  }
+
+  public int kind(int node) {
+    return kinds[node];
+  }
+
+  public boolean isToken(int node) {
+    return kinds[node] < 0;
+  }
+
+  public int parent(int node) {
+    return parents[node];
+  }
+
+  public int firstChild(int node) {
+    return node + 1 < subtreeEnds[node] ? node + 1 : NONE;
+  }
+
+  public int nextSibling(int node) {
+    if (node == ROOT) {
+      return NONE;
+    }
+    int next = subtreeEnds[node];
+    return next < subtreeEnds[parents[node]] ? next : NONE;
+  }
+
+  /**
+   * @return number of the first node after given node that is not its descendant
+   */
+  public int subtreeEnd(int node) {
+    return subtreeEnds[node];
+  }
+
+  /**
+   * @return first token of a node or token of a leaf node
+   */
+  public int firstToken(int node) {
+    return firstTokens[node];
+  }
+
+  /**
+   * @return number of the first token after the last token of a node
+   */
+  public int tokenEnd(int node) {
+    return tokenEnds[node];
+  }
+
+  /**
+   * @return token of the first {@link #TOKEN} child of a node with given token type or
+   *     {@link #NONE} when there is no such child
+   */
+  public int childToken(int node, int tokenType) {
+    for (int child = firstChild(node); child != NONE; child = nextSibling(child)) {
+      if (kinds[child] == TOKEN && tokenTypes[firstTokens[child]] == tokenType) {
+        return firstTokens[child];
+      }
+    }
+    return NONE;
+  }
+
+  public int tokenCount() {
+    return tokenCount;
+  }
+
+  public int tokenType(int token) {
+    return tokenTypes[token];
+  }
+
+  /**
+   * @return offset of the first character of a token in document text
+   */
+  public int tokenStart(int token) {
+    return tokenStarts[token];
+  }
+
+  public int tokenLength(int token) {
+    return tokenLengths[token];
+  }
+
+  public int tokenLine(int token) {
+    return tokenLines[token];
+  }
+
+  public int tokenCharacter(int token) {
+    return tokenCharacters[token];
+  }
+
+  /**
+   * @return leaf node of a token
+   */
+  public int tokenNode(int token) {
+    return tokenNodes[token];
+  }
+
+  /**
+   * @return number of tokens that end at or before given position
+   */
+  public int tokensBefore(int line, int character) {
+    int low = 0;
+    int high = tokenCount;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      int end = tokenCharacters[middle] + tokenLengths[middle];
+      if (tokenLines[middle] < line || (tokenLines[middle] == line && end <= character)) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * @return number of tokens that start before given position
+   */
+  public int tokensStartingBefore(int line, int character) {
+    int low = 0;
+    int high = tokenCount;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (tokenLines[middle] < line
+          || (tokenLines[middle] == line && tokenCharacters[middle] < character)) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  public String tokenText(int token) {
+    return text.substring(tokenStarts[token], tokenStarts[token] + tokenLengths[token]);
+  }
+
+  public Range tokenRange(int token) {
+    int line = tokenLines[token];
+    int character = tokenCharacters[token];
+    return new Range(
+        new Position(line, character), new Position(line, character + tokenLengths[token]));
+  }
+
+  /**
+   * @return LISP-style representation of the tree in the same format as
+   *     {@link ParseTree#toStringTree(org.antlr.v4.runtime.Parser)}
+   */
+  public String toStringTree() {
+    var builder = new StringBuilder();
+    appendTree(ROOT, builder);
+    return builder.toString();
+  }
+
+  private void appendTree(int node, StringBuilder builder) {
+    if (isToken(node)) {
+      builder.append(tokenText(firstTokens[node]));
+      return;
+    }
+    var ruleName = LogoParser.ruleNames[kinds[node]];
+    if (firstChild(node) == NONE) {
+      builder.append(ruleName);
+      return;
+    }
+    builder.append('(').append(ruleName);
+    for (int child = firstChild(node); child != NONE; child = nextSibling(child)) {
+      builder.append(' ');
+      appendTree(child, builder);
+    }
+    builder.append(')');
+  }
+
+  /**
+   * Builds tree node by node in pre-order.
+   */
+  static class Builder {
+    private final String text;
+    private int nodeCount = 0;
+    private int[] kinds = new int[64];
+    private int[] parents = new int[64];
+    private int[] subtreeEnds = new int[64];
+    private int[] firstTokens = new int[64];
+    private int[] tokenEnds = new int[64];
+    private int tokenCount = 0;
+    private int[] tokenTypes = new int[64];
+    private int[] tokenStarts = new int[64];
+    private int[] tokenLengths = new int[64];
+    private int[] tokenLines = new int[64];
+    private int[] tokenCharacters = new int[64];
+    private int openNode = NONE;
+
+    Builder(String text) {
+      this.text = text;
+    }
+
+    Builder startNode(int kind) {
+      int node = newNode(kind);
+      openNode = node;
+      return this;
+    }
+
+    Builder endNode() {
+      subtreeEnds[openNode] = nodeCount;
+      tokenEnds[openNode] = tokenCount;
+      openNode = parents[openNode];
+      return this;
+    }
+
+    Builder addParseTree(ParseTree tree) {
+      if (tree instanceof TerminalNode terminalNode) {
+        var token = terminalNode.getSymbol();
+        if (token.getTokenIndex() != -1 && token.getType() != Token.EOF) {
+          addToken(tree instanceof ErrorNode ? ERROR_TOKEN : TOKEN, token);
+        }
+      } else if (tree instanceof ParserRuleContext context) {
+        startNode(context.getRuleIndex());
+        for (int i = 0; i < context.getChildCount(); i++) {
+          addParseTree(context.getChild(i));
+        }
+        endNode();
+      }
+      return this;
+    }
+
+    /**
+     * Adds token as a child of currently open node. EOF token is skipped.
+     */
+    Builder addToken(Token token) {
+      if (token.getType() != Token.EOF) {
+        addToken(TOKEN, token);
+      }
+      return this;
+    }
+
+    private void addToken(int kind, Token token) {
+      int node = newNode(kind);
+      subtreeEnds[node] = nodeCount;
+      tokenEnds[node] = tokenCount + 1;
+      newToken(
+          token.getType(),
+          token.getStartIndex(),
+          token.getStopIndex() - token.getStartIndex() + 1,
+          token.getLine() - 1,
+          token.getCharPositionInLine());
+    }
+
+    /**
+     * Copies subtree of a node from {@code source} tree as a child of currently open node.
+     */
+    Builder addSubtree(SyntaxTree source, int node) {
+      return addShiftedSubtree(source, node, null);
+    }
+
+    /**
+     * Copies subtree of a node from {@code source} tree as a child of currently open node,
+     * moving its tokens to positions they have after {@code edit} has been applied to text
+     * preceding them.
+     */
+    Builder addShiftedSubtree(SyntaxTree source, int node, TextEdit edit) {
+      int nodeOffset = nodeCount - node;
+      int tokenOffset = tokenCount - source.firstTokens[node];
+      for (int i = node; i < source.subtreeEnds[node]; i++) {
+        int copy = newNode(source.kinds[i]);
+        if (i != node) {
+          parents[copy] = source.parents[i] + nodeOffset;
+        }
+        subtreeEnds[copy] = source.subtreeEnds[i] + nodeOffset;
+        firstTokens[copy] = source.firstTokens[i] + tokenOffset;
+        tokenEnds[copy] = source.tokenEnds[i] + tokenOffset;
+      }
+      for (int i = source.firstTokens[node]; i < source.tokenEnds[node]; i++) {
+        int line = source.tokenLines[i];
+        int character = source.tokenCharacters[i];
+        int start = source.tokenStarts[i];
+        if (edit != null) {
+          start += edit.delta();
+          if (line == edit.oldEndLine()) {
+            character += edit.newEndCharacter() - edit.oldEndCharacter();
+          }
+          line += edit.newEndLine() - edit.oldEndLine();
+        }
+        newToken(source.tokenTypes[i], start, source.tokenLengths[i], line, character);
+      }
+      return this;
+    }
+
+    private int newNode(int kind) {
+      if (nodeCount == kinds.length) {
+        int capacity = nodeCount * 2;
+        kinds = Arrays.copyOf(kinds, capacity);
+        parents = Arrays.copyOf(parents, capacity);
+        subtreeEnds = Arrays.copyOf(subtreeEnds, capacity);
+        firstTokens = Arrays.copyOf(firstTokens, capacity);
+        tokenEnds = Arrays.copyOf(tokenEnds, capacity);
+      }
+      int node = nodeCount++;
+      kinds[node] = kind;
+      parents[node] = openNode;
+      firstTokens[node] = tokenCount;
+      return node;
+    }
+
+    private void newToken(int type, int start, int length, int line, int character) {
+      if (tokenCount == tokenTypes.length) {
+        int capacity = tokenCount * 2;
+        tokenTypes = Arrays.copyOf(tokenTypes, capacity);
+        tokenStarts = Arrays.copyOf(tokenStarts, capacity);
+        tokenLengths = Arrays.copyOf(tokenLengths, capacity);
+        tokenLines = Arrays.copyOf(tokenLines, capacity);
+        tokenCharacters = Arrays.copyOf(tokenCharacters, capacity);
+      }
+      int token = tokenCount++;
+      tokenTypes[token] = type;
+      tokenStarts[token] = start;
+      tokenLengths[token] = length;
+      tokenLines[token] = line;
+      tokenCharacters[token] = character;
+    }
+
+    SyntaxTree build() {
+      if (openNode != NONE) {
+        throw new IllegalStateException("Node " + openNode + " has not been ended.");
+      }
+      return new SyntaxTree(this);
+    }
+  }
+}
@@ -0,0 +1,66 @@
+package com.mikosik.logoserver.analyse.parser;
+
+import com.mikosik.logoserver.analyse.parser.antlr.LogoLexer;
+import java.util.ArrayList;
+import java.util.List;
+import org.antlr.v4.runtime.Token;
+
+/**
+ * Splits tokens of a document into chunks that can be parsed independently.
+ * Chunk boundary is placed before {@code to} or {@code define} keyword that is not nested inside
+ * brackets, parentheses or another procedure definition. Such keyword always starts a new
+ * top-level statement, so parsing chunks separately gives the same statements as parsing the
+ * whole document, as long as none of the chunks contains syntax errors.
+ */
+class TopLevelChunks {
+  private static final int TO = KeywordTable.logo().typeOf("to");
+  private static final int DEFINE = KeywordTable.logo().typeOf("define");
+  private static final int END = KeywordTable.logo().typeOf("end");
+  private static final int OPEN_BRACKET = literalType("[");
+  private static final int CLOSE_BRACKET = literalType("]");
+  private static final int OPEN_PARENTHESIS = literalType("(");
+  private static final int CLOSE_PARENTHESIS = literalType(")");
+
+  /**
+   * @param tokens tokens of a document without EOF token
+   * @param minChunkSize minimal number of tokens in a chunk, last chunk can be smaller
+   * @return consecutive sublists of {@code tokens} covering all of them
+   */
+  static List<List<Token>> split(List<Token> tokens, int minChunkSize) {
+    var chunks = new ArrayList<List<Token>>();
+    int chunkStart = 0;
+    int procedureDepth = 0;
+    int bracketDepth = 0;
+    for (int i = 0; i < tokens.size(); i++) {
+      int type = tokens.get(i).getType();
+      if (type == TO || type == DEFINE) {
+        var topLevel = procedureDepth == 0 && bracketDepth == 0;
+        if (topLevel && chunkStart < i && minChunkSize <= i - chunkStart) {
+          chunks.add(tokens.subList(chunkStart, i));
+          chunkStart = i;
+        }
+        procedureDepth++;
+      } else if (type == END) {
+        procedureDepth = Math.max(0, procedureDepth - 1);
+      } else if (type == OPEN_BRACKET || type == OPEN_PARENTHESIS) {
+        bracketDepth++;
+      } else if (type == CLOSE_BRACKET || type == CLOSE_PARENTHESIS) {
+        bracketDepth = Math.max(0, bracketDepth - 1);
+      }
+    }
+    if (chunkStart < tokens.size()) {
+      chunks.add(tokens.subList(chunkStart, tokens.size()));
+    }
+    return chunks;
+  }
+
+  private static int literalType(String literal) {
+    var vocabulary = LogoLexer.VOCABULARY;
+    for (int type = 1; type <= vocabulary.getMaxTokenType(); type++) {
+      if (literal.equals(KeywordTable.literalOf(vocabulary, type))) {
+        return type;
+      }
+    }
+    throw new IllegalStateException("Logo grammar does not declare " + literal + " literal.");
+  }
+}
@@ -0,0 +1,201 @@
+package com.mikosik.logoserver.analyse.text;
+
+import static com.mikosik.logoserver.analyse.text.TextEdit.lineBreaksIn;
+
+import java.util.ArrayList;
+import org.eclipse.lsp4j.Range;
+
+/**
+ * Text of a document backed by a piece table.
+ * Editing appends inserted text to the add buffer and splits/removes pieces, so the cost of an
+ * edit depends on the number of pieces and not on the size of the document.
+ * Each piece knows the number of line breaks it contains which allows translating LSP positions
+ * into offsets without materializing the whole text.
+ * Pieces are compacted into a single one once there are more than {@link #MAX_PIECES} of them.
+ */
+public class TextBuffer {
+  static final int MAX_PIECES = 1024;
+  private final StringBuilder added = new StringBuilder();
+  private final ArrayList<Piece> pieces = new ArrayList<>();
+  private String original;
+  private int length;
+
+  public TextBuffer(String text) {
+    reset(text);
+  }
+
+  private void reset(String text) {
+    original = text;
+    added.setLength(0);
+    pieces.clear();
+    if (!text.isEmpty()) {
+      pieces.add(new Piece(false, 0, text.length(), lineBreaksIn(text, 0, text.length())));
+    }
+    length = text.length();
+  }
+
+  public int length() {
+    return length;
+  }
+
+  /**
+   * Replaces text within given range with a new text.
+   * Positions past the end of a line are clamped to the end of that line as required by LSP.
+   * @return edit that has been applied
+   * @throws IllegalArgumentException when range is not valid (see {@link #checkRange(Range)}),
+   *     in which case text is left unchanged
+   */
+  public TextEdit replace(Range range, String text) {
+    checkRange(range);
+    var start = range.getStart();
+    var end = range.getEnd();
+    var startLineOffset = lineStartOffset(start.getLine());
+    var startOffset = offsetInLine(startLineOffset, start.getCharacter());
+    var endLineOffset = lineStartOffset(end.getLine());
+    var endOffset = offsetInLine(endLineOffset, end.getCharacter());
+    var edit = new TextEdit(
+        startOffset,
+        endOffset,
+        start.getLine(),
+        startOffset - startLineOffset,
+        end.getLine(),
+        endOffset - endLineOffset,
+        text);
+    replace(startOffset, endOffset, text);
+    return edit;
+  }
+
+  /**
+   * Checks range without looking at text. As positions past the end of a line or of the text are
+   * clamped, range that passes the check can be applied to any text, so all ranges of a batch of
+   * changes can be checked before the first of them is applied.
+   * @throws IllegalArgumentException when range has negative line or character or its end is
+   *     before its start
+   */
+  public static void checkRange(Range range) {
+    var start = range.getStart();
+    var end = range.getEnd();
+    if (start.getLine() < 0 || start.getCharacter() < 0
+        || end.getLine() < 0 || end.getCharacter() < 0) {
+      throw new IllegalArgumentException("Range " + range + " has negative position.");
+    }
+    if (end.getLine() < start.getLine()
+        || (end.getLine() == start.getLine() && end.getCharacter() < start.getCharacter())) {
+      throw new IllegalArgumentException("Range end " + end + " is before its start " + start);
+    }
+  }
+
+  private void replace(int start, int end, String text) {
+    int first = split(start);
+    int last = split(end);
+    pieces.subList(first, last).clear();
+    if (!text.isEmpty()) {
+      var lineBreaks = lineBreaksIn(text, 0, text.length());
+      pieces.add(first, new Piece(true, added.length(), text.length(), lineBreaks));
+      added.append(text);
+    }
+    length += text.length() - (end - start);
+    if (pieces.size() > MAX_PIECES) {
+      reset(toString());
+    }
+  }
+
+  /**
+   * Makes sure a piece boundary exists at a given offset.
+   * @return index of the piece that starts at given offset
+   */
+  private int split(int offset) {
+    int pieceStart = 0;
+    for (int i = 0; i < pieces.size(); i++) {
+      if (pieceStart == offset) {
+        return i;
+      }
+      var piece = pieces.get(i);
+      int pieceEnd = pieceStart + piece.length();
+      if (offset < pieceEnd) {
+        int headLength = offset - pieceStart;
+        int headLineBreaks = lineBreaksIn(text(piece), piece.start(), piece.start() + headLength);
+        pieces.set(i, new Piece(piece.added(), piece.start(), headLength, headLineBreaks));
+        pieces.add(
+            i + 1,
+            new Piece(
+                piece.added(),
+                piece.start() + headLength,
+                piece.length() - headLength,
+                piece.lineBreaks() - headLineBreaks));
+        return i + 1;
+      }
+      pieceStart = pieceEnd;
+    }
+    return pieces.size();
+  }
+
+  /**
+   * @return offset of the first character of a given zero-based line or length of the document
+   *     if it has fewer lines
+   */
+  public int lineStartOffset(int line) {
+    if (line <= 0) {
+      return 0;
+    }
+    int remaining = line;
+    int pieceStart = 0;
+    for (var piece : pieces) {
+      if (piece.lineBreaks() < remaining) {
+        remaining -= piece.lineBreaks();
+      } else {
+        var text = text(piece);
+        for (int i = piece.start(); i < piece.start() + piece.length(); i++) {
+          if (text.charAt(i) == '\n' && --remaining == 0) {
+            return pieceStart + i - piece.start() + 1;
+          }
+        }
+      }
+      pieceStart += piece.length();
+    }
+    return length;
+  }
+
+  private int offsetInLine(int lineStartOffset, int character) {
+    var end = Math.min(length, lineStartOffset + character);
+    var lineBreak = substring(lineStartOffset, end).indexOf('\n');
+    return lineBreak == -1 ? end : lineStartOffset + lineBreak;
+  }
+
+  public String substring(int start, int end) {
+    var builder = new StringBuilder(end - start);
+    int pieceStart = 0;
+    for (var piece : pieces) {
+      int pieceEnd = pieceStart + piece.length();
+      if (start < pieceEnd && pieceStart < end) {
+        int from = piece.start() + Math.max(start, pieceStart) - pieceStart;
+        int to = piece.start() + Math.min(end, pieceEnd) - pieceStart;
+        builder.append(text(piece), from, to);
+      }
+      if (end <= pieceEnd) {
+        break;
+      }
+      pieceStart = pieceEnd;
+    }
+    return builder.toString();
+  }
+
+  private CharSequence text(Piece piece) {
+    return piece.added() ? added : original;
+  }
+
+  @Override
+  public String toString() {
+    if (length == original.length() && pieces.size() == 1 && !pieces.get(0).added()) {
+      return original;
+    }
+    return substring(0, length);
+  }
+
+  // visible for testing
+  int pieceCount() {
+    return pieces.size();
+  }
+
+  private record Piece(boolean added, int start, int length, int lineBreaks) {}
+}
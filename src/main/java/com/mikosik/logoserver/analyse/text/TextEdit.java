@@ -0,0 +1,79 @@
+package com.mikosik.logoserver.analyse.text;
+
+/**
+ * Single replacement of text applied to a {@link TextBuffer}.
+ * Offsets, lines and characters of start and old end are expressed in the text before the edit.
+ * Lines and characters are zero-based.
+ */
+public record TextEdit(
+    int start,
+    int oldEnd,
+    int startLine,
+    int startCharacter,
+    int oldEndLine,
+    int oldEndCharacter,
+    String text) {
+
+  /**
+   * Difference between document length after and before the edit.
+   */
+  public int delta() {
+    return text.length() - (oldEnd - start);
+  }
+
+  public int newEnd() {
+    return start + text.length();
+  }
+
+  public int newEndLine() {
+    return startLine + lineBreaksIn(text, 0, text.length());
+  }
+
+  public int newEndCharacter() {
+    var lastLineBreak = text.lastIndexOf('\n');
+    return lastLineBreak == -1 ? startCharacter + text.length() : text.length() - lastLineBreak - 1;
+  }
+
+  /**
+   * Composes this edit with edit applied right after it into single edit that replaces the
+   * smallest range of the text before this edit covering both of them.
+   * @param next edit expressed in the text after this edit
+   * @param text text after both edits
+   */
+  public TextEdit followedBy(TextEdit next, TextBuffer text) {
+    var startsWithNext = next.start < start;
+    int composedStart = startsWithNext ? next.start : start;
+    int composedStartLine = startsWithNext ? next.startLine : startLine;
+    int composedStartCharacter = startsWithNext ? next.startCharacter : startCharacter;
+    int composedOldEnd = oldEnd;
+    int composedOldEndLine = oldEndLine;
+    int composedOldEndCharacter = oldEndCharacter;
+    if (next.oldEnd > newEnd()) {
+      // old end of next edit lies after this edit, so it is shifted back to the text before it
+      composedOldEnd = next.oldEnd - delta();
+      composedOldEndLine = next.oldEndLine - (newEndLine() - oldEndLine);
+      composedOldEndCharacter = next.oldEndLine == newEndLine()
+          ? next.oldEndCharacter - newEndCharacter() + oldEndCharacter
+          : next.oldEndCharacter;
+    }
+    int composedNewEnd = composedOldEnd + delta() + next.delta();
+    return new TextEdit(
+        composedStart,
+        composedOldEnd,
+        composedStartLine,
+        composedStartCharacter,
+        composedOldEndLine,
+        composedOldEndCharacter,
+        text.substring(composedStart, composedNewEnd));
+  }
+
+  static int lineBreaksIn(CharSequence text, int start, int end) {
+    int result = 0;
+    for (int i = start; i < end; i++) {
+      if (text.charAt(i) == '\n') {
+        result++;
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,22 @@
+package com.mikosik.logoserver.analyse.workspace;
+
+import com.mikosik.logoserver.analyse.declaration.Declarations;
+import com.mikosik.logoserver.analyse.declaration.References;
+
+/**
+ * Analysis of a Logo file read from disk that is needed by {@link WorkspaceIndex}, together with
+ * size, modification time and hash of the file content it was computed from.
+ *
+ * @param modifiedTime last modification time of the file in milliseconds since epoch
+ */
+record FileSummary(
+    String uri,
+    long size,
+    long modifiedTime,
+    long hash,
+    Declarations declarations,
+    References references) {
+  FileSummary withStamp(long size, long modifiedTime) {
+    return new FileSummary(uri, size, modifiedTime, hash, declarations, references);
+  }
+}
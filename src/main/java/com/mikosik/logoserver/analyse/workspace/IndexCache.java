@@ -0,0 +1,200 @@
+package com.mikosik.logoserver.analyse.workspace;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import com.google.common.collect.ImmutableMultimap;
+import com.mikosik.logoserver.analyse.declaration.Declarations;
+import com.mikosik.logoserver.analyse.declaration.References;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link FileSummary}s of files of a workspace folder persisted in a single binary file, so that
+ * files that have not changed since previous server run do not have to be parsed again.
+ * Cache file is read into heap in one go when loaded. It is not memory-mapped, as mapping would
+ * outlive the folder scan (nothing unmaps it until it is garbage collected) and on Windows
+ * replacing mapped file fails, so the cache could never be written back. Only URIs and offsets
+ * of entries are read upfront, summaries are decoded on first lookup of their URI. Missing,
+ * unreadable or corrupted cache file is treated as empty cache. Cache is written to a temporary
+ * file that atomically replaces the previous one.
+ *
+ * <p>Format (big endian): magic, format version, number of entries, then for each entry: URI,
+ * size, modification time, hash, declared variables, declared procedures, referenced variables
+ * and referenced procedures. Each map of names is written as number of names followed by name,
+ * number of ranges and ranges (line, start character, end character) for each name. Strings are
+ * written as number of bytes followed by UTF-8 bytes.
+ */
+class IndexCache {
+  private static final Logger logger = LoggerFactory.getLogger(IndexCache.class);
+  private static final int MAGIC = 0x4C4F474F;
+  private static final int FORMAT_VERSION = 1;
+  private static final IndexCache EMPTY = new IndexCache(ByteBuffer.allocate(0), Map.of());
+  private final ByteBuffer buffer;
+  private final Map<String, Integer> offsets;
+
+  private IndexCache(ByteBuffer buffer, Map<String, Integer> offsets) {
+    this.buffer = buffer;
+    this.offsets = offsets;
+  }
+
+  static IndexCache empty() {
+    return EMPTY;
+  }
+
+  /**
+   * @return cache read from given file or empty cache when it cannot be read
+   */
+  static IndexCache load(Path file) {
+    try {
+      var buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+      if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+        logger.info("Ignoring index cache {} written in different format.", file);
+        return EMPTY;
+      }
+      int count = buffer.getInt();
+      var offsets = new HashMap<String, Integer>();
+      for (int i = 0; i < count; i++) {
+        var uri = getString(buffer);
+        offsets.put(uri, buffer.position());
+        skipEntry(buffer);
+      }
+      return new IndexCache(buffer, offsets);
+    } catch (NoSuchFileException e) {
+      return EMPTY;
+    } catch (IOException
+        | BufferUnderflowException
+        | IllegalArgumentException
+        | NegativeArraySizeException e) {
+      logger.warn("Ignoring index cache {} that cannot be read: {}", file, e.toString());
+      return EMPTY;
+    }
+  }
+
+  /**
+   * @return summary of file with given URI or null when it is not cached
+   */
+  FileSummary get(String uri) {
+    var offset = offsets.get(uri);
+    if (offset == null) {
+      return null;
+    }
+    var entry = buffer.duplicate().position(offset);
+    try {
+      return new FileSummary(
+          uri,
+          entry.getLong(),
+          entry.getLong(),
+          entry.getLong(),
+          new Declarations(getRanges(entry), getRanges(entry)),
+          new References(getRanges(entry), getRanges(entry)));
+    } catch (BufferUnderflowException
+        | IllegalArgumentException
+        | NegativeArraySizeException e) {
+      logger.warn("Ignoring corrupted index cache entry of {}: {}", uri, e.toString());
+      return null;
+    }
+  }
+
+  int size() {
+    return offsets.size();
+  }
+
+  /**
+   * Replaces content of given cache file with given summaries.
+   */
+  static void write(Path file, Collection<FileSummary> summaries) throws IOException {
+    Files.createDirectories(file.getParent());
+    var temporary = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+    try {
+      try (var output = new DataOutputStream(
+          new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+        output.writeInt(MAGIC);
+        output.writeInt(FORMAT_VERSION);
+        output.writeInt(summaries.size());
+        for (var summary : summaries) {
+          putString(output, summary.uri());
+          output.writeLong(summary.size());
+          output.writeLong(summary.modifiedTime());
+          output.writeLong(summary.hash());
+          putRanges(output, summary.declarations().variables());
+          putRanges(output, summary.declarations().procedures());
+          putRanges(output, summary.references().variables());
+          putRanges(output, summary.references().procedures());
+        }
+      }
+      Files.move(temporary, file, REPLACE_EXISTING, ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  private static void skipEntry(ByteBuffer buffer) {
+    buffer.position(buffer.position() + 3 * Long.BYTES);
+    for (int i = 0; i < 4; i++) {
+      int names = buffer.getInt();
+      for (int j = 0; j < names; j++) {
+        int length = buffer.getInt();
+        buffer.position(buffer.position() + length);
+        int ranges = buffer.getInt();
+        buffer.position(buffer.position() + ranges * 3 * Integer.BYTES);
+      }
+    }
+  }
+
+  private static ImmutableMultimap<String, Range> getRanges(ByteBuffer buffer) {
+    var result = ImmutableMultimap.<String, Range>builder();
+    int names = buffer.getInt();
+    for (int i = 0; i < names; i++) {
+      var name = getString(buffer);
+      int ranges = buffer.getInt();
+      for (int j = 0; j < ranges; j++) {
+        int line = buffer.getInt();
+        int start = buffer.getInt();
+        int end = buffer.getInt();
+        result.put(name, new Range(new Position(line, start), new Position(line, end)));
+      }
+    }
+    return result.build();
+  }
+
+  private static void putRanges(DataOutputStream output, ImmutableMultimap<String, Range> ranges)
+      throws IOException {
+    output.writeInt(ranges.keySet().size());
+    for (var entry : ranges.asMap().entrySet()) {
+      putString(output, entry.getKey());
+      output.writeInt(entry.getValue().size());
+      for (var range : entry.getValue()) {
+        output.writeInt(range.getStart().getLine());
+        output.writeInt(range.getStart().getCharacter());
+        output.writeInt(range.getEnd().getCharacter());
+      }
+    }
+  }
+
+  private static String getString(ByteBuffer buffer) {
+    var bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  private static void putString(DataOutputStream output, String string) throws IOException {
+    var bytes = string.getBytes(UTF_8);
+    output.writeInt(bytes.length);
+    output.write(bytes);
+  }
+}
@@ -0,0 +1,112 @@
+package com.mikosik.logoserver.analyse.workspace;
+
+import static java.util.Comparator.comparingInt;
+
+import com.google.common.base.Ascii;
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Concurrent index of lower case names by their trigrams (substrings of three characters) for
+ * fuzzy name search. Name is added once per each caller that adds it and it is removed once all
+ * of them remove it, so index can be updated incrementally as names appear and disappear.
+ *
+ * <p>Query matches a name when query characters occur in the name in the same order
+ * (not necessarily next to each other). Candidates for queries of at least three characters
+ * are only names sharing some trigram with the query, ranked by the number of shared trigrams,
+ * so names matching the query without any common trigram are not found. Shorter queries are
+ * matched against all names.
+ */
+class TrigramIndex {
+  private final ConcurrentHashMap<String, Integer> names = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Long, Set<String>> postings = new ConcurrentHashMap<>();
+
+  void add(String name) {
+    names.compute(name, (key, count) -> {
+      if (count == null) {
+        forEachTrigram(name, trigram -> postings.compute(trigram, (t, set) -> {
+          var result = set == null ? ConcurrentHashMap.<String>newKeySet() : set;
+          result.add(name);
+          return result;
+        }));
+        return 1;
+      }
+      return count + 1;
+    });
+  }
+
+  void remove(String name) {
+    names.computeIfPresent(name, (key, count) -> {
+      if (count == 1) {
+        forEachTrigram(name, trigram -> postings.computeIfPresent(trigram, (t, set) -> {
+          set.remove(name);
+          return set.isEmpty() ? null : set;
+        }));
+        return null;
+      }
+      return count - 1;
+    });
+  }
+
+  /**
+   * @return at most {@code limit} names matching the query, best matches first
+   */
+  ImmutableList<String> search(String query, int limit) {
+    var lowerCaseQuery = Ascii.toLowerCase(query);
+    if (lowerCaseQuery.length() < 3) {
+      return names.keySet().stream()
+          .filter(name -> isSubsequence(lowerCaseQuery, name))
+          .limit(limit)
+          .collect(ImmutableList.toImmutableList());
+    }
+    var hits = new HashMap<String, Integer>();
+    var queryTrigrams = new HashSet<Long>();
+    forEachTrigram(lowerCaseQuery, queryTrigrams::add);
+    for (var trigram : queryTrigrams) {
+      var posting = postings.get(trigram);
+      if (posting != null) {
+        posting.forEach(name -> hits.merge(name, 1, Integer::sum));
+      }
+    }
+    var matches = new ArrayList<Map.Entry<String, Integer>>();
+    for (var entry : hits.entrySet()) {
+      if (isSubsequence(lowerCaseQuery, entry.getKey())) {
+        matches.add(entry);
+      }
+    }
+    matches.sort(comparingInt((Map.Entry<String, Integer> e) -> -e.getValue())
+        .thenComparingInt(e -> e.getKey().length())
+        .thenComparing(Map.Entry::getKey));
+    return matches.stream()
+        .limit(limit)
+        .map(Map.Entry::getKey)
+        .collect(ImmutableList.toImmutableList());
+  }
+
+  private static boolean isSubsequence(String query, String name) {
+    int j = 0;
+    for (int i = 0; i < name.length() && j < query.length(); i++) {
+      if (name.charAt(i) == query.charAt(j)) {
+        j++;
+      }
+    }
+    return j == query.length();
+  }
+
+  private static void forEachTrigram(String text, TrigramConsumer consumer) {
+    for (int i = 0; i + 3 <= text.length(); i++) {
+      long trigram = ((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16)
+          | text.charAt(i + 2);
+      consumer.accept(trigram);
+    }
+  }
+
+  private interface TrigramConsumer {
+    void accept(long trigram);
+  }
+}
@@ -0,0 +1,222 @@
+package com.mikosik.logoserver.analyse.workspace;
+
+import static com.mikosik.logoserver.analyse.base.Ranges.newRange;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMultimap;
+import com.mikosik.logoserver.analyse.declaration.Declarations;
+import com.mikosik.logoserver.analyse.declaration.References;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import org.eclipse.lsp4j.Location;
+import org.eclipse.lsp4j.Range;
+import org.eclipse.lsp4j.SymbolKind;
+import org.eclipse.lsp4j.WorkspaceSymbol;
+import org.eclipse.lsp4j.jsonrpc.messages.Either;
+
+/**
+ * Declarations of and references to procedures and variables of all Logo files of the workspace,
+ * keyed by file URI. It is fed concurrently by handlers of open documents and by
+ * {@link WorkspaceIndexer} reading files from disk. Declarations and references of an open
+ * document take precedence over those read from disk for the same URI until the document is
+ * closed.
+ * Besides declarations and references of each file, index keeps for each name the sets of URIs
+ * declaring and referencing it, so lookup by name visits only files that contain that name, and
+ * {@link TrigramIndex} of declared names for workspace symbol search. All of them are updated
+ * only with names that appear or disappear when a file is indexed again.
+ */
+public class WorkspaceIndex {
+  private final ConcurrentHashMap<String, FileEntry> files = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Set<String>> procedureUris = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Set<String>> variableUris = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Set<String>> procedureReferenceUris =
+      new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, Set<String>> variableReferenceUris =
+      new ConcurrentHashMap<>();
+  private final TrigramIndex names = new TrigramIndex();
+
+  /**
+   * Replaces declarations and references of given open document.
+   */
+  public void indexOpenDocument(String uri, Declarations declarations, References references) {
+    update(uri, new FileEntry(declarations, references, true));
+  }
+
+  /**
+   * Replaces declarations and references of given file read from disk, unless it is open.
+   */
+  public void indexFile(String uri, Declarations declarations, References references) {
+    update(uri, new FileEntry(declarations, references, false));
+  }
+
+  /**
+   * Keeps last declarations and references of closed document until they are replaced by those
+   * read from disk.
+   */
+  public void closeDocument(String uri) {
+    files.computeIfPresent(
+        uri, (key, entry) -> new FileEntry(entry.declarations(), entry.references(), false));
+  }
+
+  /**
+   * Removes declarations and references of given file deleted from disk, unless it is open.
+   */
+  public void removeFile(String uri) {
+    files.computeIfPresent(uri, (key, entry) -> {
+      if (entry.open()) {
+        return entry;
+      }
+      unlink(uri, entry);
+      return null;
+    });
+  }
+
+  private void update(String uri, FileEntry entry) {
+    files.compute(uri, (key, previous) -> {
+      if (previous != null && previous.open() && !entry.open()) {
+        return previous;
+      }
+      if (previous != null) {
+        unlink(uri, previous);
+      }
+      link(uri, entry);
+      return entry;
+    });
+  }
+
+  private void link(String uri, FileEntry entry) {
+    link(entry.declarations().procedures(), procedureUris, uri, true);
+    link(entry.declarations().variables(), variableUris, uri, true);
+    link(entry.references().procedures(), procedureReferenceUris, uri, false);
+    link(entry.references().variables(), variableReferenceUris, uri, false);
+  }
+
+  private void unlink(String uri, FileEntry entry) {
+    unlink(entry.declarations().procedures(), procedureUris, uri, true);
+    unlink(entry.declarations().variables(), variableUris, uri, true);
+    unlink(entry.references().procedures(), procedureReferenceUris, uri, false);
+    unlink(entry.references().variables(), variableReferenceUris, uri, false);
+  }
+
+  private void link(
+      ImmutableMultimap<String, Range> ranges,
+      ConcurrentHashMap<String, Set<String>> uris,
+      String uri,
+      boolean searchable) {
+    ranges.keySet().forEach(name -> add(uris, name, uri, searchable));
+  }
+
+  private void unlink(
+      ImmutableMultimap<String, Range> ranges,
+      ConcurrentHashMap<String, Set<String>> uris,
+      String uri,
+      boolean searchable) {
+    ranges.keySet().forEach(name -> remove(uris, name, uri, searchable));
+  }
+
+  /**
+   * @param searchable whether name is put into {@link TrigramIndex} when its first URI is added
+   */
+  private void add(
+      ConcurrentHashMap<String, Set<String>> uris, String name, String uri, boolean searchable) {
+    uris.compute(name, (key, set) -> {
+      if (set == null && searchable) {
+        names.add(name);
+      }
+      var result = set == null ? ConcurrentHashMap.<String>newKeySet() : set;
+      result.add(uri);
+      return result;
+    });
+  }
+
+  private void remove(
+      ConcurrentHashMap<String, Set<String>> uris, String name, String uri, boolean searchable) {
+    uris.computeIfPresent(name, (key, set) -> {
+      set.remove(uri);
+      if (set.isEmpty()) {
+        if (searchable) {
+          names.remove(name);
+        }
+        return null;
+      }
+      return set;
+    });
+  }
+
+  /**
+   * @param name lower case name of a procedure
+   * @return declarations of the procedure in all indexed files other than {@code excludedUri}
+   */
+  public ImmutableList<Location> procedureDeclarations(String name, String excludedUri) {
+    return locations(procedureUris, e -> e.declarations().procedures(), name, excludedUri);
+  }
+
+  /**
+   * @param name lower case name of a variable (without leading {@code :})
+   * @return declarations of the variable in all indexed files other than {@code excludedUri}
+   */
+  public ImmutableList<Location> variableDeclarations(String name, String excludedUri) {
+    return locations(variableUris, e -> e.declarations().variables(), name, excludedUri);
+  }
+
+  /**
+   * @param name lower case name of a procedure
+   * @return references to the procedure in all indexed files other than {@code excludedUri}
+   */
+  public ImmutableList<Location> procedureReferences(String name, String excludedUri) {
+    return locations(procedureReferenceUris, e -> e.references().procedures(), name, excludedUri);
+  }
+
+  /**
+   * @param name lower case name of a variable (without leading {@code :})
+   * @return references to the variable in all indexed files other than {@code excludedUri}
+   */
+  public ImmutableList<Location> variableReferences(String name, String excludedUri) {
+    return locations(variableReferenceUris, e -> e.references().variables(), name, excludedUri);
+  }
+
+  private ImmutableList<Location> locations(
+      ConcurrentHashMap<String, Set<String>> uris,
+      Function<FileEntry, ImmutableMultimap<String, Range>> kind,
+      String name,
+      String excludedUri) {
+    var declaringUris = uris.get(name);
+    if (declaringUris == null) {
+      return ImmutableList.of();
+    }
+    var result = ImmutableList.<Location>builder();
+    for (var uri : declaringUris) {
+      var entry = files.get(uri);
+      if (entry != null && !uri.equals(excludedUri)) {
+        for (var range : kind.apply(entry).get(name)) {
+          result.add(new Location(uri, newRange(range)));
+        }
+      }
+    }
+    return result.build();
+  }
+
+  /**
+   * @return at most {@code limit} procedures and variables whose names match given query
+   *     (see {@link TrigramIndex}), with all their declarations, best matches first
+   */
+  public ImmutableList<WorkspaceSymbol> searchSymbols(String query, int limit) {
+    var result = new ArrayList<WorkspaceSymbol>();
+    for (var name : names.search(query, limit)) {
+      for (var location : procedureDeclarations(name, null)) {
+        result.add(new WorkspaceSymbol(name, SymbolKind.Function, Either.forLeft(location)));
+      }
+      for (var location : variableDeclarations(name, null)) {
+        result.add(new WorkspaceSymbol(name, SymbolKind.Variable, Either.forLeft(location)));
+      }
+      if (limit <= result.size()) {
+        break;
+      }
+    }
+    return ImmutableList.copyOf(result.subList(0, Math.min(limit, result.size())));
+  }
+
+  private record FileEntry(Declarations declarations, References references, boolean open) {}
+}
@@ -0,0 +1,422 @@
+package com.mikosik.logoserver.analyse.workspace;
+
+import static com.mikosik.logoserver.analyse.DocumentScheduler.Priority.BACKGROUND;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+import com.google.common.base.Ascii;
+import com.google.common.hash.Hashing;
+import com.mikosik.logoserver.analyse.DocumentScheduler;
+import com.mikosik.logoserver.analyse.declaration.DeclarationsProvider;
+import com.mikosik.logoserver.analyse.declaration.References;
+import com.mikosik.logoserver.analyse.declaration.ReferencesProvider;
+import com.mikosik.logoserver.analyse.parser.Parser;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import org.eclipse.lsp4j.FileChangeType;
+import org.eclipse.lsp4j.FileEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads Logo files ({@code *.logo}) of workspace folders from disk and puts their declarations
+ * and references into {@link WorkspaceIndex}. Hidden directories (for example {@code .git}) are
+ * skipped.
+ * Summaries of indexed files are persisted in {@link IndexCache} stored in {@link #CACHE_FILE}
+ * of each folder, so on the next start only files that have changed are parsed again.
+ *
+ * <p>Every file is indexed as a separate {@link DocumentScheduler.Priority#BACKGROUND} task of
+ * {@link DocumentScheduler} shared with open documents, so indexing never runs ahead of
+ * interactive work and does not add threads on top of the scheduler's limit. Files changed on
+ * disk while server runs (see {@link #filesChanged(List)}) are reindexed the same way. Changes
+ * are collected in a map keyed by URI and are scheduled after {@link #COALESCING_DELAY}, so
+ * a burst of changes (for example {@code git checkout}) that touches the same file many times
+ * reindexes it once, according to its last change. Summaries of reindexed files are written
+ * back to cache files of their folders once all scheduled changes have been processed.
+ * Files found by folder walk go through the same map, so a file is never summarized by two
+ * tasks at once, and file is always read from disk when its change is processed, so the last
+ * content on disk wins whatever order walk and changes come in.
+ */
+public class WorkspaceIndexer {
+  private static final Logger logger = LoggerFactory.getLogger(WorkspaceIndexer.class);
+  static final Path CACHE_FILE = Path.of(".cache", "logo-server", "index");
+  static final Duration COALESCING_DELAY = Duration.ofMillis(100);
+  private final WorkspaceIndex index;
+  private final Parser parser;
+  private final DocumentScheduler scheduler;
+  private final DeclarationsProvider declarationsProvider;
+  private final ReferencesProvider referencesProvider;
+  private final ConcurrentHashMap<Path, ConcurrentHashMap<String, FileSummary>> summaries =
+      new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, PendingChange> pendingChanges =
+      new ConcurrentHashMap<>();
+  private final Set<String> processedUris = ConcurrentHashMap.newKeySet();
+  private final Set<Path> changedFolders = ConcurrentHashMap.newKeySet();
+  private final AtomicBoolean changesScheduled = new AtomicBoolean();
+  private final AtomicInteger changeTasks = new AtomicInteger();
+
+  public WorkspaceIndexer(WorkspaceIndex index) {
+    this(index, new Parser(), DocumentScheduler.shared());
+  }
+
+  // visible for testing
+  WorkspaceIndexer(WorkspaceIndex index, Parser parser) {
+    this(index, parser, DocumentScheduler.shared());
+  }
+
+  // visible for testing
+  WorkspaceIndexer(WorkspaceIndex index, Parser parser, DocumentScheduler scheduler) {
+    this.index = index;
+    this.parser = parser;
+    this.scheduler = scheduler;
+    this.declarationsProvider = new DeclarationsProvider();
+    this.referencesProvider = new ReferencesProvider();
+  }
+
+  /**
+   * Indexes given folders in background.
+   * @return future completed once all folders have been indexed
+   */
+  public CompletableFuture<Void> indexFoldersInBackground(List<Path> folders) {
+    logger.info("Indexing workspace folders {}.", folders);
+    var futures = folders.stream().map(this::indexFolderInBackground).toList();
+    return CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new))
+        .thenRun(() -> logger.info("Indexed workspace folders {}.", folders));
+  }
+
+  // visible for testing
+  void indexFolder(Path folder) {
+    indexFolderInBackground(folder).join();
+  }
+
+  /**
+   * Walks folder in one background task and submits each of its Logo files as a pending change
+   * processed in a task of its own. Cache file of the folder is written after the last file has
+   * been indexed.
+   */
+  private CompletableFuture<Void> indexFolderInBackground(Path folder) {
+    var result = new CompletableFuture<Void>();
+    scheduler.execute(folder.toString(), BACKGROUND, () -> {
+      try {
+        var cache = IndexCache.load(folder.resolve(CACHE_FILE));
+        var folderSummaries = new ConcurrentHashMap<String, FileSummary>();
+        summaries.put(folder, folderSummaries);
+        var files = logoFilesOf(folder);
+        var remaining = new AtomicInteger(files.size());
+        if (files.isEmpty()) {
+          writeCache(folder);
+          result.complete(null);
+        }
+        for (var file : files) {
+          var uri = file.toUri().toString();
+          Consumer<FileSummary> onProcessed = (summary) -> {
+            if (summary != null) {
+              folderSummaries.put(uri, summary);
+            }
+            if (remaining.decrementAndGet() == 0) {
+              writeCache(folder);
+              result.complete(null);
+            }
+          };
+          submit(uri, new PendingChange(FileChangeType.Changed, cache.get(uri), onProcessed));
+          scheduler.execute(uri, BACKGROUND, () -> processPendingChanges(uri));
+        }
+      } catch (IOException e) {
+        logger.warn("Cannot index folder {}: {}", folder, e.getMessage());
+        result.complete(null);
+      } catch (RuntimeException e) {
+        result.completeExceptionally(e);
+        throw e;
+      }
+    });
+    return result;
+  }
+
+  private static List<Path> logoFilesOf(Path folder) throws IOException {
+    var files = new ArrayList<Path>();
+    Files.walkFileTree(folder, new SimpleFileVisitor<>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) {
+        return isHidden(dir) && !dir.equals(folder)
+            ? FileVisitResult.SKIP_SUBTREE
+            : FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+        if (attributes.isRegularFile() && isLogoFile(file)) {
+          files.add(file);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFileFailed(Path file, IOException e) {
+        logger.warn("Cannot read {}: {}", file, e.getMessage());
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    return files;
+  }
+
+  /**
+   * Writes summaries of given folder to its cache file. Synchronized, as both indexing of the
+   * folder and processing of changes write the same file.
+   */
+  private synchronized void writeCache(Path folder) {
+    var folderSummaries = summaries.get(folder);
+    if (folderSummaries == null) {
+      return;
+    }
+    var cacheFile = folder.resolve(CACHE_FILE);
+    try {
+      IndexCache.write(cacheFile, folderSummaries.values());
+    } catch (IOException e) {
+      logger.warn("Cannot write index cache {}: {}", cacheFile, e.getMessage());
+    }
+  }
+
+  /**
+   * Schedules reindexing of changed Logo files and removal of deleted ones in background.
+   * Changes of files other than {@code *.logo} are ignored.
+   */
+  public void filesChanged(List<FileEvent> events) {
+    for (var event : events) {
+      var uri = event.getUri();
+      if (isLogoUri(uri)) {
+        changeTasks.incrementAndGet();
+        submit(uri, new PendingChange(event.getType(), null, (summary) -> {
+          changeProcessed(uri, summary);
+          if (changeTasks.decrementAndGet() == 0) {
+            writeChangedCaches();
+          }
+        }));
+      }
+    }
+    if (!pendingChanges.isEmpty() && changesScheduled.compareAndSet(false, true)) {
+      CompletableFuture.delayedExecutor(COALESCING_DELAY.toMillis(), MILLISECONDS)
+          .execute(this::schedulePendingChanges);
+    }
+  }
+
+  /**
+   * Submits task for each URI with pending change. Changes put after the flag has been cleared
+   * schedule submission of their own.
+   */
+  private void schedulePendingChanges() {
+    changesScheduled.set(false);
+    for (var uri : pendingChanges.keySet()) {
+      scheduler.execute(uri, BACKGROUND, () -> processPendingChanges(uri));
+    }
+  }
+
+  /**
+   * Merges given change with change of the same URI that is still pending.
+   */
+  private void submit(String uri, PendingChange change) {
+    pendingChanges.merge(uri, change, PendingChange::followedBy);
+  }
+
+  /**
+   * Processes changes of given URI until there are none left. Changes of the same URI are
+   * processed by one task at a time, so an older change never overwrites a newer one.
+   */
+  private void processPendingChanges(String uri) {
+    while (pendingChanges.containsKey(uri) && processedUris.add(uri)) {
+      try {
+        var change = pendingChanges.remove(uri);
+        if (change != null) {
+          FileSummary summary = null;
+          try {
+            summary = processChange(uri, change);
+          } finally {
+            change.onProcessed().accept(summary);
+          }
+        }
+      } finally {
+        processedUris.remove(uri);
+      }
+    }
+  }
+
+  /**
+   * Updates index with current content of file on disk, unless file has been deleted.
+   * @return summary of the file or null when file has been deleted or cannot be read
+   */
+  private FileSummary processChange(String uri, PendingChange change) {
+    if (change.type() == FileChangeType.Deleted) {
+      index.removeFile(uri);
+      return null;
+    }
+    var file = pathOf(uri);
+    if (file == null) {
+      logger.warn("Cannot index file {}: it is not a file URI.", uri);
+      return null;
+    }
+    try {
+      var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+      var cached = change.cached() != null ? change.cached() : summaryOf(uri, file);
+      var summary = summarize(file, attributes, cached);
+      if (summary != null) {
+        index.indexFile(uri, summary.declarations(), summary.references());
+      }
+      return summary;
+    } catch (NoSuchFileException e) {
+      index.removeFile(uri);
+      return null;
+    } catch (IOException e) {
+      logger.warn("Cannot index file {}: {}", uri, e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * @return summary of given file held for cache file of its folder or null when there is none
+   */
+  private FileSummary summaryOf(String uri, Path file) {
+    var folder = folderOf(file);
+    return folder == null ? null : summaries.get(folder).get(uri);
+  }
+
+  /**
+   * Updates summaries held for cache file of folder of changed file.
+   * @param summary summary of the file or null when file has been deleted or cannot be read
+   */
+  private void changeProcessed(String uri, FileSummary summary) {
+    var file = pathOf(uri);
+    var folder = file == null ? null : folderOf(file);
+    if (folder == null) {
+      return;
+    }
+    var folderSummaries = summaries.get(folder);
+    var previous = summary == null
+        ? folderSummaries.remove(uri)
+        : folderSummaries.put(uri, summary);
+    if (previous != summary) {
+      changedFolders.add(folder);
+    }
+  }
+
+  /**
+   * Change of a file waiting to be processed.
+   * @param type {@link FileChangeType#Deleted} when file is removed from index, any other type
+   *     makes file read from disk
+   * @param cached summary of the file indexed previously or null when there is none
+   * @param onProcessed receives summary of the file (or null when file has been deleted or cannot
+   *     be read) once the change has been processed
+   */
+  private record PendingChange(
+      FileChangeType type, FileSummary cached, Consumer<FileSummary> onProcessed) {
+    /**
+     * @return change of the last type that is processed once for both changes
+     */
+    private PendingChange followedBy(PendingChange next) {
+      return new PendingChange(
+          next.type,
+          next.cached != null ? next.cached : cached,
+          onProcessed.andThen(next.onProcessed));
+    }
+  }
+
+  private void writeChangedCaches() {
+    for (var folder : changedFolders) {
+      changedFolders.remove(folder);
+      writeCache(folder);
+    }
+  }
+
+  /**
+   * @return path of given file URI or null when it is not a file URI
+   */
+  private static Path pathOf(String uri) {
+    try {
+      return Path.of(URI.create(uri));
+    } catch (IllegalArgumentException | FileSystemNotFoundException e) {
+      return null;
+    }
+  }
+
+  /**
+   * @return indexed workspace folder containing given file or null when there is none
+   */
+  private Path folderOf(Path file) {
+    Path result = null;
+    for (var folder : summaries.keySet()) {
+      if (file.startsWith(folder)
+          && (result == null || folder.getNameCount() > result.getNameCount())) {
+        result = folder;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @param cached summary of given file indexed previously or null when there is none
+   * @return cached summary when file size and modification time or content hash are the same as
+   *     cached ones, otherwise summary computed by parsing the file, or null when file cannot be
+   *     read
+   */
+  private FileSummary summarize(Path file, BasicFileAttributes attributes, FileSummary cached) {
+    var uri = file.toUri().toString();
+    long modifiedTime = attributes.lastModifiedTime().toMillis();
+    if (cached != null
+        && cached.size() == attributes.size()
+        && cached.modifiedTime() == modifiedTime) {
+      return cached;
+    }
+    try {
+      var bytes = Files.readAllBytes(file);
+      long hash = Hashing.farmHashFingerprint64().hashBytes(bytes).asLong();
+      if (cached != null && cached.hash() == hash) {
+        return cached.withStamp(bytes.length, modifiedTime);
+      }
+      // parsed without time budget, as lexer-only result would be cached with no declarations
+      var syntaxTree = parser.parseInBackground(new String(bytes, UTF_8), () -> false).syntaxTree();
+      var declarations = declarationsProvider.collector(syntaxTree);
+      var references = referencesProvider.collector(syntaxTree);
+      for (int node = 0; node < syntaxTree.nodeCount(); node++) {
+        declarations.visit(node);
+        references.visit(node);
+      }
+      return new FileSummary(
+          uri,
+          bytes.length,
+          modifiedTime,
+          hash,
+          declarations.build(),
+          References.of(syntaxTree, references.build()));
+    } catch (IOException e) {
+      logger.warn("Cannot index file {}: {}", file, e.getMessage());
+      return null;
+    }
+  }
+
+  static boolean isLogoFile(Path file) {
+    return Ascii.toLowerCase(file.getFileName().toString()).endsWith(".logo");
+  }
+
+  private static boolean isLogoUri(String uri) {
+    return Ascii.toLowerCase(uri).endsWith(".logo");
+  }
+
+  private static boolean isHidden(Path dir) {
+    var fileName = dir.getFileName();
+    return fileName != null && fileName.toString().startsWith(".");
+  }
+}
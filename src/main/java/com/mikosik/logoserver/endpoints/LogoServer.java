@@ -3,16 +3,33 @@ package com.mikosik.logoserver.endpoints;
 import static java.util.Arrays.stream;
 import static java.util.concurrent.CompletableFuture.completedFuture;
 
+import com.mikosik.logoserver.analyse.UpdateMetrics;
 import com.mikosik.logoserver.analyse.base.TokenModifier;
 import com.mikosik.logoserver.analyse.base.TokenType;
+import com.mikosik.logoserver.analyse.parser.ParseMetrics;
+import com.mikosik.logoserver.analyse.workspace.WorkspaceIndex;
+import com.mikosik.logoserver.analyse.workspace.WorkspaceIndexer;
+import java.net.URI;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import org.eclipse.lsp4j.ClientCapabilities;
+import org.eclipse.lsp4j.DidChangeWatchedFilesRegistrationOptions;
+import org.eclipse.lsp4j.FileSystemWatcher;
 import org.eclipse.lsp4j.InitializeParams;
 import org.eclipse.lsp4j.InitializeResult;
+import org.eclipse.lsp4j.InitializedParams;
+import org.eclipse.lsp4j.Registration;
+import org.eclipse.lsp4j.RegistrationParams;
 import org.eclipse.lsp4j.SemanticTokensLegend;
+import org.eclipse.lsp4j.SemanticTokensServerFull;
 import org.eclipse.lsp4j.SemanticTokensWithRegistrationOptions;
 import org.eclipse.lsp4j.ServerCapabilities;
 import org.eclipse.lsp4j.TextDocumentSyncKind;
+import org.eclipse.lsp4j.WorkspaceFolder;
+import org.eclipse.lsp4j.jsonrpc.messages.Either;
 import org.eclipse.lsp4j.services.LanguageClient;
 import org.eclipse.lsp4j.services.LanguageServer;
 import org.eclipse.lsp4j.services.TextDocumentService;
@@ -26,12 +43,24 @@ import org.slf4j.LoggerFactory;
 public class LogoServer implements LanguageServer {
   private static final Logger logger = LoggerFactory.getLogger(LogoServer.class);
 
-  private final WorkspaceService workspaceService = new LogoWorkspaceService();
-  private final LogoTextDocumentService textDocumentService = new LogoTextDocumentService();
+  private final WorkspaceIndex workspaceIndex = new WorkspaceIndex();
+  private final WorkspaceIndexer workspaceIndexer = new WorkspaceIndexer(workspaceIndex);
+  private final WorkspaceService workspaceService =
+      new LogoWorkspaceService(workspaceIndex, workspaceIndexer);
+  private final LogoTextDocumentService textDocumentService =
+      new LogoTextDocumentService(workspaceIndex);
+  private List<Path> workspaceFolders = List.of();
+  private boolean watchedFilesRegistrationSupported;
+  private LanguageClient client;
 
   @Override
   public CompletableFuture<InitializeResult> initialize(InitializeParams initializeParams) {
     logger.info("initialization requested");
+    textDocumentService.setSemanticTokensRefreshSupported(
+        semanticTokensRefreshSupported(initializeParams.getCapabilities()));
+    workspaceFolders = workspaceFolders(initializeParams);
+    watchedFilesRegistrationSupported =
+        watchedFilesRegistrationSupported(initializeParams.getCapabilities());
     InitializeResult result = new InitializeResult(serverCapabilities());
     return completedFuture(result);
   }
@@ -40,12 +69,82 @@ public class LogoServer implements LanguageServer {
     var capabilities = new ServerCapabilities();
     var semanticTokensOptions = semanticTokensOptions();
     capabilities.setSemanticTokensProvider(semanticTokensOptions);
-    capabilities.setTextDocumentSync(TextDocumentSyncKind.Full);
+    capabilities.setTextDocumentSync(TextDocumentSyncKind.Incremental);
     capabilities.setDeclarationProvider(true);
+    capabilities.setReferencesProvider(true);
+    capabilities.setDocumentHighlightProvider(true);
+    capabilities.setWorkspaceSymbolProvider(true);
     return capabilities;
   }
 
+  @Override
+  public void initialized(InitializedParams params) {
+    logger.info("initialized");
+    registerLogoFilesWatcher();
+    workspaceIndexer.indexFoldersInBackground(workspaceFolders);
+  }
+
+  /**
+   * Asks client to notify server about changes of Logo files made outside of open documents
+   * (for example by {@code git checkout}), so that workspace index can be kept up to date.
+   */
+  private void registerLogoFilesWatcher() {
+    if (client == null || !watchedFilesRegistrationSupported) {
+      logger.info("Client cannot watch files, workspace index is not updated on file changes.");
+      return;
+    }
+    var watcher = new FileSystemWatcher(Either.forLeft("**/*.logo"));
+    var options = new DidChangeWatchedFilesRegistrationOptions(List.of(watcher));
+    var registration =
+        new Registration("logo-files-watcher", "workspace/didChangeWatchedFiles", options);
+    client.registerCapability(new RegistrationParams(List.of(registration)));
+  }
+
+  /**
+   * @return local folders of the workspace, folders with URIs other than {@code file:} are skipped
+   */
+  @SuppressWarnings("deprecation")
+  private static List<Path> workspaceFolders(InitializeParams params) {
+    List<String> uris;
+    if (params.getWorkspaceFolders() != null) {
+      uris = params.getWorkspaceFolders().stream().map(WorkspaceFolder::getUri).toList();
+    } else if (params.getRootUri() != null) {
+      uris = List.of(params.getRootUri());
+    } else {
+      uris = List.of();
+    }
+    var result = new ArrayList<Path>();
+    for (var uri : uris) {
+      try {
+        result.add(Path.of(URI.create(uri)));
+      } catch (IllegalArgumentException | FileSystemNotFoundException e) {
+        logger.warn("Skipping workspace folder {} as it is not a local folder.", uri);
+      }
+    }
+    return result;
+  }
+
+  private static boolean watchedFilesRegistrationSupported(ClientCapabilities capabilities) {
+    if (capabilities == null
+        || capabilities.getWorkspace() == null
+        || capabilities.getWorkspace().getDidChangeWatchedFiles() == null) {
+      return false;
+    }
+    return Boolean.TRUE.equals(
+        capabilities.getWorkspace().getDidChangeWatchedFiles().getDynamicRegistration());
+  }
+
+  private static boolean semanticTokensRefreshSupported(ClientCapabilities capabilities) {
+    if (capabilities == null
+        || capabilities.getWorkspace() == null
+        || capabilities.getWorkspace().getSemanticTokens() == null) {
+      return false;
+    }
+    return Boolean.TRUE.equals(capabilities.getWorkspace().getSemanticTokens().getRefreshSupport());
+  }
+
   public void setClient(LanguageClient client) {
+    this.client = client;
     this.textDocumentService.setClient(client);
   }
 
@@ -53,8 +152,8 @@ public class LogoServer implements LanguageServer {
     var semanticTokensOptions = new SemanticTokensWithRegistrationOptions();
     semanticTokensOptions.setLegend(
         new SemanticTokensLegend(enumNames(TokenType.values()), enumNames(TokenModifier.values())));
-    semanticTokensOptions.setFull(true);
-    semanticTokensOptions.setRange(false);
+    semanticTokensOptions.setFull(new SemanticTokensServerFull(true));
+    semanticTokensOptions.setRange(true);
     return semanticTokensOptions;
   }
 
@@ -65,6 +164,8 @@ public class LogoServer implements LanguageServer {
   @Override
   public CompletableFuture<Object> shutdown() {
     logger.info("shutdown requested");
+    logger.info("{}", ParseMetrics.shared());
+    logger.info("{}", UpdateMetrics.shared());
     return completedFuture(null);
   }
 
@@ -1,19 +1,27 @@
 package com.mikosik.logoserver.endpoints;
 
-import com.mikosik.logoserver.analyse.AsyncDocumentHandler;
 import com.mikosik.logoserver.analyse.DocumentHandlerManager;
+import com.mikosik.logoserver.analyse.workspace.WorkspaceIndex;
 import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 import org.eclipse.lsp4j.DeclarationParams;
+import org.eclipse.lsp4j.Diagnostic;
 import org.eclipse.lsp4j.DidChangeTextDocumentParams;
 import org.eclipse.lsp4j.DidCloseTextDocumentParams;
 import org.eclipse.lsp4j.DidOpenTextDocumentParams;
 import org.eclipse.lsp4j.DidSaveTextDocumentParams;
+import org.eclipse.lsp4j.DocumentHighlight;
+import org.eclipse.lsp4j.DocumentHighlightParams;
 import org.eclipse.lsp4j.Location;
 import org.eclipse.lsp4j.LocationLink;
 import org.eclipse.lsp4j.PublishDiagnosticsParams;
+import org.eclipse.lsp4j.ReferenceParams;
 import org.eclipse.lsp4j.SemanticTokens;
+import org.eclipse.lsp4j.SemanticTokensDelta;
+import org.eclipse.lsp4j.SemanticTokensDeltaParams;
 import org.eclipse.lsp4j.SemanticTokensParams;
+import org.eclipse.lsp4j.SemanticTokensRangeParams;
 import org.eclipse.lsp4j.jsonrpc.messages.Either;
 import org.eclipse.lsp4j.services.LanguageClient;
 import org.eclipse.lsp4j.services.TextDocumentService;
@@ -23,22 +31,38 @@ import org.slf4j.LoggerFactory;
 public class LogoTextDocumentService implements TextDocumentService {
   private static final Logger logger = LoggerFactory.getLogger(LogoTextDocumentService.class);
   private LanguageClient client;
+  private boolean semanticTokensRefreshSupported;
   private final DocumentHandlerManager documentHandlerManager;
 
-  public LogoTextDocumentService() {
-    this.documentHandlerManager = new DocumentHandlerManager();
+  public LogoTextDocumentService(WorkspaceIndex workspaceIndex) {
+    this.documentHandlerManager =
+        new DocumentHandlerManager(workspaceIndex, this::refreshSemanticTokens);
   }
 
   public void setClient(LanguageClient client) {
     this.client = client;
   }
 
+  public void setSemanticTokensRefreshSupported(boolean semanticTokensRefreshSupported) {
+    this.semanticTokensRefreshSupported = semanticTokensRefreshSupported;
+  }
+
+  /**
+   * Asks client to request semantic tokens again, as highlighting served from lexer-only
+   * analysis of a long document has been refined by its full parse.
+   */
+  private void refreshSemanticTokens() {
+    if (client != null && semanticTokensRefreshSupported) {
+      client.refreshSemanticTokens();
+    }
+  }
+
   @Override
   public void didOpen(DidOpenTextDocumentParams params) {
     var uri = params.getTextDocument().getUri();
     logger.info("Received didOpen for {}", uri);
     var handler = documentHandlerManager.handlerFor(uri);
-    setText(uri, handler, params.getTextDocument().getText());
+    publishDiagnostics(uri, handler.setText(params.getTextDocument().getText()));
   }
 
   @Override
@@ -46,17 +70,12 @@ public class LogoTextDocumentService implements TextDocumentService {
     var uri = params.getTextDocument().getUri();
     logger.info("Received didChange for {}", uri);
 
-    var changes = params.getContentChanges();
-    if (changes.size() != 1 || changes.get(0).getRange() != null) {
-      logger.error("Server does not support partial updates.");
-    } else {
-      var handler = documentHandlerManager.handlerFor(uri);
-      setText(uri, handler, changes.get(0).getText());
-    }
+    var handler = documentHandlerManager.handlerFor(uri);
+    publishDiagnostics(uri, handler.applyChanges(params.getContentChanges()));
   }
 
-  private void setText(String uri, AsyncDocumentHandler handler, String text) {
-    handler.setText(text).thenAccept(diagnostics -> {
+  private void publishDiagnostics(String uri, CompletableFuture<List<Diagnostic>> future) {
+    future.thenAccept(diagnostics -> {
       if (client != null) {
         client.publishDiagnostics(new PublishDiagnosticsParams(uri, diagnostics));
       }
@@ -70,16 +89,77 @@ public class LogoTextDocumentService implements TextDocumentService {
     return documentHandlerManager.handlerFor(uri).semanticTokensFull();
   }
 
+  @Override
+  public CompletableFuture<SemanticTokens> semanticTokensRange(SemanticTokensRangeParams params) {
+    var uri = params.getTextDocument().getUri();
+    logger.info("Received semanticTokensRange for {}", uri);
+    return documentHandlerManager.handlerFor(uri).semanticTokensRange(params.getRange());
+  }
+
+  @Override
+  public CompletableFuture<Either<SemanticTokens, SemanticTokensDelta>> semanticTokensFullDelta(
+      SemanticTokensDeltaParams params) {
+    var uri = params.getTextDocument().getUri();
+    logger.info("Received semanticTokensFullDelta for {}", uri);
+    return documentHandlerManager
+        .handlerFor(uri)
+        .semanticTokensFullDelta(params.getPreviousResultId());
+  }
+
   @Override
   public CompletableFuture<Either<List<? extends Location>, List<? extends LocationLink>>>
       declaration(DeclarationParams params) {
     var uri = params.getTextDocument().getUri();
     logger.info("Received declaration for {}", uri);
     var position = params.getPosition();
-    return documentHandlerManager
-        .handlerFor(uri)
-        .declaration(position.getLine(), position.getCharacter())
-        .thenApply(Either::forLeft);
+    return mapped(
+        documentHandlerManager
+            .handlerFor(uri)
+            .declaration(position.getLine(), position.getCharacter()),
+        Either::forLeft);
+  }
+
+  @Override
+  public CompletableFuture<List<? extends Location>> references(ReferenceParams params) {
+    var uri = params.getTextDocument().getUri();
+    logger.info("Received references for {}", uri);
+    var position = params.getPosition();
+    var context = params.getContext();
+    var includeDeclaration = context != null && context.isIncludeDeclaration();
+    return mapped(
+        documentHandlerManager
+            .handlerFor(uri)
+            .references(position.getLine(), position.getCharacter(), includeDeclaration),
+        locations -> locations);
+  }
+
+  @Override
+  public CompletableFuture<List<? extends DocumentHighlight>> documentHighlight(
+      DocumentHighlightParams params) {
+    var uri = params.getTextDocument().getUri();
+    logger.info("Received documentHighlight for {}", uri);
+    var position = params.getPosition();
+    return mapped(
+        documentHandlerManager
+            .handlerFor(uri)
+            .documentHighlight(position.getLine(), position.getCharacter()),
+        highlights -> highlights);
+  }
+
+  /**
+   * @return future of result mapped by given function, which cancels the original future when it
+   *     is cancelled itself, so that cancellation of a request (LSP4J cancels future returned to
+   *     it on {@code $/cancelRequest}) reaches document handler
+   */
+  private static <T, R> CompletableFuture<R> mapped(
+      CompletableFuture<T> future, Function<? super T, ? extends R> mapper) {
+    var result = future.thenApply(mapper);
+    result.whenComplete((value, exception) -> {
+      if (result.isCancelled()) {
+        future.cancel(true);
+      }
+    });
+    return result;
   }
 
   @Override
@@ -1,13 +1,32 @@
 package com.mikosik.logoserver.endpoints;
 
+import static java.util.concurrent.CompletableFuture.completedFuture;
+
+import com.mikosik.logoserver.analyse.workspace.WorkspaceIndex;
+import com.mikosik.logoserver.analyse.workspace.WorkspaceIndexer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import org.eclipse.lsp4j.DidChangeConfigurationParams;
 import org.eclipse.lsp4j.DidChangeWatchedFilesParams;
+import org.eclipse.lsp4j.SymbolInformation;
+import org.eclipse.lsp4j.WorkspaceSymbol;
+import org.eclipse.lsp4j.WorkspaceSymbolParams;
+import org.eclipse.lsp4j.jsonrpc.messages.Either;
 import org.eclipse.lsp4j.services.WorkspaceService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class LogoWorkspaceService implements WorkspaceService {
   private static final Logger logger = LoggerFactory.getLogger(LogoWorkspaceService.class);
+  private static final int SYMBOL_LIMIT = 256;
+
+  private final WorkspaceIndex workspaceIndex;
+  private final WorkspaceIndexer workspaceIndexer;
+
+  public LogoWorkspaceService(WorkspaceIndex workspaceIndex, WorkspaceIndexer workspaceIndexer) {
+    this.workspaceIndex = workspaceIndex;
+    this.workspaceIndexer = workspaceIndexer;
+  }
 
   @Override
   public void didChangeConfiguration(DidChangeConfigurationParams params) {
@@ -16,6 +35,16 @@ public class LogoWorkspaceService implements WorkspaceService {
 
   @Override
   public void didChangeWatchedFiles(DidChangeWatchedFilesParams params) {
-    logger.info("Received didChangeWatchedFiles");
+    logger.info("Received didChangeWatchedFiles with {} changes", params.getChanges().size());
+    workspaceIndexer.filesChanged(params.getChanges());
+  }
+
+  @Override
+  public CompletableFuture<
+          Either<List<? extends SymbolInformation>, List<? extends WorkspaceSymbol>>>
+      symbol(WorkspaceSymbolParams params) {
+    logger.info("Received workspace/symbol");
+    return completedFuture(
+        Either.forRight(workspaceIndex.searchSymbols(params.getQuery(), SYMBOL_LIMIT)));
   }
 }
@@ -0,0 +1,60 @@
+package com.mikosik.logoserver.endpoints;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import com.mikosik.logoserver.analyse.highlight.SemanticTokensData;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Writes {@link SemanticTokensData} to JSON without boxing its elements.
+ * Gson serializes {@code List<Integer>} element by element through boxed {@link Integer}s.
+ * This adapter appends all integers to a single buffer and writes it as a raw JSON array.
+ * Gson picks it for {@code data} of {@code SemanticTokens} and {@code SemanticTokensEdit} as it
+ * resolves adapters by runtime type of field values.
+ */
+public class SemanticTokensDataTypeAdapter extends TypeAdapter<SemanticTokensData> {
+  public static void register(GsonBuilder gsonBuilder) {
+    gsonBuilder.registerTypeAdapter(SemanticTokensData.class, new SemanticTokensDataTypeAdapter());
+  }
+
+  @Override
+  public void write(JsonWriter out, SemanticTokensData value) throws IOException {
+    if (value == null) {
+      out.nullValue();
+      return;
+    }
+    var json = new StringBuilder(2 + value.size() * 3);
+    json.append('[');
+    for (int i = 0; i < value.size(); i++) {
+      if (i != 0) {
+        json.append(',');
+      }
+      json.append(value.getInt(i));
+    }
+    json.append(']');
+    out.jsonValue(json.toString());
+  }
+
+  @Override
+  public SemanticTokensData read(JsonReader in) throws IOException {
+    if (in.peek() == JsonToken.NULL) {
+      in.nextNull();
+      return null;
+    }
+    var data = new int[16];
+    int size = 0;
+    in.beginArray();
+    while (in.hasNext()) {
+      if (size == data.length) {
+        data = Arrays.copyOf(data, size * 2);
+      }
+      data[size++] = in.nextInt();
+    }
+    in.endArray();
+    return SemanticTokensData.of(Arrays.copyOf(data, size));
+  }
+}
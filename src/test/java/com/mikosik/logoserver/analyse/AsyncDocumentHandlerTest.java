@@ -1,29 +1,52 @@
 package com.mikosik.logoserver.analyse;
 
 import static com.google.common.truth.Truth.assertThat;
-import static java.lang.Thread.State.TERMINATED;
+import static com.google.common.util.concurrent.Uninterruptibles.awaitUninterruptibly;
+import static com.mikosik.logoserver.analyse.DocumentScheduler.Priority.INTERACTIVE;
 import static org.awaitility.Awaitility.await;
 import static org.junit.Assert.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
+import com.mikosik.logoserver.analyse.parser.DfaCache;
+import com.mikosik.logoserver.analyse.parser.ParseMetrics;
+import com.mikosik.logoserver.analyse.parser.Parser;
+import com.mikosik.logoserver.analyse.parser.ParserSettings;
+import com.mikosik.logoserver.analyse.workspace.WorkspaceIndex;
+import java.time.Duration;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.function.Consumer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import org.eclipse.lsp4j.Location;
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.eclipse.lsp4j.TextDocumentContentChangeEvent;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 
 public class AsyncDocumentHandlerTest {
-  BlockingQueue<Consumer<DocumentHandler>> queue;
+  DocumentScheduler scheduler;
+  UpdateMetrics metrics;
   AsyncDocumentHandler handler;
 
   @BeforeEach
   public void beforeEach() {
-    queue = new LinkedBlockingQueue<>();
-    handler = new AsyncDocumentHandler("uri", queue);
+    scheduler = new DocumentScheduler(1);
+    metrics = new UpdateMetrics();
+    handler = new AsyncDocumentHandler("uri", scheduler, metrics);
   }
 
   @AfterEach
@@ -34,31 +57,316 @@ public class AsyncDocumentHandlerTest {
   @Nested
   class Multithreading {
     @Test
-    void shutdownStopsBackgroundThread() throws InterruptedException {
-      var backgroundThreadHolder = new AtomicReference<Thread>();
-      queue.put((documentHandler) -> backgroundThreadHolder.set(Thread.currentThread()));
-      await().until(() -> backgroundThreadHolder.get() != null);
-      var thread = backgroundThreadHolder.get();
+    void shutdownDropsTasksThatHaveNotStarted() {
+      var blocker = blockScheduler();
+      var executed = new AtomicBoolean();
+      handler.enqueue((documentHandler) -> executed.set(true));
 
       handler.shutdown();
+      blocker.countDown();
+      var future = new CompletableFuture<Void>();
+      scheduler.execute("other", INTERACTIVE, () -> future.complete(null));
+
+      await().until(future::isDone);
+      assertThat(executed.get()).isFalse();
+    }
+
+    @Test
+    void requestFailsWhenHandlerThrowsError() {
+      var documentHandler = mock(DocumentHandler.class);
+      handler = new AsyncDocumentHandler("uri", documentHandler, scheduler, metrics);
+      var range = new Range(new Position(0, 0), new Position(1, 0));
+      when(documentHandler.semanticTokensRange(eq(range), any()))
+          .thenThrow(new StackOverflowError());
 
-      await().until(() -> thread.getState() == TERMINATED);
+      var future = handler.semanticTokensRange(range);
+
+      await().until(future::isDone);
+      assertThat(future.isCompletedExceptionally()).isTrue();
     }
 
     @Test
-    void runtimeExceptionDoesNotStopBackgroundThread() throws InterruptedException {
-      var backgroundThreadHolder = new AtomicReference<Thread>();
+    void runtimeExceptionDoesNotStopProcessingOfLaterTasks() {
       var future = new CompletableFuture<Void>();
-      queue.put((documentHandler) -> {
-        backgroundThreadHolder.set(Thread.currentThread());
+      handler.enqueue((documentHandler) -> {
         throw new RuntimeException("test exception");
       });
-      await().until(() -> backgroundThreadHolder.get() != null);
 
-      queue.put((documentHandler) -> future.complete(null));
+      handler.enqueue((documentHandler) -> future.complete(null));
+
+      await().until(future::isDone);
+    }
+  }
+
+  @Nested
+  class SupersededUpdates {
+    @Test
+    void setTextSupersededBeforeItStartedIsSkipped() {
+      var blocker = blockScheduler();
+      var first = handler.setText("forward 1");
+      var second = handler.setText("forward 2");
+      var third = handler.setText("forward 3");
+      blocker.countDown();
+
+      await().until(third::isDone);
+      assertThat(first.isCancelled()).isTrue();
+      assertThat(second.isCancelled()).isTrue();
+      assertThat(third.isCancelled()).isFalse();
+      assertThat(metrics.skippedUpdates()).isEqualTo(2);
+      assertThat(metrics.appliedUpdates()).isEqualTo(1);
+    }
+
+    @Test
+    void changesSupersededBySetTextAreSkipped() {
+      handler.setText("forward 1");
+      await().until(() -> metrics.appliedUpdates() == 1);
+      var blocker = blockScheduler();
+      var range = new Range(new Position(0, 8), new Position(0, 9));
+      var change = handler.applyChanges(List.of(new TextDocumentContentChangeEvent(range, "2")));
+      var replacement = handler.setText("forward 3");
+      blocker.countDown();
+
+      await().until(replacement::isDone);
+      assertThat(change.isCancelled()).isTrue();
+      assertThat(metrics.skippedUpdates()).isEqualTo(1);
+    }
+
+    @Test
+    void changesAfterSetTextAreApplied() {
+      var blocker = blockScheduler();
+      var text = handler.setText("forward 1");
+      var range = new Range(new Position(0, 8), new Position(0, 9));
+      var change = handler.applyChanges(List.of(new TextDocumentContentChangeEvent(range, "2")));
+      blocker.countDown();
+
+      await().until(change::isDone);
+      assertThat(text.isCancelled()).isTrue();
+      assertThat(change.isCancelled()).isFalse();
+      assertThat(metrics.skippedUpdates()).isEqualTo(0);
+    }
+  }
+
+  @Nested
+  class MergedChanges {
+    @Test
+    void consecutiveQueuedChangesAreAppliedAtOnce() {
+      var documentHandler = spy(new DocumentHandler("uri"));
+      handler = new AsyncDocumentHandler("uri", documentHandler, scheduler, metrics);
+      handler.setText("forward 10").join();
+      var blocker = blockScheduler();
+      var first = handler.applyChanges(List.of(change(0, 0, 0, 7, "fd")));
+      var second = handler.applyChanges(List.of(change(0, 3, 0, 5, "100")));
+      var third = handler.applyChanges(List.of(change(0, 3, 0, 6, "20")));
+      blocker.countDown();
+
+      await().until(third::isDone);
+      assertThat(first.isCancelled()).isTrue();
+      assertThat(second.isCancelled()).isTrue();
+      assertThat(third.isCancelled()).isFalse();
+      assertThat(metrics.mergedUpdates()).isEqualTo(2);
+      assertThat(metrics.appliedUpdates()).isEqualTo(4);
+      verify(documentHandler, times(1)).applyChanges(anyList(), any());
+      assertThat(handler.semanticTokensFull().join().getData())
+          .isEqualTo(List.of(0, 0, 2, 0, 0, 0, 3, 2, 2, 0));
+    }
+
+    private static TextDocumentContentChangeEvent change(
+        int startLine, int startCharacter, int endLine, int endCharacter, String text) {
+      var range = new Range(
+          new Position(startLine, startCharacter), new Position(endLine, endCharacter));
+      return new TextDocumentContentChangeEvent(range, text);
+    }
+  }
+
+  @Nested
+  class Cancellation {
+    @Test
+    void cancelledRequestIsDroppedBeforeItStarts() {
+      var documentHandler = mock(DocumentHandler.class);
+      handler = new AsyncDocumentHandler("uri", documentHandler, scheduler, metrics);
+      var blocker = blockScheduler();
+      var cancelled = handler.semanticTokensFull();
+      var next = handler.semanticTokensRange(new Range(new Position(0, 0), new Position(1, 0)));
+
+      cancelled.cancel(true);
+      blocker.countDown();
+
+      await().until(next::isDone);
+      verify(documentHandler, never()).analysis(any());
+      verify(documentHandler, never()).semanticTokensFull(any());
+    }
+
+    @Test
+    void analysisIsAbandonedOnceRequestIsCancelled() {
+      var documentHandler = mock(DocumentHandler.class);
+      handler = new AsyncDocumentHandler("uri", documentHandler, scheduler, metrics);
+      var blocker = blockScheduler();
+      var request = handler.declaration(0, 0);
+      var cancelledDuringAnalysis = new AtomicBoolean();
+      when(documentHandler.analysis(any())).thenAnswer(invocation -> {
+        request.cancel(true);
+        BooleanSupplier isCancelled = invocation.getArgument(0);
+        cancelledDuringAnalysis.set(isCancelled.getAsBoolean());
+        throw new CancellationException();
+      });
+
+      blocker.countDown();
+      var next = handler.semanticTokensRange(new Range(new Position(0, 0), new Position(1, 0)));
+
+      await().until(next::isDone);
+      assertThat(cancelledDuringAnalysis.get()).isTrue();
+      verify(documentHandler, never()).declaration(any(), anyInt(), anyInt());
+    }
+
+    @Test
+    void parseForRangeRequestIsAbandonedOnceRequestIsCancelled() {
+      var documentHandler = mock(DocumentHandler.class);
+      handler = new AsyncDocumentHandler("uri", documentHandler, scheduler, metrics);
+      var blocker = blockScheduler();
+      var request = handler.semanticTokensRange(new Range(new Position(0, 0), new Position(1, 0)));
+      var cancelledDuringParse = new AtomicBoolean();
+      when(documentHandler.semanticTokensRange(any(Range.class), any())).thenAnswer(invocation -> {
+        request.cancel(true);
+        BooleanSupplier isCancelled = invocation.getArgument(1);
+        cancelledDuringParse.set(isCancelled.getAsBoolean());
+        throw new CancellationException();
+      });
+
+      blocker.countDown();
+      var next = handler.declaration(0, 0);
+
+      await().until(next::isDone);
+      assertThat(cancelledDuringParse.get()).isTrue();
+    }
+  }
+
+  @Nested
+  class CloseDocument {
+    @Test
+    void documentIsClosedAfterTasksQueuedBeforeClose() {
+      var workspaceIndex = new WorkspaceIndex();
+      handler = new AsyncDocumentHandler(
+          "uri", new DocumentHandler("uri", workspaceIndex), scheduler, metrics);
+      var blocker = blockScheduler();
+      handler.setText("to square\nend");
+      handler.closeDocument();
+      var done = new CompletableFuture<Void>();
+      handler.enqueue((documentHandler) -> done.complete(null));
+
+      blocker.countDown();
+      await().until(done::isDone);
+      workspaceIndex.removeFile("uri");
+
+      assertThat(workspaceIndex.procedureDeclarations("square", "other")).isEmpty();
+    }
+  }
+
+  @Nested
+  class LexerFirst {
+    @Test
+    void analysisIsRefinedEvenWhenParseExceedsTimeBudget() {
+      var settings = ParserSettings.DEFAULT
+          .withLexerFirstMinLength(10)
+          .withParseTimeBudget(Duration.ZERO);
+      var parser = new Parser(settings, ParseMetrics.shared(), DfaCache.shared());
+      handler = new AsyncDocumentHandler(
+          "uri", new DocumentHandler("uri", parser), scheduler, metrics);
+
+      var diagnostics = handler.setText("square 10 fd 10");
+
+      await().until(diagnostics::isDone);
+      assertThat(handler.semanticTokensFull().join().getData())
+          .isEqualTo(List.of(0, 0, 6, 3, 0, 0, 7, 2, 2, 0, 0, 3, 2, 0, 0, 0, 3, 2, 2, 0));
+    }
+  }
+
+  @Nested
+  class Snapshots {
+    private static final String DOCUMENT = """
+        to square
+        end
+        square""";
+    private DocumentHandler documentHandler;
+
+    @BeforeEach
+    void beforeEach() {
+      scheduler = new DocumentScheduler(2);
+      documentHandler = new DocumentHandler("uri");
+      handler = new AsyncDocumentHandler("uri", documentHandler, scheduler, metrics);
+    }
+
+    @Test
+    void requestIsAnsweredFromSnapshotWithoutWaitingInQueue() {
+      handler.setText(DOCUMENT);
+      await().until(() -> documentHandler.snapshot() != null);
+      var blocker = blockDocument();
+
+      var future = handler.declaration(2, 0);
+
+      await().until(future::isDone);
+      assertThat(future.join()).containsExactly(declarationOfSquare());
+      blocker.countDown();
+    }
+
+    @Test
+    void rangeRequestIsAnsweredFromSnapshotWithoutWaitingInQueue() {
+      handler.setText(DOCUMENT);
+      await().until(() -> documentHandler.snapshot() != null);
+      var blocker = blockDocument();
+
+      var future = handler.semanticTokensRange(new Range(new Position(2, 0), new Position(3, 0)));
 
       await().until(future::isDone);
+      assertThat(future.join().getData()).isEqualTo(List.of(2, 0, 6, 3, 0));
+      blocker.countDown();
     }
+
+    @Test
+    void requestWaitsForChangeSubmittedAfterSnapshot() {
+      handler.setText(DOCUMENT);
+      await().until(() -> documentHandler.snapshot() != null);
+      var blocker = blockDocument();
+      handler.setText("square");
+
+      var future = handler.declaration(0, 0);
+
+      assertThat(future.isDone()).isFalse();
+      blocker.countDown();
+      await().until(future::isDone);
+      assertThat(future.join()).isEmpty();
+    }
+
+    private static Location declarationOfSquare() {
+      return new Location("uri", new Range(new Position(0, 3), new Position(0, 9)));
+    }
+
+    /**
+     * @return latch that keeps task of the document running until it is counted down
+     */
+    private CountDownLatch blockDocument() {
+      var blocker = new CountDownLatch(1);
+      var blocked = new CountDownLatch(1);
+      handler.enqueue((documentHandler) -> {
+        blocked.countDown();
+        awaitUninterruptibly(blocker);
+      });
+      awaitUninterruptibly(blocked);
+      return blocker;
+    }
+  }
+
+  /**
+   * @return latch that keeps the only thread of the scheduler busy until it is counted down
+   */
+  private CountDownLatch blockScheduler() {
+    var blocker = new CountDownLatch(1);
+    var blocked = new CountDownLatch(1);
+    scheduler.execute("other", INTERACTIVE, () -> {
+      blocked.countDown();
+      awaitUninterruptibly(blocker);
+    });
+    awaitUninterruptibly(blocked);
+    return blocker;
   }
 
   @Nested
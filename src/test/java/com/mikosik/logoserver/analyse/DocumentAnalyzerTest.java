@@ -0,0 +1,66 @@
+package com.mikosik.logoserver.analyse;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.mikosik.logoserver.analyse.highlight.SemanticTokensProvider;
+import com.mikosik.logoserver.analyse.parser.Parser;
+import java.util.concurrent.CancellationException;
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.junit.jupiter.api.Test;
+
+public class DocumentAnalyzerTest {
+  private static final String DOCUMENT = """
+      to square :size
+        repeat 4 [fd :size rt 90]
+      end
+      make "side 10
+      square :side""";
+
+  @Test
+  void analysisContainsSemanticTokensOfWholeTree() {
+    var parsedDocument = new Parser().parse(DOCUMENT);
+    var analysis = new DocumentAnalyzer().analyse(1, parsedDocument);
+    assertThat(analysis.semanticTokens())
+        .isEqualTo(new SemanticTokensProvider().semanticTokensOf(parsedDocument.syntaxTree()));
+  }
+
+  @Test
+  void analysisFindsDeclarations() {
+    var analysis = new DocumentAnalyzer().analyse(1, new Parser().parse(DOCUMENT));
+    assertThat(analysis.symbolIndex().declarationsAt(4, 0))
+        .containsExactly(new Range(new Position(0, 3), new Position(0, 9)));
+    assertThat(analysis.symbolIndex().declarationsAt(4, 8))
+        .containsExactly(new Range(new Position(3, 5), new Position(3, 10)));
+  }
+
+  @Test
+  void analysisFindsReferences() {
+    var analysis = new DocumentAnalyzer().analyse(1, new Parser().parse(DOCUMENT));
+    assertThat(analysis.references().procedures().get("square"))
+        .containsExactly(new Range(new Position(4, 0), new Position(4, 6)));
+    assertThat(analysis.references().variables().get("size")).hasSize(2);
+  }
+
+  @Test
+  void cancelledAnalysisFails() {
+    var parsedDocument = new Parser().parse(DOCUMENT);
+    assertThrows(
+        CancellationException.class,
+        () -> new DocumentAnalyzer().analyse(1, parsedDocument, () -> true));
+  }
+
+  @Test
+  void analysisContainsDiagnostics() {
+    var parsedDocument = new Parser().parse("forward");
+    var analysis = new DocumentAnalyzer().analyse(1, parsedDocument);
+    assertThat(analysis.diagnostics()).isEqualTo(parsedDocument.diagnostics());
+  }
+
+  @Test
+  void analysisContainsVersion() {
+    var analysis = new DocumentAnalyzer().analyse(7, new Parser().parse(DOCUMENT));
+    assertThat(analysis.version()).isEqualTo(7);
+  }
+}
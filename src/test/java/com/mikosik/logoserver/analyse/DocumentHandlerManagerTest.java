@@ -2,8 +2,11 @@ package com.mikosik.logoserver.analyse;
 
 import static com.google.common.truth.Truth.assertThat;
 import static com.mikosik.logoserver.analyse.DocumentHandlerManager.SHUTDOWN_DELAY;
+import static com.mikosik.logoserver.analyse.DocumentScheduler.Priority.BACKGROUND;
+import static com.mikosik.logoserver.analyse.DocumentScheduler.Priority.INTERACTIVE;
 import static java.time.Instant.EPOCH;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.time.Instant;
@@ -48,6 +51,37 @@ public class DocumentHandlerManagerTest {
     assertThat(handler1).isSameInstanceAs(handler2);
   }
 
+  @Test
+  void handlerScheduledForRemovalRunsInBackground() {
+    when(factory.apply("uri")).thenReturn(handler);
+
+    manager.handlerFor("uri");
+    manager.scheduleForRemoval("uri");
+
+    verify(handler).setPriority(BACKGROUND);
+  }
+
+  @Test
+  void handlerScheduledForRemovalClosesDocument() {
+    when(factory.apply("uri")).thenReturn(handler);
+
+    manager.handlerFor("uri");
+    manager.scheduleForRemoval("uri");
+
+    verify(handler).closeDocument();
+  }
+
+  @Test
+  void recycledHandlerRunsInteractively() {
+    when(factory.apply("uri")).thenReturn(handler);
+
+    manager.handlerFor("uri");
+    manager.scheduleForRemoval("uri");
+    manager.handlerFor("uri");
+
+    verify(handler).setPriority(INTERACTIVE);
+  }
+
   @Test
   void handlerIsShutdownAfterShutdownDelay() {
     var newHandler1 = mock(AsyncDocumentHandler.class);
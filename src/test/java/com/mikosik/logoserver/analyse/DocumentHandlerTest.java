@@ -2,8 +2,30 @@ package com.mikosik.logoserver.analyse;
 
 import static com.google.common.truth.Truth.assertThat;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
+import com.mikosik.logoserver.analyse.parser.DfaCache;
+import com.mikosik.logoserver.analyse.parser.ParseMetrics;
+import com.mikosik.logoserver.analyse.parser.Parser;
+import com.mikosik.logoserver.analyse.parser.ParserSettings;
+import com.mikosik.logoserver.analyse.workspace.WorkspaceIndex;
+import java.time.Duration;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.eclipse.lsp4j.DocumentHighlight;
+import org.eclipse.lsp4j.DocumentHighlightKind;
+import org.eclipse.lsp4j.Location;
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.eclipse.lsp4j.SemanticTokensEdit;
+import org.eclipse.lsp4j.TextDocumentContentChangeEvent;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 
@@ -20,8 +42,503 @@ public class DocumentHandlerTest {
     void returnsTokens() {
       var documentHandler = new DocumentHandler("uri");
       documentHandler.setText("forward 10");
-      assertThat(documentHandler.semanticTokensFull())
+      assertThat(documentHandler.semanticTokensFull().getData())
           .isEqualTo(List.of(0, 0, 7, 0, 0, 0, 8, 2, 2, 0));
     }
   }
+
+  @Nested
+  class SemanticTokensFullResultId {
+    @Test
+    void isTheSameForRepeatedRequestsOfTheSameVersion() {
+      var documentHandler = new DocumentHandler("uri");
+      documentHandler.setText("forward 10");
+      var first = documentHandler.semanticTokensFull();
+      var second = documentHandler.semanticTokensFull();
+      assertThat(second.getResultId()).isEqualTo(first.getResultId());
+    }
+
+    @Test
+    void changesWithNewVersion() {
+      var documentHandler = new DocumentHandler("uri");
+      documentHandler.setText("forward 10");
+      var first = documentHandler.semanticTokensFull();
+      documentHandler.setText("forward 20");
+      var second = documentHandler.semanticTokensFull();
+      assertThat(second.getResultId()).isNotEqualTo(first.getResultId());
+    }
+  }
+
+  @Nested
+  class SemanticTokensFullDelta {
+    @Test
+    void returnsEditsToPreviousResult() {
+      var documentHandler = new DocumentHandler("uri");
+      documentHandler.setText("forward 10\nright 90");
+      var previous = documentHandler.semanticTokensFull();
+      var range = new Range(new Position(0, 8), new Position(0, 10));
+      documentHandler.applyChanges(List.of(new TextDocumentContentChangeEvent(range, "100")));
+
+      var delta = documentHandler.semanticTokensFullDelta(previous.getResultId()).getRight();
+
+      assertThat(delta.getEdits())
+          .containsExactly(new SemanticTokensEdit(5, 5, List.of(0, 8, 3, 2, 0)));
+      assertThat(delta.getResultId()).isNotEqualTo(previous.getResultId());
+    }
+
+    @Test
+    void returnsNoEditsWhenTokensHaveNotChanged() {
+      var documentHandler = new DocumentHandler("uri");
+      documentHandler.setText("forward 10");
+      var previous = documentHandler.semanticTokensFull();
+
+      var delta = documentHandler.semanticTokensFullDelta(previous.getResultId()).getRight();
+
+      assertThat(delta.getEdits()).isEmpty();
+    }
+
+    @Test
+    void returnsFullTokensForUnknownResultId() {
+      var documentHandler = new DocumentHandler("uri");
+      documentHandler.setText("forward 10");
+      documentHandler.semanticTokensFull();
+
+      var result = documentHandler.semanticTokensFullDelta("unknown");
+
+      assertThat(result.getLeft().getData()).isEqualTo(List.of(0, 0, 7, 0, 0, 0, 8, 2, 2, 0));
+    }
+
+    @Test
+    void returnsFullTokensForResultIdOlderThanMostRecent() {
+      var documentHandler = new DocumentHandler("uri");
+      documentHandler.setText("forward 10");
+      var older = documentHandler.semanticTokensFull();
+      documentHandler.semanticTokensFull();
+
+      var result = documentHandler.semanticTokensFullDelta(older.getResultId());
+
+      assertThat(result.isLeft()).isTrue();
+    }
+  }
+
+  @Nested
+  class ApplyChanges {
+    @Test
+    void throwsExceptionWhenNoDocumentProvided() {
+      var documentHandler = new DocumentHandler("uri");
+      var change = new TextDocumentContentChangeEvent("forward 10");
+      assertThrows(IllegalStateException.class, () -> documentHandler.applyChanges(List.of(change)));
+    }
+
+    @Test
+    void appliesNoChangeWhenAnyRangeIsInvalid() {
+      var documentHandler = new DocumentHandler("uri");
+      documentHandler.setText("forward 10");
+      var valid = new Range(new Position(0, 0), new Position(0, 7));
+      var invalid = new Range(new Position(0, 5), new Position(0, 1));
+      assertThrows(
+          IllegalArgumentException.class,
+          () -> documentHandler.applyChanges(List.of(
+              new TextDocumentContentChangeEvent(valid, "fd"),
+              new TextDocumentContentChangeEvent(invalid, ""))));
+      assertThat(documentHandler.semanticTokensFull().getData())
+          .isEqualTo(List.of(0, 0, 7, 0, 0, 0, 8, 2, 2, 0));
+    }
+
+    @Test
+    void appliesFullTextChange() {
+      var documentHandler = new DocumentHandler("uri");
+      documentHandler.setText("back 5");
+      documentHandler.applyChanges(List.of(new TextDocumentContentChangeEvent("forward 10")));
+      assertThat(documentHandler.semanticTokensFull().getData())
+          .isEqualTo(List.of(0, 0, 7, 0, 0, 0, 8, 2, 2, 0));
+    }
+
+    @Test
+    void appliesRangeChange() {
+      var documentHandler = new DocumentHandler("uri");
+      documentHandler.setText("forward 10");
+      var range = new Range(new Position(0, 0), new Position(0, 7));
+      documentHandler.applyChanges(List.of(new TextDocumentContentChangeEvent(range, "fd")));
+      assertThat(documentHandler.semanticTokensFull().getData())
+          .isEqualTo(List.of(0, 0, 2, 0, 0, 0, 3, 2, 2, 0));
+    }
+
+    @Test
+    void appliesMultipleRangeChanges() {
+      var documentHandler = new DocumentHandler("uri");
+      documentHandler.setText("forward 10");
+      var range1 = new Range(new Position(0, 0), new Position(0, 7));
+      var range2 = new Range(new Position(0, 3), new Position(0, 5));
+      documentHandler.applyChanges(List.of(
+          new TextDocumentContentChangeEvent(range1, "fd"),
+          new TextDocumentContentChangeEvent(range2, "100")));
+      assertThat(documentHandler.semanticTokensFull().getData())
+          .isEqualTo(List.of(0, 0, 2, 0, 0, 0, 3, 3, 2, 0));
+    }
+
+    @Test
+    void parsesWholeDocumentAfterStaleText() {
+      var documentHandler = new DocumentHandler("uri");
+      documentHandler.setText("forward 10", () -> true);
+      var range = new Range(new Position(0, 0), new Position(0, 7));
+      documentHandler.applyChanges(List.of(new TextDocumentContentChangeEvent(range, "fd")));
+      assertThat(documentHandler.semanticTokensFull().getData())
+          .isEqualTo(List.of(0, 0, 2, 0, 0, 0, 3, 2, 2, 0));
+    }
+
+    @Test
+    void reparsesStaleChangesTogetherWithNextChanges() {
+      var parser = spy(new Parser());
+      var documentHandler = new DocumentHandler("uri", parser);
+      documentHandler.setText("forward 10");
+      var range1 = new Range(new Position(0, 0), new Position(0, 7));
+      var range2 = new Range(new Position(0, 3), new Position(0, 5));
+      documentHandler.applyChanges(
+          List.of(new TextDocumentContentChangeEvent(range1, "fd")), () -> true);
+      documentHandler.applyChanges(List.of(new TextDocumentContentChangeEvent(range2, "100")));
+
+      verify(parser, times(1)).parse(anyString(), any());
+      verify(parser, times(1)).reparse(any(), any(), any(), any());
+      assertThat(documentHandler.semanticTokensFull().getData())
+          .isEqualTo(List.of(0, 0, 2, 0, 0, 0, 3, 3, 2, 0));
+    }
+  }
+
+  @Nested
+  class SetText {
+    @Test
+    void leavesStaleTextUnparsedUntilItIsNeeded() {
+      var parser = spy(new Parser());
+      var documentHandler = new DocumentHandler("uri", parser);
+      documentHandler.setText("to square\nend", () -> true);
+      verify(parser, never()).parse(anyString(), any());
+
+      assertThat(documentHandler.analysis().lexerOnly()).isFalse();
+      verify(parser, times(1)).parse(anyString(), any());
+    }
+
+    @Test
+    void parseOfStaleTextForRangeTokensIsCancellable() {
+      var documentHandler = new DocumentHandler("uri");
+      documentHandler.setText("to square\nend", () -> true);
+      var range = new Range(new Position(0, 0), new Position(1, 0));
+      assertThrows(
+          CancellationException.class,
+          () -> documentHandler.semanticTokensRange(range, () -> true));
+      assertThat(documentHandler.semanticTokensRange(range, () -> false).getData())
+          .isNotEmpty();
+    }
+  }
+
+  @Nested
+  class LexerFirst {
+    private DocumentHandler documentHandler;
+
+    @BeforeEach
+    void beforeEach() {
+      var settings = ParserSettings.DEFAULT.withLexerFirstMinLength(10);
+      var parser = new Parser(settings, ParseMetrics.shared(), DfaCache.shared());
+      documentHandler = new DocumentHandler("uri", parser);
+    }
+
+    @Test
+    void parsesShortDocumentRightAway() {
+      documentHandler.setText("fd 10");
+      assertThat(documentHandler.pendingParse()).isNull();
+      assertThat(documentHandler.analysis().lexerOnly()).isFalse();
+    }
+
+    @Test
+    void onlyLexesLongDocument() {
+      documentHandler.setText("square 10 fd 10");
+      assertThat(documentHandler.pendingParse()).isNotNull();
+      assertThat(documentHandler.analysis().lexerOnly()).isTrue();
+      assertThat(documentHandler.semanticTokensFull().getData())
+          .isEqualTo(List.of(0, 7, 2, 2, 0, 0, 3, 2, 0, 0, 0, 3, 2, 2, 0));
+    }
+
+    @Test
+    void completedParseRefinesAnalysis() {
+      documentHandler.setText("square 10 fd 10");
+      var pendingParse = documentHandler.pendingParse();
+
+      var refined = documentHandler.completeParse(pendingParse, pendingParse.run(() -> false));
+
+      assertThat(refined).isTrue();
+      assertThat(documentHandler.pendingParse()).isNull();
+      assertThat(documentHandler.analysis().lexerOnly()).isFalse();
+      assertThat(documentHandler.semanticTokensFull().getData())
+          .isEqualTo(List.of(0, 0, 6, 3, 0, 0, 7, 2, 2, 0, 0, 3, 2, 0, 0, 0, 3, 2, 2, 0));
+    }
+
+    @Test
+    void pendingParseIsNotLimitedByParseTimeBudget() {
+      var settings = ParserSettings.DEFAULT
+          .withLexerFirstMinLength(10)
+          .withParseTimeBudget(Duration.ZERO);
+      var parser = new Parser(settings, ParseMetrics.shared(), DfaCache.shared());
+      documentHandler = new DocumentHandler("uri", parser);
+      documentHandler.setText("square 10 fd 10");
+      var pendingParse = documentHandler.pendingParse();
+
+      var refined = documentHandler.completeParse(pendingParse, pendingParse.run(() -> false));
+
+      assertThat(refined).isTrue();
+      assertThat(documentHandler.analysis().lexerOnly()).isFalse();
+    }
+
+    @Test
+    void completedParseOfChangedDocumentIsIgnored() {
+      documentHandler.setText("square 10 fd 10");
+      var pendingParse = documentHandler.pendingParse();
+      var parsedDocument = pendingParse.run(() -> false);
+      var range = new Range(new Position(0, 13), new Position(0, 15));
+      documentHandler.applyChanges(List.of(new TextDocumentContentChangeEvent(range, "20")));
+
+      var refined = documentHandler.completeParse(pendingParse, parsedDocument);
+
+      assertThat(refined).isFalse();
+      assertThat(documentHandler.analysis().lexerOnly()).isTrue();
+      assertThat(documentHandler.pendingParse()).isNotSameInstanceAs(pendingParse);
+    }
+
+    @Test
+    void abandonedParseKeepsLexerOnlyAnalysis() {
+      documentHandler.setText("square 10 fd 10");
+      var pendingParse = documentHandler.pendingParse();
+
+      var refined = documentHandler.completeParse(pendingParse, pendingParse.run(() -> true));
+
+      assertThat(refined).isFalse();
+      assertThat(documentHandler.pendingParse()).isNull();
+      assertThat(documentHandler.analysis().lexerOnly()).isTrue();
+    }
+  }
+
+  @Nested
+  class Declaration {
+    @Test
+    void findsDeclarationInTheSameDocument() {
+      var documentHandler = new DocumentHandler("main");
+      documentHandler.setText("to square\nend\nsquare");
+      assertThat(documentHandler.declaration(2, 0))
+          .containsExactly(
+              new Location("main", new Range(new Position(0, 3), new Position(0, 9))));
+    }
+
+    @Test
+    void findsDeclarationInOtherDocumentOfWorkspace() {
+      var workspaceIndex = new WorkspaceIndex();
+      var library = new DocumentHandler("library", workspaceIndex);
+      library.setText("to square\nend");
+      library.precomputeAnalysis();
+      var documentHandler = new DocumentHandler("main", workspaceIndex);
+      documentHandler.setText("square");
+
+      assertThat(documentHandler.declaration(0, 0))
+          .containsExactly(
+              new Location("library", new Range(new Position(0, 3), new Position(0, 9))));
+    }
+
+    @Test
+    void prefersDeclarationInTheSameDocument() {
+      var workspaceIndex = new WorkspaceIndex();
+      var library = new DocumentHandler("library", workspaceIndex);
+      library.setText("to square\nend");
+      library.precomputeAnalysis();
+      var documentHandler = new DocumentHandler("main", workspaceIndex);
+      documentHandler.setText("to square\nend\nsquare");
+
+      assertThat(documentHandler.declaration(2, 0))
+          .containsExactly(
+              new Location("main", new Range(new Position(0, 3), new Position(0, 9))));
+    }
+  }
+
+  @Nested
+  class References {
+    @Test
+    void findsReferencesInTheSameDocument() {
+      var documentHandler = new DocumentHandler("main");
+      documentHandler.setText("to square\nend\nsquare\nsquare");
+      assertThat(documentHandler.references(2, 0, false))
+          .containsExactly(location("main", 2, 0, 6), location("main", 3, 0, 6));
+    }
+
+    @Test
+    void findsReferencesOfNameDeclaredAtPosition() {
+      var documentHandler = new DocumentHandler("main");
+      documentHandler.setText("make \"size 10\nforward :size");
+      assertThat(documentHandler.references(0, 6, false))
+          .containsExactly(location("main", 1, 8, 13));
+    }
+
+    @Test
+    void includesDeclarationsWhenRequested() {
+      var documentHandler = new DocumentHandler("main");
+      documentHandler.setText("to square\nend\nsquare");
+      assertThat(documentHandler.references(2, 0, true))
+          .containsExactly(location("main", 0, 3, 9), location("main", 2, 0, 6))
+          .inOrder();
+    }
+
+    @Test
+    void findsReferencesInOtherDocumentsOfWorkspace() {
+      var workspaceIndex = new WorkspaceIndex();
+      var library = new DocumentHandler("library", workspaceIndex);
+      library.setText("to square\nend\nsquare");
+      library.precomputeAnalysis();
+      var documentHandler = new DocumentHandler("main", workspaceIndex);
+      documentHandler.setText("square");
+
+      assertThat(documentHandler.references(0, 0, true))
+          .containsExactly(
+              location("library", 0, 3, 9),
+              location("main", 0, 0, 6),
+              location("library", 2, 0, 6));
+    }
+
+    @Test
+    void returnsNothingWhenThereIsNoNameAtPosition() {
+      var documentHandler = new DocumentHandler("main");
+      documentHandler.setText("forward 10");
+      assertThat(documentHandler.references(0, 9, true)).isEmpty();
+    }
+  }
+
+  @Nested
+  class DocumentHighlights {
+    @Test
+    void highlightsDeclarationsAsWritesAndReferencesAsReads() {
+      var documentHandler = new DocumentHandler("main");
+      documentHandler.setText("make \"size 10\nforward :size");
+      assertThat(documentHandler.documentHighlight(1, 9))
+          .containsExactly(
+              new DocumentHighlight(range(0, 5, 10), DocumentHighlightKind.Write),
+              new DocumentHighlight(range(1, 8, 13), DocumentHighlightKind.Read));
+    }
+
+    @Test
+    void highlightsNothingWhenThereIsNoNameAtPosition() {
+      var documentHandler = new DocumentHandler("main");
+      documentHandler.setText("forward 10");
+      assertThat(documentHandler.documentHighlight(0, 0)).isEmpty();
+    }
+  }
+
+  private static Location location(String uri, int line, int start, int end) {
+    return new Location(uri, range(line, start, end));
+  }
+
+  private static Range range(int line, int start, int end) {
+    return new Range(new Position(line, start), new Position(line, end));
+  }
+
+  @Nested
+  class CloseDocument {
+    @Test
+    void analysisComputedAfterCloseIsNotIndexed() {
+      var workspaceIndex = new WorkspaceIndex();
+      var library = new DocumentHandler("library", workspaceIndex);
+      library.setText("to square\nend");
+
+      library.closeDocument();
+      library.precomputeAnalysis();
+      workspaceIndex.removeFile("library");
+
+      assertThat(workspaceIndex.procedureDeclarations("square", "main")).isEmpty();
+    }
+
+    @Test
+    void reopenedDocumentIsIndexedAgain() {
+      var workspaceIndex = new WorkspaceIndex();
+      var library = new DocumentHandler("library", workspaceIndex);
+      library.setText("to square\nend");
+      library.closeDocument();
+
+      library.setText("to square\nend");
+      library.precomputeAnalysis();
+      workspaceIndex.removeFile("library");
+
+      assertThat(workspaceIndex.procedureDeclarations("square", "main")).hasSize(1);
+    }
+  }
+
+  @Nested
+  class Analysis {
+    @Test
+    void throwsExceptionWhenNoDocumentProvided() {
+      var documentHandler = new DocumentHandler("uri");
+      assertThrows(IllegalStateException.class, documentHandler::analysis);
+    }
+
+    @Test
+    void isReplacedWithNewVersionOnEveryChange() {
+      var documentHandler = new DocumentHandler("uri");
+      documentHandler.setText("forward 10");
+      var previous = documentHandler.analysis();
+      var range = new Range(new Position(0, 8), new Position(0, 10));
+      documentHandler.applyChanges(List.of(new TextDocumentContentChangeEvent(range, "100")));
+
+      var current = documentHandler.analysis();
+
+      assertThat(current.version()).isGreaterThan(previous.version());
+      assertThat(previous.semanticTokens()).containsExactly(0, 0, 7, 0, 0, 0, 8, 2, 2, 0);
+      assertThat(current.semanticTokens()).containsExactly(0, 0, 7, 0, 0, 0, 8, 3, 2, 0);
+    }
+
+    @Test
+    void isComputedOncePerVersion() {
+      var documentHandler = new DocumentHandler("uri");
+      documentHandler.setText("forward 10");
+      documentHandler.precomputeAnalysis();
+      assertThat(documentHandler.analysis()).isSameInstanceAs(documentHandler.analysis());
+    }
+
+    @Test
+    void cancelledAnalysisIsComputedByNextCall() {
+      var documentHandler = new DocumentHandler("uri");
+      documentHandler.setText("forward 10");
+      assertThrows(CancellationException.class, () -> documentHandler.analysis(() -> true));
+      assertThat(documentHandler.analysis().semanticTokens())
+          .containsExactly(0, 0, 7, 0, 0, 0, 8, 2, 2, 0);
+    }
+
+    @Test
+    void isPublishedAsSnapshotOnceComputed() {
+      var documentHandler = new DocumentHandler("uri");
+      documentHandler.setText("forward 10");
+      assertThat(documentHandler.snapshot()).isNull();
+      var analysis = documentHandler.analysis();
+      assertThat(documentHandler.snapshot()).isSameInstanceAs(analysis);
+    }
+
+    @Test
+    void snapshotIsWithdrawnOnChange() {
+      var documentHandler = new DocumentHandler("uri");
+      documentHandler.setText("forward 10");
+      documentHandler.precomputeAnalysis();
+      documentHandler.setText("forward 20");
+      assertThat(documentHandler.snapshot()).isNull();
+    }
+
+    @Test
+    void precomputingIsAbandonedOnceTextBecomesStale() {
+      var documentHandler = new DocumentHandler("uri");
+      documentHandler.setText("to square\nend\nsquare");
+      var polls = new AtomicInteger();
+      documentHandler.precomputeAnalysis(() -> polls.incrementAndGet() > 1);
+      assertThat(polls.get()).isGreaterThan(1);
+      assertThat(documentHandler.snapshot()).isNull();
+      assertThat(documentHandler.analysis().lexerOnly()).isFalse();
+    }
+
+    @Test
+    void precomputingIsNoOpWhenNoDocumentProvided() {
+      var documentHandler = new DocumentHandler("uri");
+      documentHandler.precomputeAnalysis();
+      assertThrows(IllegalStateException.class, documentHandler::analysis);
+    }
+  }
 }
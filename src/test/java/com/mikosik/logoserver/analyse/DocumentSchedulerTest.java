@@ -0,0 +1,232 @@
+package com.mikosik.logoserver.analyse;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.util.concurrent.Uninterruptibles.awaitUninterruptibly;
+import static com.mikosik.logoserver.analyse.DocumentScheduler.Priority.BACKGROUND;
+import static com.mikosik.logoserver.analyse.DocumentScheduler.Priority.INTERACTIVE;
+import static java.lang.Thread.State.WAITING;
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class DocumentSchedulerTest {
+  @Test
+  void runsTasksOfLaneInSubmissionOrder() {
+    var scheduler = new DocumentScheduler(4);
+    var lane = scheduler.newLane("lane", INTERACTIVE);
+    var executed = new CopyOnWriteArrayList<Integer>();
+
+    for (int i = 0; i < 100; i++) {
+      int task = i;
+      lane.submit(INTERACTIVE, () -> executed.add(task));
+    }
+
+    await().until(() -> executed.size() == 100);
+    assertThat(executed).isInOrder();
+  }
+
+  @Test
+  void runsTasksOfDifferentLanesConcurrently() {
+    var scheduler = new DocumentScheduler(2);
+    var bothStarted = new CountDownLatch(2);
+
+    scheduler.execute("first", INTERACTIVE, () -> awaitBoth(bothStarted));
+    scheduler.execute("second", INTERACTIVE, () -> awaitBoth(bothStarted));
+
+    await().until(() -> bothStarted.getCount() == 0);
+  }
+
+  @Test
+  void doesNotRunMoreTasksAtOnceThanMaxConcurrency() {
+    var scheduler = new DocumentScheduler(2);
+    var running = new AtomicInteger();
+    var maxRunning = new AtomicInteger();
+    var finished = new AtomicInteger();
+
+    for (int i = 0; i < 20; i++) {
+      scheduler.execute("lane" + i, INTERACTIVE, () -> {
+        maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+        sleep(5);
+        running.decrementAndGet();
+        finished.incrementAndGet();
+      });
+    }
+
+    await().until(() -> finished.get() == 20);
+    assertThat(maxRunning.get()).isAtMost(2);
+  }
+
+  @Test
+  void runsInteractiveLaneBeforeBackgroundLane() {
+    var scheduler = new DocumentScheduler(1);
+    var blocker = block(scheduler);
+    var executed = new CopyOnWriteArrayList<String>();
+
+    scheduler.newLane("closed", BACKGROUND).submit(INTERACTIVE, () -> executed.add("closed"));
+    scheduler.newLane("open", INTERACTIVE).submit(INTERACTIVE, () -> executed.add("open"));
+    blocker.countDown();
+
+    await().until(() -> executed.size() == 2);
+    assertThat(executed).containsExactly("open", "closed").inOrder();
+  }
+
+  @Test
+  void runsInteractiveTaskBeforeBackgroundTaskOfOtherLane() {
+    var scheduler = new DocumentScheduler(1);
+    var blocker = block(scheduler);
+    var executed = new CopyOnWriteArrayList<String>();
+
+    scheduler.newLane("first", INTERACTIVE).submit(BACKGROUND, () -> executed.add("analysis"));
+    scheduler.newLane("second", INTERACTIVE).submit(INTERACTIVE, () -> executed.add("request"));
+    blocker.countDown();
+
+    await().until(() -> executed.size() == 2);
+    assertThat(executed).containsExactly("request", "analysis").inOrder();
+  }
+
+  @Test
+  void loweringPriorityOfQueuedLaneReordersIt() {
+    var scheduler = new DocumentScheduler(1);
+    var blocker = block(scheduler);
+    var executed = new CopyOnWriteArrayList<String>();
+    var closed = scheduler.newLane("closed", INTERACTIVE);
+
+    closed.submit(INTERACTIVE, () -> executed.add("closed"));
+    scheduler.newLane("open", INTERACTIVE).submit(INTERACTIVE, () -> executed.add("open"));
+    closed.setPriority(BACKGROUND);
+    blocker.countDown();
+
+    await().until(() -> executed.size() == 2);
+    assertThat(executed).containsExactly("open", "closed").inOrder();
+  }
+
+  @Test
+  void submittingToQueuedLaneKeepsItsPlace() {
+    var scheduler = new DocumentScheduler(1);
+    var blocker = block(scheduler);
+    var executed = new CopyOnWriteArrayList<String>();
+    var first = scheduler.newLane("first", BACKGROUND);
+
+    first.submit(BACKGROUND, () -> executed.add("first1"));
+    scheduler.newLane("second", BACKGROUND).submit(BACKGROUND, () -> executed.add("second"));
+    first.submit(BACKGROUND, () -> executed.add("first2"));
+    blocker.countDown();
+
+    await().until(() -> executed.size() == 3);
+    assertThat(executed).containsExactly("first1", "second", "first2").inOrder();
+  }
+
+  @Test
+  void lanesOfTheSamePriorityTakeTurns() {
+    var scheduler = new DocumentScheduler(1);
+    var blocker = block(scheduler);
+    var executed = new CopyOnWriteArrayList<String>();
+    var first = scheduler.newLane("first", INTERACTIVE);
+    var second = scheduler.newLane("second", INTERACTIVE);
+
+    first.submit(INTERACTIVE, () -> executed.add("first1"));
+    first.submit(INTERACTIVE, () -> executed.add("first2"));
+    second.submit(INTERACTIVE, () -> executed.add("second1"));
+    blocker.countDown();
+
+    await().until(() -> executed.size() == 3);
+    assertThat(executed).containsExactly("first1", "second1", "first2").inOrder();
+  }
+
+  @Test
+  void closedLaneDropsQueuedTasks() {
+    var scheduler = new DocumentScheduler(1);
+    var blocker = block(scheduler);
+    var executed = new CopyOnWriteArrayList<String>();
+    var lane = scheduler.newLane("lane", INTERACTIVE);
+
+    lane.submit(INTERACTIVE, () -> executed.add("dropped"));
+    lane.close();
+    scheduler.execute("other", INTERACTIVE, () -> executed.add("other"));
+    blocker.countDown();
+
+    await().until(() -> executed.size() == 1);
+    assertThat(executed).containsExactly("other");
+  }
+
+  @Test
+  void submittingToClosedLaneFails() {
+    var lane = new DocumentScheduler(1).newLane("lane", INTERACTIVE);
+    lane.close();
+    assertThrows(IllegalStateException.class, () -> lane.submit(INTERACTIVE, () -> {}));
+  }
+
+  @Test
+  void runtimeExceptionDoesNotStopLane() {
+    var scheduler = new DocumentScheduler(1);
+    var lane = scheduler.newLane("lane", INTERACTIVE);
+    var executed = new CopyOnWriteArrayList<String>();
+
+    lane.submit(INTERACTIVE, () -> {
+      throw new RuntimeException("test exception");
+    });
+    lane.submit(INTERACTIVE, () -> executed.add("next"));
+
+    await().until(() -> executed.equals(List.of("next")));
+  }
+
+  @Test
+  void errorDoesNotTakeThreadAwayFromScheduler() {
+    var scheduler = new DocumentScheduler(2);
+    var executed = new CopyOnWriteArrayList<String>();
+
+    for (int i = 0; i < 3; i++) {
+      scheduler.execute("failing" + i, INTERACTIVE, () -> {
+        throw new StackOverflowError("test error");
+      });
+    }
+    scheduler.execute("next", INTERACTIVE, () -> executed.add("next"));
+
+    await().until(() -> executed.equals(List.of("next")));
+  }
+
+  @Test
+  void idleThreadRunsLaterTasks() {
+    var scheduler = new DocumentScheduler(1);
+    var threads = new CopyOnWriteArrayList<Thread>();
+
+    scheduler.execute("first", INTERACTIVE, () -> threads.add(Thread.currentThread()));
+    await().until(() -> threads.size() == 1 && threads.getFirst().getState() == WAITING);
+    scheduler.execute("second", INTERACTIVE, () -> threads.add(Thread.currentThread()));
+
+    await().until(() -> threads.size() == 2);
+    assertThat(threads.get(1)).isSameInstanceAs(threads.getFirst());
+  }
+
+  /**
+   * @return latch that keeps the only thread of given scheduler busy until it is counted down
+   */
+  private static CountDownLatch block(DocumentScheduler scheduler) {
+    var blocker = new CountDownLatch(1);
+    var blocked = new CountDownLatch(1);
+    scheduler.execute("blocker", INTERACTIVE, () -> {
+      blocked.countDown();
+      awaitUninterruptibly(blocker);
+    });
+    awaitUninterruptibly(blocked);
+    return blocker;
+  }
+
+  private static void awaitBoth(CountDownLatch latch) {
+    latch.countDown();
+    awaitUninterruptibly(latch);
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
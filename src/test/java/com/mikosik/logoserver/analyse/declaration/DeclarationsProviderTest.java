@@ -63,6 +63,20 @@ public class DeclarationsProviderTest {
     assertThat(declarations).isEqualTo(new Declarations(mapOf(), procedures));
   }
 
+  @Test
+  void returnsLowerCaseNamesOfDeclarations() {
+    var code = """
+        make "Size 100
+        to SQUARE
+        end""";
+
+    var declarations = declarationsFrom(code);
+
+    var variables = mapOf("size", new Range(new Position(0, 5), new Position(0, 10)));
+    var procedures = mapOf("square", new Range(new Position(1, 3), new Position(1, 9)));
+    assertThat(declarations).isEqualTo(new Declarations(variables, procedures));
+  }
+
   @Test
   void returnsDeclarationsForMultipleCommands() {
     var code =
@@ -85,8 +99,8 @@ public class DeclarationsProviderTest {
   }
 
   private static Declarations declarationsFrom(String document) {
-    var parseTree = new Parser().parse(document).parseTree();
-    return new DeclarationsProvider().declarationsFrom(parseTree);
+    var syntaxTree = new Parser().parse(document).syntaxTree();
+    return new DeclarationsProvider().declarationsFrom(syntaxTree);
   }
 
   private static ImmutableMultimap<String, Range> mapOf() {
@@ -0,0 +1,41 @@
+package com.mikosik.logoserver.analyse.declaration;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.mikosik.logoserver.analyse.parser.Parser;
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.junit.jupiter.api.Test;
+
+public class ReferencesTest {
+  @Test
+  void groupsProcedureReferencesByLowerCaseName() {
+    var references = referencesOf("to square\nend\nsquare\nSQUARE");
+    assertThat(references.procedures().get("square"))
+        .containsExactly(range(2, 0, 6), range(3, 0, 6))
+        .inOrder();
+  }
+
+  @Test
+  void groupsVariableReferencesByNameWithoutColon() {
+    var references = referencesOf("make \"size 10\nforward :size\nright :Size");
+    assertThat(references.variables().get("size"))
+        .containsExactly(range(1, 8, 13), range(2, 6, 11))
+        .inOrder();
+  }
+
+  @Test
+  void emptyHasNoReferences() {
+    assertThat(References.empty().procedures()).isEmpty();
+    assertThat(References.empty().variables()).isEmpty();
+  }
+
+  private static References referencesOf(String document) {
+    var syntaxTree = new Parser().parse(document).syntaxTree();
+    return References.of(syntaxTree, new ReferencesProvider().referencesFrom(syntaxTree));
+  }
+
+  private static Range range(int line, int start, int end) {
+    return new Range(new Position(line, start), new Position(line, end));
+  }
+}
@@ -9,7 +9,7 @@ import org.eclipse.lsp4j.Range;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 
-public class DeclarationFinderTest {
+public class SymbolIndexTest {
   @Nested
   class FindDeclarationOfVariable {
     @Test
@@ -207,18 +207,52 @@ public class DeclarationFinderTest {
     }
   }
 
+  @Nested
+  class Lookup {
+    private static final String DOCUMENT = """
+        make "x 1
+        show :x + :x
+        show 2""";
+
+    @Test
+    void findsReferenceRightAfterItsEnd() {
+      testFindDeclarations(
+          DOCUMENT, 1, 7, List.of(new Range(new Position(0, 5), new Position(0, 7))));
+    }
+
+    @Test
+    void findsNothingBetweenReferences() {
+      testFindDeclarations(DOCUMENT, 1, 8, List.of());
+    }
+
+    @Test
+    void findsNothingAtLineWithoutReferences() {
+      testFindDeclarations(DOCUMENT, 2, 5, List.of());
+    }
+
+    @Test
+    void findsNothingBeyondLastLine() {
+      testFindDeclarations(DOCUMENT, 7, 0, List.of());
+    }
+
+    @Test
+    void emptyIndexFindsNothing() {
+      assertThat(SymbolIndex.empty().declarationsAt(0, 0)).isEmpty();
+    }
+  }
+
   private void testFindDeclarations(
       String document, int line, int characterAtLine, List<Range> expected) {
-    var declarationFinder = declarationFinder(document);
-    var declarations = declarationFinder.findDeclarationsOf(line, characterAtLine);
+    var symbolIndex = symbolIndex(document);
+    var declarations = symbolIndex.declarationsAt(line, characterAtLine);
     assertThat(declarations).isEqualTo(expected);
   }
 
-  private DeclarationFinder declarationFinder(String document) {
+  private SymbolIndex symbolIndex(String document) {
     var parsedDocument = new Parser().parse(document);
-    var parseTree = parsedDocument.parseTree();
-    var references = new ReferencesProvider().referencesFrom(parseTree);
-    var declarations = new DeclarationsProvider().declarationsFrom(parseTree);
-    return new DeclarationFinder(references, declarations);
+    var syntaxTree = parsedDocument.syntaxTree();
+    var references = new ReferencesProvider().referencesFrom(syntaxTree);
+    var declarations = new DeclarationsProvider().declarationsFrom(syntaxTree);
+    return SymbolIndex.of(syntaxTree, references, declarations);
   }
 }
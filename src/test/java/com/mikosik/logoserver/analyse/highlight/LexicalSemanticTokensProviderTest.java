@@ -0,0 +1,66 @@
+package com.mikosik.logoserver.analyse.highlight;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.mikosik.logoserver.analyse.parser.Parser;
+import java.util.List;
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.junit.jupiter.api.Test;
+
+public class LexicalSemanticTokensProviderTest {
+  @Test
+  void returnsTokensForKeywordsAndNumbers() {
+    assertSemanticTokensOf(
+        "forward 10",
+        List.of(
+            0, 0, 7, 0, 0, // forward
+            0, 8, 2, 2, 0 // 10
+            ));
+  }
+
+  @Test
+  void returnsTokensForWordsAndVariables() {
+    assertSemanticTokensOf(
+        "make \"x :y",
+        List.of(
+            0, 0, 4, 0, 0, // make
+            0, 5, 2, 1, 0, // "x
+            0, 3, 2, 4, 0 // :y
+            ));
+  }
+
+  @Test
+  void returnsDefinitionForNameAfterTo() {
+    assertSemanticTokensOf(
+        "to square :size\nend\nsquare 10",
+        List.of(
+            0, 0, 2, 0, 0, // to
+            0, 3, 6, 3, 2, // square
+            0, 7, 5, 4, 0, // :size
+            1, 0, 3, 0, 0, // end
+            1, 7, 2, 2, 0 // 10
+            ));
+  }
+
+  @Test
+  void returnsTokensIntersectingRange() {
+    var syntaxTree = new Parser().lex("to square\nend\nforward 10").syntaxTree();
+    var range = new Range(new Position(0, 4), new Position(2, 2));
+
+    var semanticTokens = new LexicalSemanticTokensProvider().semanticTokensOf(syntaxTree, range);
+
+    assertThat(semanticTokens)
+        .isEqualTo(List.of(
+            0, 3, 6, 3, 2, // square
+            1, 0, 3, 0, 0, // end
+            1, 0, 7, 0, 0 // forward
+            ));
+  }
+
+  private static void assertSemanticTokensOf(String document, List<Integer> expected) {
+    var syntaxTree = new Parser().lex(document).syntaxTree();
+    var semanticTokens = new LexicalSemanticTokensProvider().semanticTokensOf(syntaxTree);
+    assertThat(semanticTokens).isEqualTo(expected);
+  }
+}
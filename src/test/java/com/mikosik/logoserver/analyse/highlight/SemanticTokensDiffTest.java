@@ -0,0 +1,54 @@
+package com.mikosik.logoserver.analyse.highlight;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.mikosik.logoserver.analyse.highlight.SemanticTokensDiff.diff;
+
+import java.util.List;
+import org.eclipse.lsp4j.SemanticTokensEdit;
+import org.junit.jupiter.api.Test;
+
+public class SemanticTokensDiffTest {
+  @Test
+  void noEditsForEqualTokens() {
+    var tokens = SemanticTokensData.of(0, 0, 2, 0, 0, 0, 3, 2, 2, 0);
+    assertThat(diff(tokens, SemanticTokensData.of(tokens.toIntArray()))).isEmpty();
+  }
+
+  @Test
+  void replacesChangedTokenOnly() {
+    var previous = SemanticTokensData.of(0, 0, 2, 0, 0, 0, 3, 2, 2, 0, 1, 0, 2, 0, 0);
+    var current = SemanticTokensData.of(0, 0, 2, 0, 0, 0, 3, 3, 2, 0, 1, 0, 2, 0, 0);
+    assertThat(diff(previous, current))
+        .containsExactly(new SemanticTokensEdit(5, 5, List.of(0, 3, 3, 2, 0)));
+  }
+
+  @Test
+  void insertsToken() {
+    var previous = SemanticTokensData.of(0, 0, 2, 0, 0, 1, 0, 2, 0, 0);
+    var current = SemanticTokensData.of(0, 0, 2, 0, 0, 0, 3, 2, 2, 0, 1, 0, 2, 0, 0);
+    assertThat(diff(previous, current))
+        .containsExactly(new SemanticTokensEdit(5, 0, List.of(0, 3, 2, 2, 0)));
+  }
+
+  @Test
+  void deletesToken() {
+    var previous = SemanticTokensData.of(0, 0, 2, 0, 0, 0, 3, 2, 2, 0, 1, 0, 2, 0, 0);
+    var current = SemanticTokensData.of(0, 0, 2, 0, 0, 1, 0, 2, 0, 0);
+    assertThat(diff(previous, current)).containsExactly(new SemanticTokensEdit(5, 5, List.of()));
+  }
+
+  @Test
+  void doesNotSplitTokenWhenPrefixEndsInsideToken() {
+    var previous = SemanticTokensData.of(0, 0, 7, 0, 0);
+    var current = SemanticTokensData.of(0, 0, 2, 0, 0);
+    assertThat(diff(previous, current))
+        .containsExactly(new SemanticTokensEdit(0, 5, List.of(0, 0, 2, 0, 0)));
+  }
+
+  @Test
+  void replacesAllTokensOfEmptyDocument() {
+    var current = SemanticTokensData.of(0, 0, 2, 0, 0);
+    assertThat(diff(SemanticTokensData.empty(), current))
+        .containsExactly(new SemanticTokensEdit(0, 0, List.of(0, 0, 2, 0, 0)));
+  }
+}
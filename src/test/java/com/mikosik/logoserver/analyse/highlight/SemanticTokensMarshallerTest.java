@@ -34,4 +34,22 @@ public class SemanticTokensMarshallerTest {
         .build();
     assertThat(semanticTokens).isEqualTo(List.of(0, 5, 3, 0, 1, 0, 5, 5, 2, 2));
   }
+
+  @Test
+  public void growsBeyondExpectedNumberOfTokens() {
+    var marshaller = new SemanticTokensMarshaller(1);
+    for (int line = 0; line < 100; line++) {
+      marshaller.add(line, 0, 2, KEYWORD);
+    }
+    var semanticTokens = marshaller.build();
+    assertThat(semanticTokens).hasSize(500);
+    assertThat(semanticTokens.subList(495, 500)).isEqualTo(List.of(1, 0, 2, 0, 0));
+  }
+
+  @Test
+  public void addTokenWithModifierMask() {
+    var mask = SemanticTokensMarshaller.buildTokenModifierMask(DECLARATION, DEFINITION);
+    var semanticTokens = new SemanticTokensMarshaller().add(0, 5, 10, KEYWORD, mask).build();
+    assertThat(semanticTokens).isEqualTo(List.of(0, 5, 10, 0, 3));
+  }
 }
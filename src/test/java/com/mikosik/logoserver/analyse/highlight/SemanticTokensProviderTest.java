@@ -4,6 +4,8 @@ import static com.google.common.truth.Truth.assertThat;
 
 import com.mikosik.logoserver.analyse.parser.Parser;
 import java.util.List;
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
 import org.junit.jupiter.api.Test;
 
 public class SemanticTokensProviderTest {
@@ -1448,9 +1450,50 @@ public class SemanticTokensProviderTest {
             ));
   }
 
+  @Test
+  void returnsTokensIntersectingRange() {
+    var document = "forward 10\nright 90\nback 20";
+    var syntaxTree = new Parser().parse(document).syntaxTree();
+    var range = new Range(new Position(1, 3), new Position(2, 2));
+
+    var data = new SemanticTokensProvider().semanticTokensOf(syntaxTree, range);
+
+    assertThat(data)
+        .isEqualTo(List.of(
+            1, 0, 5, 0, 0, // right
+            0, 6, 2, 2, 0, // 90
+            1, 0, 4, 0, 0 // back
+            ));
+  }
+
+  @Test
+  void returnsTokensOfRangeInsideNestedStatement() {
+    var document = "to square :size\n  repeat 4 [fd :size rt 90]\nend";
+    var syntaxTree = new Parser().parse(document).syntaxTree();
+    var range = new Range(new Position(1, 12), new Position(1, 20));
+
+    var data = new SemanticTokensProvider().semanticTokensOf(syntaxTree, range);
+
+    assertThat(data)
+        .isEqualTo(List.of(
+            1, 12, 2, 0, 0, // fd
+            0, 3, 5, 4, 0 // :size
+            ));
+  }
+
+  @Test
+  void returnsNoTokensForRangeBetweenTokens() {
+    var syntaxTree = new Parser().parse("forward 10\n\n\nright 90").syntaxTree();
+    var range = new Range(new Position(1, 0), new Position(2, 0));
+
+    var data = new SemanticTokensProvider().semanticTokensOf(syntaxTree, range);
+
+    assertThat(data).isEmpty();
+  }
+
   private static void assertSemanticTokensOf(String document, List<Integer> expected) {
-    var parseTree = new Parser().parse(document).parseTree();
-    var data = new SemanticTokensProvider().semanticTokensOf(parseTree);
+    var syntaxTree = new Parser().parse(document).syntaxTree();
+    var data = new SemanticTokensProvider().semanticTokensOf(syntaxTree);
     assertThat(data).isEqualTo(expected);
   }
 }
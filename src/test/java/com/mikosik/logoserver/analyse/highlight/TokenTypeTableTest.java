@@ -0,0 +1,36 @@
+package com.mikosik.logoserver.analyse.highlight;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.mikosik.logoserver.analyse.base.TokenType.KEYWORD;
+
+import com.mikosik.logoserver.analyse.parser.KeywordTable;
+import com.mikosik.logoserver.analyse.parser.antlr.LogoLexer;
+import org.antlr.v4.runtime.Token;
+import org.junit.jupiter.api.Test;
+
+public class TokenTypeTableTest {
+  @Test
+  void keywordIsClassifiedAsKeywordRegardlessOfContext() {
+    int forward = KeywordTable.logo().typeOf("forward");
+    assertThat(TokenTypeTable.contextFree(forward)).isEqualTo(KEYWORD);
+    assertThat(TokenTypeTable.contextDependent(forward)).isFalse();
+  }
+
+  @Test
+  void symbolicKeywordIsClassifiedAsKeywordRegardlessOfContext() {
+    int substring = KeywordTable.logo().typeOf("substring?");
+    assertThat(TokenTypeTable.contextFree(substring)).isEqualTo(KEYWORD);
+  }
+
+  @Test
+  void nameIsClassifiedByContext() {
+    assertThat(TokenTypeTable.contextFree(LogoLexer.NAME)).isNull();
+    assertThat(TokenTypeTable.contextDependent(LogoLexer.NAME)).isTrue();
+  }
+
+  @Test
+  void eofIsNotClassified() {
+    assertThat(TokenTypeTable.contextFree(Token.EOF)).isNull();
+    assertThat(TokenTypeTable.contextDependent(Token.EOF)).isFalse();
+  }
+}
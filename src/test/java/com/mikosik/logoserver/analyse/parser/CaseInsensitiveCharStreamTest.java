@@ -0,0 +1,50 @@
+package com.mikosik.logoserver.analyse.parser;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.antlr.v4.runtime.IntStream;
+import org.antlr.v4.runtime.misc.Interval;
+import org.junit.jupiter.api.Test;
+
+public class CaseInsensitiveCharStreamTest {
+  @Test
+  void lookAheadReturnsLowerCaseCharacters() {
+    var stream = new CaseInsensitiveCharStream("Fd");
+    assertThat(stream.LA(1)).isEqualTo('f');
+    assertThat(stream.LA(2)).isEqualTo('d');
+    assertThat(stream.LA(3)).isEqualTo(IntStream.EOF);
+  }
+
+  @Test
+  void lookBehindReturnsLowerCaseCharacters() {
+    var stream = new CaseInsensitiveCharStream("FD");
+    stream.consume();
+    assertThat(stream.LA(-1)).isEqualTo('f');
+  }
+
+  @Test
+  void nonAsciiLettersAreNotFolded() {
+    var stream = new CaseInsensitiveCharStream("\u212A"); // Kelvin sign
+    assertThat(stream.LA(1)).isEqualTo(0x212A);
+  }
+
+  @Test
+  void getTextReturnsOriginalCase() {
+    var stream = new CaseInsensitiveCharStream("FORWARD 10");
+    assertThat(stream.getText(Interval.of(0, 6))).isEqualTo("FORWARD");
+  }
+
+  @Test
+  void getTextIsClampedToStreamSize() {
+    var stream = new CaseInsensitiveCharStream("FD");
+    assertThat(stream.getText(Interval.of(1, 5))).isEqualTo("D");
+  }
+
+  @Test
+  void seekChangesIndex() {
+    var stream = new CaseInsensitiveCharStream("FD 10");
+    stream.seek(3);
+    assertThat(stream.index()).isEqualTo(3);
+    assertThat(stream.LA(1)).isEqualTo('1');
+  }
+}
@@ -0,0 +1,102 @@
+package com.mikosik.logoserver.analyse.parser;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.time.Instant.EPOCH;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class DfaCacheTest {
+  private static final Duration IDLE_TIMEOUT = Duration.ofMinutes(10);
+  private AtomicReference<Instant> clock;
+
+  @BeforeEach
+  public void before() {
+    this.clock = new AtomicReference<>(EPOCH);
+  }
+
+  @Test
+  void acquireReturnsSameGenerationWhenBelowLimit() {
+    var cache = new DfaCache(1_000_000, IDLE_TIMEOUT, clock::get);
+    var generation = cache.acquire();
+    parseWith(cache);
+
+    assertThat(cache.acquire()).isSameInstanceAs(generation);
+  }
+
+  @Test
+  void acquireDoesNotCountStates() {
+    var cache = new DfaCache(1, IDLE_TIMEOUT, clock::get);
+    var generation = cache.acquire();
+    parseWith(cache);
+
+    assertThat(cache.acquire()).isSameInstanceAs(generation);
+  }
+
+  @Test
+  void clearIfFullClearsCacheExceedingMaxStates() {
+    var cache = new DfaCache(1, IDLE_TIMEOUT, clock::get);
+    var generation = cache.acquire();
+    parseWith(cache);
+
+    cache.clearIfFull();
+
+    var next = cache.acquire();
+    assertThat(next).isNotSameInstanceAs(generation);
+    assertThat(next.states()).isEqualTo(0);
+  }
+
+  @Test
+  void clearIfFullKeepsCacheBelowMaxStates() {
+    var cache = new DfaCache(1_000_000, IDLE_TIMEOUT, clock::get);
+    var generation = cache.acquire();
+    parseWith(cache);
+
+    cache.clearIfFull();
+
+    assertThat(cache.acquire()).isSameInstanceAs(generation);
+  }
+
+  @Test
+  void acquireClearsIdleCache() {
+    var cache = new DfaCache(1_000_000, IDLE_TIMEOUT, clock::get);
+    var generation = cache.acquire();
+    parseWith(cache);
+    clock.set(EPOCH.plus(IDLE_TIMEOUT));
+
+    assertThat(cache.acquire()).isNotSameInstanceAs(generation);
+  }
+
+  @Test
+  void clearIfIdleClearsIdleCache() {
+    var cache = new DfaCache(1_000_000, IDLE_TIMEOUT, clock::get);
+    var generation = cache.acquire();
+    parseWith(cache);
+    clock.set(EPOCH.plus(IDLE_TIMEOUT));
+
+    cache.clearIfIdle();
+    clock.set(EPOCH);
+
+    assertThat(cache.acquire()).isNotSameInstanceAs(generation);
+  }
+
+  @Test
+  void clearIfIdleKeepsRecentlyUsedCache() {
+    var cache = new DfaCache(1_000_000, IDLE_TIMEOUT, clock::get);
+    var generation = cache.acquire();
+    parseWith(cache);
+    clock.set(EPOCH.plus(IDLE_TIMEOUT).minusSeconds(1));
+
+    cache.clearIfIdle();
+
+    assertThat(cache.acquire()).isSameInstanceAs(generation);
+  }
+
+  private static void parseWith(DfaCache cache) {
+    new Parser(ParserSettings.DEFAULT, new ParseMetrics(), cache)
+        .parse("to square :size repeat 4 [forward :size right 90] end square 10");
+  }
+}
@@ -0,0 +1,81 @@
+package com.mikosik.logoserver.analyse.parser;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.mikosik.logoserver.analyse.parser.antlr.LogoLexer;
+import java.util.ArrayList;
+import java.util.List;
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.Lexer;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.TokenSource;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+public class KeywordTableLexerTest {
+  @ParameterizedTest
+  @ValueSource(
+      strings = {
+        "forward 10",
+        "FD 10 Bk 5",
+        "to square :size\n  repeat 4 [forward :size right 90]\nend\nsquare 100",
+        "define \"circle [[r] [repeat 36 [fd :r rt 10]]] end",
+        "forwardx fd1 forward_ forward? do.while do.until do.whilex do.whil",
+        "shown? shown?? pendown?x word?abc wordp? substring?",
+        "make \"x -5 make \"y -.5 make \"z 5.25 make \"w 5. -x - 3 -.x",
+        "print (list 1 2 3) [a b c] = < > + - * /",
+        "1.5.3 .5 ..5 :1 \"2 : \" ?",
+        "fd 10 #comment\r\nrt 90\t\tlt 45 é fd",
+        "fd 10 :",
+      })
+  void producesSameTokensAsGeneratedLexer(String document) {
+    var expectedErrors = new ArrayList<String>();
+    var expected = tokens(newLexer(document, expectedErrors));
+    var errors = new ArrayList<String>();
+    var lexer = new KeywordTableLexer(new CaseInsensitiveCharStream(document));
+    lexer.addErrorListener(new CollectingErrorListener(errors));
+
+    assertThat(tokens(lexer)).isEqualTo(expected);
+    assertThat(errors).isEqualTo(expectedErrors);
+  }
+
+  private static Lexer newLexer(String document, List<String> errors) {
+    var lexer = new LogoLexer(new CaseInsensitiveCharStream(document));
+    lexer.removeErrorListeners();
+    lexer.addErrorListener(new CollectingErrorListener(errors));
+    return lexer;
+  }
+
+  private static List<String> tokens(TokenSource tokenSource) {
+    var result = new ArrayList<String>();
+    Token token;
+    do {
+      token = tokenSource.nextToken();
+      result.add(token.getType() + ":" + token.getText() + "@" + token.getLine() + ":"
+          + token.getCharPositionInLine() + "[" + token.getStartIndex() + ".."
+          + token.getStopIndex() + "]");
+    } while (token.getType() != Token.EOF);
+    return result;
+  }
+
+  private static class CollectingErrorListener extends BaseErrorListener {
+    private final List<String> errors;
+
+    private CollectingErrorListener(List<String> errors) {
+      this.errors = errors;
+    }
+
+    @Override
+    public void syntaxError(
+        Recognizer<?, ?> recognizer,
+        Object offendingSymbol,
+        int line,
+        int charPositionInLine,
+        String msg,
+        RecognitionException e) {
+      errors.add(line + ":" + charPositionInLine + " " + msg);
+    }
+  }
+}
@@ -0,0 +1,50 @@
+package com.mikosik.logoserver.analyse.parser;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.mikosik.logoserver.analyse.parser.antlr.LogoLexer;
+import org.antlr.v4.runtime.Token;
+import org.junit.jupiter.api.Test;
+
+public class KeywordTableTest {
+  @Test
+  void returnsTypeOfEveryKeywordLiteral() {
+    var vocabulary = LogoLexer.VOCABULARY;
+    for (int type = 1; type <= vocabulary.getMaxTokenType(); type++) {
+      var literal = KeywordTable.literalOf(vocabulary, type);
+      if (literal != null && Character.isLetter(literal.charAt(0))) {
+        assertThat(KeywordTable.logo().typeOf(literal)).isEqualTo(type);
+      }
+    }
+  }
+
+  @Test
+  void returnsTypeOfKeywordThatIsNotName() {
+    assertThat(KeywordTable.logo().typeOf("substring?")).isNotEqualTo(Token.INVALID_TYPE);
+  }
+
+  @Test
+  void returnsInvalidTypeForName() {
+    assertThat(KeywordTable.logo().typeOf("square")).isEqualTo(Token.INVALID_TYPE);
+  }
+
+  @Test
+  void returnsInvalidTypeForKeywordPrefix() {
+    assertThat(KeywordTable.logo().typeOf("forwar")).isEqualTo(Token.INVALID_TYPE);
+  }
+
+  @Test
+  void returnsInvalidTypeForPunctuation() {
+    assertThat(KeywordTable.logo().typeOf("[")).isEqualTo(Token.INVALID_TYPE);
+  }
+
+  @Test
+  void recognizesKeywordTokenType() {
+    assertThat(KeywordTable.logo().isKeyword(KeywordTable.logo().typeOf("fd"))).isTrue();
+  }
+
+  @Test
+  void doesNotRecognizeNameTokenTypeAsKeyword() {
+    assertThat(KeywordTable.logo().isKeyword(LogoLexer.NAME)).isFalse();
+  }
+}
@@ -0,0 +1,54 @@
+package com.mikosik.logoserver.analyse.parser;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+public class ParseBudgetTest {
+  @Test
+  void passesCheckWithinBudget() {
+    var nanoTime = new AtomicLong();
+    var budget = new ParseBudget(Duration.ofSeconds(1), () -> false, nanoTime::get);
+
+    nanoTime.set(Duration.ofMillis(999).toNanos());
+
+    budget.check();
+  }
+
+  @Test
+  void failsCheckAfterDeadline() {
+    var nanoTime = new AtomicLong();
+    var budget = new ParseBudget(Duration.ofSeconds(1), () -> false, nanoTime::get);
+
+    nanoTime.set(Duration.ofMillis(1001).toNanos());
+
+    var exception = assertThrows(ParseBudget.ExceededException.class, budget::check);
+    assertThat(exception.cancelled()).isFalse();
+  }
+
+  @Test
+  void failsCheckWhenCancelled() {
+    var cancelled = new AtomicBoolean();
+    var budget = new ParseBudget(Duration.ofSeconds(1), cancelled::get, System::nanoTime);
+
+    cancelled.set(true);
+
+    var exception = assertThrows(ParseBudget.ExceededException.class, budget::check);
+    assertThat(exception.cancelled()).isTrue();
+  }
+
+  @Test
+  void checksOncePerInterval() {
+    var cancelled = new AtomicBoolean();
+    var budget = new ParseBudget(Duration.ofSeconds(1), cancelled::get, System::nanoTime);
+    budget.check();
+
+    cancelled.set(true);
+
+    budget.check();
+  }
+}
@@ -1,12 +1,21 @@
 package com.mikosik.logoserver.analyse.parser;
 
 import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.util.concurrent.Uninterruptibles.awaitUninterruptibly;
+import static com.mikosik.logoserver.analyse.DocumentScheduler.Priority.INTERACTIVE;
 import static org.eclipse.lsp4j.DiagnosticSeverity.Error;
 
+import com.mikosik.logoserver.analyse.DocumentScheduler;
+import com.mikosik.logoserver.analyse.text.TextBuffer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import org.eclipse.lsp4j.Diagnostic;
 import org.eclipse.lsp4j.Position;
 import org.eclipse.lsp4j.Range;
+import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
 
 public class ParserTest {
@@ -85,4 +94,414 @@ public class ParserTest {
 
     assertThat(diagnostics).isEmpty();
   }
+
+  @Test
+  void parsesKeywordsCaseInsensitively() {
+    var diagnostics = new Parser().parse("REPEAT 4 [Forward 10 rIGHT 90]").diagnostics();
+
+    assertThat(diagnostics).isEmpty();
+  }
+
+  @Test
+  void diagnosticsKeepOriginalCase() {
+    var code = "repeat 4 FORWARD 10]";
+
+    var diagnostics = new Parser().parse(code).diagnostics();
+
+    var diagnostic = new Diagnostic(
+        new Range(new Position(0, 9), new Position(0, 16)),
+        "missing '[' at 'FORWARD'",
+        Error,
+        null);
+    assertThat(diagnostics).isEqualTo(List.of(diagnostic));
+  }
+
+  @Nested
+  class ParseBudgets {
+    @Test
+    void cancelledParseReturnsLexerOnlyResult() {
+      var metrics = new ParseMetrics();
+      var parser = new Parser(ParserSettings.DEFAULT, metrics, DfaCache.shared());
+
+      var parsedDocument = parser.parse("to square\nend", () -> true);
+
+      assertThat(parsedDocument.lexerOnly()).isTrue();
+      assertThat(parsedDocument.syntaxTree().toStringTree()).isEqualTo("(document to square end)");
+      assertThat(metrics.cancelledParses()).isEqualTo(1);
+      assertThat(metrics.timedOutParses()).isEqualTo(0);
+    }
+
+    @Test
+    void parseExceedingTimeBudgetReturnsLexerOnlyResult() {
+      var metrics = new ParseMetrics();
+      var settings = ParserSettings.DEFAULT.withParseTimeBudget(Duration.ZERO);
+      var parser = new Parser(settings, metrics, DfaCache.shared());
+
+      var parsedDocument = parser.parse("repeat 4 [fd 10]");
+
+      assertThat(parsedDocument.lexerOnly()).isTrue();
+      assertThat(metrics.timedOutParses()).isEqualTo(1);
+    }
+
+    @Test
+    void backgroundParseIgnoresTimeBudget() {
+      var metrics = new ParseMetrics();
+      var settings = ParserSettings.DEFAULT.withParseTimeBudget(Duration.ZERO);
+      var parser = new Parser(settings, metrics, DfaCache.shared());
+
+      var parsedDocument = parser.parseInBackground("repeat 4 [fd 10]", () -> false);
+
+      assertThat(parsedDocument.lexerOnly()).isFalse();
+      assertThat(metrics.timedOutParses()).isEqualTo(0);
+    }
+
+    @Test
+    void cancelledBackgroundParseReturnsLexerOnlyResult() {
+      var metrics = new ParseMetrics();
+      var parser = new Parser(ParserSettings.DEFAULT, metrics, DfaCache.shared());
+
+      var parsedDocument = parser.parseInBackground("to square\nend", () -> true);
+
+      assertThat(parsedDocument.lexerOnly()).isTrue();
+      assertThat(metrics.cancelledParses()).isEqualTo(1);
+    }
+
+    @Test
+    void lexReturnsLexerOnlyResultWithoutRecordingAbandonedParse() {
+      var metrics = new ParseMetrics();
+      var parser = new Parser(ParserSettings.DEFAULT, metrics, DfaCache.shared());
+
+      var parsedDocument = parser.lex("to square\nend");
+
+      assertThat(parsedDocument.lexerOnly()).isTrue();
+      assertThat(parsedDocument.syntaxTree().toStringTree()).isEqualTo("(document to square end)");
+      assertThat(metrics.cancelledParses()).isEqualTo(0);
+      assertThat(metrics.timedOutParses()).isEqualTo(0);
+    }
+
+    @Test
+    void lexerOnlyResultContainsLexerDiagnostics() {
+      var parsedDocument = new Parser().parse("fd ? 10", () -> true);
+
+      var diagnostic = new Diagnostic(
+          new Range(new Position(0, 3), new Position(0, 3)),
+          "token recognition error at: '?'",
+          Error,
+          null);
+      assertThat(parsedDocument.diagnostics()).isEqualTo(List.of(diagnostic));
+    }
+
+    @Test
+    void parseWithinBudgetIsComplete() {
+      var parsedDocument = new Parser().parse("repeat 4 [fd 10]", () -> false);
+
+      assertThat(parsedDocument.lexerOnly()).isFalse();
+    }
+
+    @Test
+    void reparseOfLexerOnlyDocumentParsesWholeDocument() {
+      var parser = new Parser();
+      var buffer = new TextBuffer("fd 10\nrt 90");
+      var previous = parser.parse(buffer.toString(), () -> true);
+      var edit = buffer.replace(new Range(new Position(1, 3), new Position(1, 5)), "45");
+
+      var reparsed = parser.reparse(previous, edit, buffer);
+
+      assertThat(reparsed.lexerOnly()).isFalse();
+      assertThat(reparsed.syntaxTree().toStringTree())
+          .isEqualTo(parser.parse(buffer.toString()).syntaxTree().toStringTree());
+    }
+  }
+
+  @Nested
+  class TwoStageParsing {
+    @Test
+    void validCodeIsParsedInSllModeOnly() {
+      var metrics = new ParseMetrics();
+      var parser = newParser(true, metrics);
+
+      var diagnostics = parser.parse("repeat 4 [forward 10 right 90]").diagnostics();
+
+      assertThat(diagnostics).isEmpty();
+      assertThat(metrics.sllParses()).isEqualTo(1);
+      assertThat(metrics.llFallbacks()).isEqualTo(0);
+    }
+
+    @Test
+    void invalidCodeFallsBackToLlMode() {
+      var metrics = new ParseMetrics();
+      var parser = newParser(true, metrics);
+      var code = "repeat 4 forward 10]";
+
+      var diagnostics = parser.parse(code).diagnostics();
+
+      var llOnlyParser = newParser(false, new ParseMetrics());
+      assertThat(diagnostics).isEqualTo(llOnlyParser.parse(code).diagnostics());
+      assertThat(metrics.sllParses()).isEqualTo(0);
+      assertThat(metrics.llFallbacks()).isEqualTo(1);
+    }
+
+    @Test
+    void disabledTwoStageParsingIsNotCounted() {
+      var metrics = new ParseMetrics();
+      var parser = newParser(false, metrics);
+
+      parser.parse("forward 10");
+
+      assertThat(metrics.sllParses()).isEqualTo(0);
+      assertThat(metrics.llFallbacks()).isEqualTo(0);
+    }
+
+    private static Parser newParser(boolean twoStageParsing, ParseMetrics metrics) {
+      var settings = ParserSettings.DEFAULT.withTwoStageParsing(twoStageParsing);
+      return new Parser(settings, metrics, DfaCache.shared());
+    }
+  }
+
+  @Nested
+  class KeywordTableLexing {
+    private final Parser parser = new Parser(
+        ParserSettings.DEFAULT.withKeywordTableLexing(true), new ParseMetrics(), DfaCache.shared());
+
+    @Test
+    void parsesSameTreeAsGeneratedLexer() {
+      var code = "TO square :size\n  repeat 4 [fd :size rt 90]\nend\nif shown? [square 10]";
+
+      var syntaxTree = parser.parse(code).syntaxTree();
+
+      var expected = new Parser().parse(code).syntaxTree();
+      assertThat(syntaxTree.toStringTree()).isEqualTo(expected.toStringTree());
+    }
+
+    @Test
+    void reportsSameDiagnosticsAsGeneratedLexer() {
+      var code = "repeat 4 [fd 10 ? rt 90\nmake \"x :";
+
+      var diagnostics = parser.parse(code).diagnostics();
+
+      assertThat(diagnostics).isEqualTo(new Parser().parse(code).diagnostics());
+    }
+  }
+
+  @Nested
+  class ParallelParsing {
+    private final ParseMetrics metrics = new ParseMetrics();
+    private final Parser parser = new Parser(
+        ParserSettings.DEFAULT.withParallelParsingMinLength(0), metrics, DfaCache.shared());
+
+    @Test
+    void parsesSameTreeAsSequentialParsing() {
+      var code = library("fd 10");
+
+      var parsedDocument = parser.parse(code);
+
+      assertSameAsSequentialParse(code, parsedDocument);
+      assertThat(metrics.parallelParses()).isEqualTo(1);
+    }
+
+    @Test
+    void stitchesDiagnosticsOfChunks() {
+      var code = library("fd 10 repeat 4 fd 10] rt 90");
+
+      var parsedDocument = parser.parse(code);
+
+      assertThat(parsedDocument.diagnostics()).isNotEmpty();
+      assertSameAsSequentialParse(code, parsedDocument);
+      assertThat(metrics.parallelParses()).isEqualTo(1);
+    }
+
+    @Test
+    void fallsBackToSequentialParsingWhenChunkEndsWithError() {
+      var code = library("") + "fd";
+
+      var parsedDocument = parser.parse(code);
+
+      assertSameAsSequentialParse(code, parsedDocument);
+      assertThat(metrics.parallelFallbacks()).isEqualTo(1);
+    }
+
+    @Test
+    void parsesChunksOnCallingThreadWhenSchedulerIsBusy() {
+      var scheduler = new DocumentScheduler(1);
+      var blocker = new CountDownLatch(1);
+      scheduler.execute("blocker", INTERACTIVE, () -> awaitUninterruptibly(blocker));
+      var parser = new Parser(
+          ParserSettings.DEFAULT.withParallelParsingMinLength(0),
+          metrics,
+          DfaCache.shared(),
+          scheduler);
+      var code = library("fd 10");
+
+      var parsedDocument = parser.parse(code);
+      blocker.countDown();
+
+      assertSameAsSequentialParse(code, parsedDocument);
+      assertThat(metrics.parallelParses()).isEqualTo(1);
+    }
+
+    @Test
+    void doesNotParseSmallDocumentInParallel() {
+      parser.parse("to square fd 10 end square");
+
+      assertThat(metrics.parallelParses()).isEqualTo(0);
+    }
+
+    private static String library(String statementsAfterMiddleProcedure) {
+      var builder = new StringBuilder();
+      for (int i = 0; i < 400; i++) {
+        builder.append("to procedure").append(i).append(" :size\n");
+        builder.append("  repeat 4 [forward :size right 90]\n");
+        builder.append("end\n");
+        if (i == 200) {
+          builder.append(statementsAfterMiddleProcedure).append("\n");
+        }
+      }
+      return builder.toString();
+    }
+
+    private static void assertSameAsSequentialParse(String code, ParsedDocument actual) {
+      var sequentialParser = new Parser(
+          ParserSettings.DEFAULT.withParallelParsingMinLength(Integer.MAX_VALUE),
+          new ParseMetrics(),
+          DfaCache.shared());
+      var expected = sequentialParser.parse(code);
+      assertThat(actual.syntaxTree().toStringTree())
+          .isEqualTo(expected.syntaxTree().toStringTree());
+      assertThat(actual.diagnostics()).isEqualTo(expected.diagnostics());
+    }
+  }
+
+  @Nested
+  class PooledRecognizers {
+    @Test
+    void consecutiveParsesDoNotShareState() {
+      var parser = new Parser();
+
+      var invalid = parser.parse("repeat 4 [forward 10").diagnostics();
+      var valid = parser.parse("repeat 4 [forward 10]").diagnostics();
+
+      assertThat(invalid).hasSize(1);
+      assertThat(valid).isEmpty();
+    }
+
+    @Test
+    void parsesWithFreshDfaCacheGeneration() {
+      var dfaCache = new DfaCache(0, Duration.ofMinutes(1), Instant::now);
+      var parser = new Parser(ParserSettings.DEFAULT, new ParseMetrics(), dfaCache);
+
+      parser.parse("repeat 4 [forward 10 right 90]");
+      dfaCache.clearIfFull();
+      var generation = dfaCache.acquire();
+      var diagnostics = parser.parse("to square end square").diagnostics();
+
+      assertThat(diagnostics).isEmpty();
+      assertThat(generation.states()).isGreaterThan(0);
+    }
+  }
+
+  @Nested
+  class Reparse {
+    private static final String DOCUMENT =
+        """
+        forward 10
+        to square :size
+          repeat 4 [forward :size right 90]
+        end
+        square
+        make "x 100
+        """;
+
+    @Test
+    void editInsideProcedure() {
+      assertReparseEqualsFullParse(DOCUMENT, range(2, 20, 2, 25), "100");
+    }
+
+    @Test
+    void editInsertingLines() {
+      assertReparseEqualsFullParse(DOCUMENT, range(0, 10, 0, 10), "\nback 20\nleft 5");
+    }
+
+    @Test
+    void editRemovingLines() {
+      assertReparseEqualsFullParse(DOCUMENT, range(0, 3, 4, 0), "");
+    }
+
+    @Test
+    void editJoiningStatements() {
+      assertReparseEqualsFullParse(DOCUMENT, range(4, 6, 5, 0), " ");
+    }
+
+    @Test
+    void editAtDocumentStart() {
+      assertReparseEqualsFullParse(DOCUMENT, range(0, 0, 0, 0), "home ");
+    }
+
+    @Test
+    void editAtDocumentEnd() {
+      assertReparseEqualsFullParse(DOCUMENT, range(6, 0, 6, 0), "square\n");
+    }
+
+    @Test
+    void editInWhitespaceBetweenStatements() {
+      assertReparseEqualsFullParse(DOCUMENT, range(4, 6, 4, 6), " pu ");
+    }
+
+    @Test
+    void editIntroducingSyntaxError() {
+      assertReparseEqualsFullParse(DOCUMENT, range(3, 0, 3, 3), "");
+    }
+
+    @Test
+    void editFixingSyntaxError() {
+      var document = "forward 10\nrepeat 4 [forward 10\nright 90";
+      assertReparseEqualsFullParse(document, range(1, 20, 1, 20), "]");
+    }
+
+    @Test
+    void consecutiveEdits() {
+      var parser = new Parser();
+      var buffer = new TextBuffer(DOCUMENT);
+      var parsedDocument = parser.parse(DOCUMENT);
+      parsedDocument = parser.reparse(
+          parsedDocument, buffer.replace(range(0, 8, 0, 10), "20"), buffer);
+      parsedDocument = parser.reparse(
+          parsedDocument, buffer.replace(range(4, 0, 4, 0), "fd 1 "), buffer);
+      parsedDocument = parser.reparse(
+          parsedDocument, buffer.replace(range(1, 3, 1, 9), "box"), buffer);
+
+      assertSameParse(parsedDocument, parser.parse(buffer.toString()));
+    }
+
+    private static void assertReparseEqualsFullParse(String document, Range range, String text) {
+      var parser = new Parser();
+      var buffer = new TextBuffer(document);
+      var previous = parser.parse(document);
+      var edit = buffer.replace(range, text);
+
+      var reparsed = parser.reparse(previous, edit, buffer);
+
+      assertSameParse(reparsed, parser.parse(buffer.toString()));
+    }
+
+    private static void assertSameParse(ParsedDocument actual, ParsedDocument expected) {
+      assertThat(actual.syntaxTree().toStringTree())
+          .isEqualTo(expected.syntaxTree().toStringTree());
+      assertThat(tokensOf(actual.syntaxTree())).isEqualTo(tokensOf(expected.syntaxTree()));
+      assertThat(actual.diagnostics()).isEqualTo(expected.diagnostics());
+    }
+
+    private static List<String> tokensOf(SyntaxTree tree) {
+      var result = new ArrayList<String>();
+      for (int token = 0; token < tree.tokenCount(); token++) {
+        result.add(tree.tokenText(token) + "@" + tree.tokenLine(token) + ":"
+            + tree.tokenCharacter(token) + "[" + tree.tokenStart(token) + "+"
+            + tree.tokenLength(token) + "]");
+      }
+      return result;
+    }
+
+    private static Range range(int startLine, int startChar, int endLine, int endChar) {
+      return new Range(new Position(startLine, startChar), new Position(endLine, endChar));
+    }
+  }
 }
@@ -0,0 +1,147 @@
+package com.mikosik.logoserver.analyse.parser;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.mikosik.logoserver.analyse.parser.SyntaxTree.ERROR_TOKEN;
+import static com.mikosik.logoserver.analyse.parser.SyntaxTree.NONE;
+import static com.mikosik.logoserver.analyse.parser.SyntaxTree.ROOT;
+
+import com.mikosik.logoserver.analyse.parser.antlr.LogoLexer;
+import com.mikosik.logoserver.analyse.parser.antlr.LogoParser;
+import com.mikosik.logoserver.analyse.text.TextBuffer;
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.junit.jupiter.api.Test;
+
+public class SyntaxTreeTest {
+  @Test
+  void rootIsDocument() {
+    var tree = syntaxTreeOf("fd 10");
+    assertThat(tree.kind(ROOT)).isEqualTo(LogoParser.RULE_document);
+    assertThat(tree.parent(ROOT)).isEqualTo(NONE);
+  }
+
+  @Test
+  void printsTreeInAntlrFormat() {
+    var tree = syntaxTreeOf("fd 10");
+    assertThat(tree.toStringTree())
+        .isEqualTo("(document (statement (command (forward fd (expr (primaryExpr 10))))))");
+  }
+
+  @Test
+  void childrenOfRootAreStatements() {
+    var tree = syntaxTreeOf("fd 10\nrt 90\npu");
+    int count = 0;
+    for (int node = tree.firstChild(ROOT); node != NONE; node = tree.nextSibling(node)) {
+      assertThat(tree.kind(node)).isEqualTo(LogoParser.RULE_statement);
+      count++;
+    }
+    assertThat(count).isEqualTo(3);
+  }
+
+  @Test
+  void tokensHaveZeroBasedPositions() {
+    var tree = syntaxTreeOf("fd 10\n  rt 90");
+    assertThat(tree.tokenCount()).isEqualTo(4);
+    assertThat(tree.tokenText(2)).isEqualTo("rt");
+    assertThat(tree.tokenStart(2)).isEqualTo(8);
+    assertThat(tree.tokenLine(2)).isEqualTo(1);
+    assertThat(tree.tokenCharacter(2)).isEqualTo(2);
+    assertThat(tree.tokenRange(2))
+        .isEqualTo(new Range(new Position(1, 2), new Position(1, 4)));
+  }
+
+  @Test
+  void countsTokensBeforePosition() {
+    var tree = syntaxTreeOf("fd 10\nrt 90");
+    assertThat(tree.tokensBefore(0, 0)).isEqualTo(0);
+    assertThat(tree.tokensBefore(0, 2)).isEqualTo(1);
+    assertThat(tree.tokensBefore(0, 4)).isEqualTo(1);
+    assertThat(tree.tokensBefore(1, 0)).isEqualTo(2);
+    assertThat(tree.tokensBefore(5, 0)).isEqualTo(4);
+  }
+
+  @Test
+  void countsTokensStartingBeforePosition() {
+    var tree = syntaxTreeOf("fd 10\nrt 90");
+    assertThat(tree.tokensStartingBefore(0, 0)).isEqualTo(0);
+    assertThat(tree.tokensStartingBefore(0, 1)).isEqualTo(1);
+    assertThat(tree.tokensStartingBefore(0, 3)).isEqualTo(1);
+    assertThat(tree.tokensStartingBefore(1, 0)).isEqualTo(2);
+    assertThat(tree.tokensStartingBefore(5, 0)).isEqualTo(4);
+  }
+
+  @Test
+  void tokenNodeIsLeafOfToken() {
+    var tree = syntaxTreeOf("fd 10");
+    int node = tree.tokenNode(1);
+    assertThat(tree.isToken(node)).isTrue();
+    assertThat(tree.firstToken(node)).isEqualTo(1);
+  }
+
+  @Test
+  void findsChildTokenOfGivenType() {
+    var tree = syntaxTreeOf("to square\nend");
+    int to = nodeOfKind(tree, LogoParser.RULE_to);
+    assertThat(tree.tokenText(tree.childToken(to, LogoLexer.NAME))).isEqualTo("square");
+    assertThat(tree.childToken(to, LogoLexer.WORD)).isEqualTo(NONE);
+  }
+
+  @Test
+  void nodeCoversTokensOfItsDescendants() {
+    var tree = syntaxTreeOf("pu\nrepeat 4 [fd 10]");
+    int repeat = nodeOfKind(tree, LogoParser.RULE_repeat);
+    assertThat(tree.firstToken(repeat)).isEqualTo(1);
+    assertThat(tree.tokenEnd(repeat)).isEqualTo(tree.tokenCount());
+    for (int node = repeat + 1; node < tree.subtreeEnd(repeat); node++) {
+      assertThat(tree.firstToken(node)).isAtLeast(tree.firstToken(repeat));
+    }
+  }
+
+  @Test
+  void keepsTokenSkippedByErrorRecoveryAsErrorToken() {
+    var tree = syntaxTreeOf("repeat 4 ] [fd 10]");
+    int errorToken = nodeOfKind(tree, ERROR_TOKEN);
+    assertThat(tree.tokenText(tree.firstToken(errorToken))).isEqualTo("]");
+    assertThat(tree.tokenCount()).isEqualTo(7);
+  }
+
+  @Test
+  void skipsTokensConjuredByErrorRecovery() {
+    var tree = syntaxTreeOf("repeat 4 [fd 10");
+    assertThat(tree.tokenCount()).isEqualTo(5);
+  }
+
+  @Test
+  void shiftedSubtreeHasTokensMovedByEdit() {
+    var document = "fd 10\nrt 90";
+    var previous = syntaxTreeOf(document);
+    var buffer = new TextBuffer(document);
+    var edit = buffer.replace(new Range(new Position(0, 0), new Position(0, 0)), "pu\n  ");
+    var secondStatement = previous.nextSibling(previous.firstChild(ROOT));
+
+    var tree = new SyntaxTree.Builder(buffer.toString())
+        .startNode(LogoParser.RULE_document)
+        .addShiftedSubtree(previous, secondStatement, edit)
+        .endNode()
+        .build();
+
+    assertThat(tree.toStringTree())
+        .isEqualTo("(document (statement (command (right rt (expr (primaryExpr 90))))))");
+    assertThat(tree.tokenLine(0)).isEqualTo(2);
+    assertThat(tree.tokenCharacter(0)).isEqualTo(0);
+    assertThat(tree.tokenStart(0)).isEqualTo(11);
+  }
+
+  private static SyntaxTree syntaxTreeOf(String document) {
+    return new Parser().parse(document).syntaxTree();
+  }
+
+  private static int nodeOfKind(SyntaxTree tree, int kind) {
+    for (int node = 0; node < tree.nodeCount(); node++) {
+      if (tree.kind(node) == kind) {
+        return node;
+      }
+    }
+    throw new AssertionError("No node of kind " + kind);
+  }
+}
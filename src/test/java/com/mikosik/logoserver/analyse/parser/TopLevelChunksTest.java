@@ -0,0 +1,62 @@
+package com.mikosik.logoserver.analyse.parser;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.mikosik.logoserver.analyse.parser.antlr.LogoLexer;
+import java.util.ArrayList;
+import java.util.List;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.Token;
+import org.junit.jupiter.api.Test;
+
+public class TopLevelChunksTest {
+  @Test
+  void splitsBeforeTopLevelProcedureDefinitions() {
+    var chunks = split("fd 10 to a fd 1 end a define \"b [[] [a]] end b", 1);
+
+    assertThat(chunks).containsExactly("fd 10", "to a fd 1 end a", "define \"b [[] [a]] end b")
+        .inOrder();
+  }
+
+  @Test
+  void doesNotSplitBeforeProcedureDefinedInsideBrackets() {
+    var chunks = split("fd 10 repeat 2 [to a end] fd 10", 1);
+
+    assertThat(chunks).containsExactly("fd 10 repeat 2 [to a end] fd 10");
+  }
+
+  @Test
+  void doesNotSplitBeforeProcedureNestedInsideProcedure() {
+    var chunks = split("to a to b end end to c end", 1);
+
+    assertThat(chunks).containsExactly("to a to b end end", "to c end").inOrder();
+  }
+
+  @Test
+  void doesNotSplitBeforeProcedureFollowingUnterminatedProcedure() {
+    var chunks = split("to a fd 10 to b end", 1);
+
+    assertThat(chunks).containsExactly("to a fd 10 to b end");
+  }
+
+  @Test
+  void mergesChunksSmallerThanMinChunkSize() {
+    var chunks = split("to a end to b end to c fd 1 end", 4);
+
+    assertThat(chunks).containsExactly("to a end to b end", "to c fd 1 end").inOrder();
+  }
+
+  private static List<String> split(String document, int minChunkSize) {
+    var tokenStream = new CommonTokenStream(new LogoLexer(new CaseInsensitiveCharStream(document)));
+    tokenStream.fill();
+    var tokens = new ArrayList<>(tokenStream.getTokens());
+    tokens.removeLast();
+    return TopLevelChunks.split(tokens, minChunkSize).stream()
+        .map(TopLevelChunksTest::textOf)
+        .toList();
+  }
+
+  private static String textOf(List<Token> chunk) {
+    return chunk.stream().map(Token::getText).reduce((a, b) -> a + " " + b).orElse("");
+  }
+}
@@ -0,0 +1,123 @@
+package com.mikosik.logoserver.analyse.text;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+public class TextBufferTest {
+  @Nested
+  class Replace {
+    @Test
+    void insertsText() {
+      var buffer = new TextBuffer("forward 10");
+      buffer.replace(range(0, 8, 0, 8), "1");
+      assertThat(buffer.toString()).isEqualTo("forward 110");
+    }
+
+    @Test
+    void deletesText() {
+      var buffer = new TextBuffer("forward 10\nright 90");
+      buffer.replace(range(0, 7, 1, 5), "");
+      assertThat(buffer.toString()).isEqualTo("forward 90");
+    }
+
+    @Test
+    void replacesTextOnSecondLine() {
+      var buffer = new TextBuffer("forward 10\nright 90\nleft 45");
+      buffer.replace(range(1, 0, 1, 5), "left");
+      assertThat(buffer.toString()).isEqualTo("forward 10\nleft 90\nleft 45");
+    }
+
+    @Test
+    void appliesSequenceOfEdits() {
+      var buffer = new TextBuffer("");
+      buffer.replace(range(0, 0, 0, 0), "forward 10");
+      buffer.replace(range(0, 10, 0, 10), "\nright 90");
+      buffer.replace(range(1, 6, 1, 8), "45\nback 5");
+      buffer.replace(range(0, 0, 0, 7), "fd");
+      assertThat(buffer.toString()).isEqualTo("fd 10\nright 45\nback 5");
+    }
+
+    @Test
+    void clampsCharacterToEndOfLine() {
+      var buffer = new TextBuffer("fd 10\nrt 90");
+      buffer.replace(range(0, 100, 0, 100), "0");
+      assertThat(buffer.toString()).isEqualTo("fd 100\nrt 90");
+    }
+
+    @Test
+    void returnsAppliedEdit() {
+      var buffer = new TextBuffer("forward 10\nright 90");
+      var edit = buffer.replace(range(0, 8, 1, 6), "20\nleft ");
+      assertThat(edit).isEqualTo(new TextEdit(8, 17, 0, 8, 1, 6, "20\nleft "));
+      assertThat(edit.delta()).isEqualTo(-1);
+      assertThat(edit.newEndLine()).isEqualTo(1);
+      assertThat(edit.newEndCharacter()).isEqualTo(5);
+    }
+
+    @Test
+    void failsWhenRangeHasNegativePosition() {
+      var buffer = new TextBuffer("forward 10");
+      assertThrows(IllegalArgumentException.class, () -> buffer.replace(range(0, -1, 0, 1), ""));
+      assertThat(buffer.toString()).isEqualTo("forward 10");
+    }
+
+    @Test
+    void failsWhenRangeEndIsBeforeStart() {
+      var buffer = new TextBuffer("forward 10");
+      assertThrows(IllegalArgumentException.class, () -> buffer.replace(range(0, 5, 0, 1), ""));
+    }
+
+    @Test
+    void compactsPieces() {
+      var buffer = new TextBuffer("");
+      var expected = new StringBuilder();
+      for (int i = 0; i < TextBuffer.MAX_PIECES * 2; i++) {
+        buffer.replace(range(0, i / 2, 0, i / 2), "x");
+        expected.append('x');
+      }
+      assertThat(buffer.toString()).isEqualTo(expected.toString());
+      assertThat(buffer.pieceCount()).isAtMost(TextBuffer.MAX_PIECES);
+    }
+  }
+
+  @Nested
+  class LineStartOffset {
+    @Test
+    void ofFirstLine() {
+      assertThat(new TextBuffer("fd 10\nrt 90").lineStartOffset(0)).isEqualTo(0);
+    }
+
+    @Test
+    void ofSecondLine() {
+      assertThat(new TextBuffer("fd 10\nrt 90").lineStartOffset(1)).isEqualTo(6);
+    }
+
+    @Test
+    void ofLineAfterEdits() {
+      var buffer = new TextBuffer("fd 10\nrt 90");
+      buffer.replace(range(0, 5, 0, 5), "\nbk 5");
+      assertThat(buffer.lineStartOffset(2)).isEqualTo(11);
+    }
+
+    @Test
+    void ofNonExistentLine() {
+      assertThat(new TextBuffer("fd 10").lineStartOffset(3)).isEqualTo(5);
+    }
+  }
+
+  @Test
+  void substringSpansMultiplePieces() {
+    var buffer = new TextBuffer("forward 10");
+    buffer.replace(range(0, 7, 0, 7), "!");
+    assertThat(buffer.substring(5, 9)).isEqualTo("rd! ");
+  }
+
+  private static Range range(int startLine, int startChar, int endLine, int endChar) {
+    return new Range(new Position(startLine, startChar), new Position(endLine, endChar));
+  }
+}
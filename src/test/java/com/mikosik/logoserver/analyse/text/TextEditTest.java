@@ -0,0 +1,78 @@
+package com.mikosik.logoserver.analyse.text;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+
+public class TextEditTest {
+  @Nested
+  class FollowedBy {
+    @Test
+    void composesEditWithinPreviousEdit() {
+      var buffer = new TextBuffer("forward 10\nright 90");
+      var first = buffer.replace(range(0, 8, 0, 10), "100");
+      var second = buffer.replace(range(0, 9, 0, 10), "5");
+
+      var composed = first.followedBy(second, buffer);
+
+      assertThat(composed).isEqualTo(new TextEdit(8, 10, 0, 8, 0, 10, "150"));
+    }
+
+    @Test
+    void composesEditBeforePreviousEdit() {
+      var buffer = new TextBuffer("forward 10\nright 90");
+      var first = buffer.replace(range(1, 6, 1, 8), "45");
+      var second = buffer.replace(range(0, 0, 0, 7), "fd");
+
+      var composed = first.followedBy(second, buffer);
+
+      assertThat(composed).isEqualTo(new TextEdit(0, 19, 0, 0, 1, 8, "fd 10\nright 45"));
+    }
+
+    @Test
+    void composesEditAfterPreviousEditThatAddedLines() {
+      var buffer = new TextBuffer("forward 10\nright 90");
+      var first = buffer.replace(range(0, 0, 0, 7), "fd 5\nforward");
+      var second = buffer.replace(range(2, 6, 2, 8), "45");
+
+      var composed = first.followedBy(second, buffer);
+
+      assertThat(composed)
+          .isEqualTo(new TextEdit(0, 19, 0, 0, 1, 8, "fd 5\nforward 10\nright 45"));
+    }
+
+    @Test
+    void composesEditEndingOnLastLineOfPreviousEdit() {
+      var buffer = new TextBuffer("forward 10\nright 90");
+      var first = buffer.replace(range(0, 0, 0, 7), "fd 1\nfd");
+      var second = buffer.replace(range(1, 3, 1, 5), "20");
+
+      var composed = first.followedBy(second, buffer);
+
+      assertThat(composed).isEqualTo(new TextEdit(0, 10, 0, 0, 0, 10, "fd 1\nfd 20"));
+    }
+
+    @Test
+    void composedEditTransformsOriginalTextIntoFinalOne() {
+      var original = "forward 10\nright 90\nback 5";
+      var buffer = new TextBuffer(original);
+      var composed = buffer.replace(range(1, 0, 1, 5), "left");
+      composed = composed.followedBy(buffer.replace(range(2, 5, 2, 6), "50\nfd 1"), buffer);
+      composed = composed.followedBy(buffer.replace(range(0, 0, 0, 0), "pu\n"), buffer);
+
+      assertThat(apply(original, composed)).isEqualTo(buffer.toString());
+    }
+  }
+
+  private static String apply(String text, TextEdit edit) {
+    return text.substring(0, edit.start()) + edit.text() + text.substring(edit.oldEnd());
+  }
+
+  private static Range range(int startLine, int startCharacter, int endLine, int endCharacter) {
+    return new Range(
+        new Position(startLine, startCharacter), new Position(endLine, endCharacter));
+  }
+}
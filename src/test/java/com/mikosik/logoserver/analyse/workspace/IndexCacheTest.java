@@ -0,0 +1,86 @@
+package com.mikosik.logoserver.analyse.workspace;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.mikosik.logoserver.analyse.declaration.DeclarationsProvider;
+import com.mikosik.logoserver.analyse.declaration.References;
+import com.mikosik.logoserver.analyse.declaration.ReferencesProvider;
+import com.mikosik.logoserver.analyse.parser.Parser;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class IndexCacheTest {
+  @TempDir
+  Path folder;
+
+  @Test
+  void readsWrittenSummaries() throws IOException {
+    var file = folder.resolve("cache/index");
+    var summary = summaryOf("file:///main.logo", "to square\nend\nmake \"size 10\nsquare :size");
+    IndexCache.write(file, List.of(summary));
+
+    var cache = IndexCache.load(file);
+
+    assertThat(cache.size()).isEqualTo(1);
+    assertThat(cache.get("file:///main.logo")).isEqualTo(summary);
+  }
+
+  @Test
+  void replacesCacheFileThatHasBeenLoaded() throws IOException {
+    var file = folder.resolve("index");
+    var first = summaryOf("file:///main.logo", "to square\nend");
+    var second = summaryOf("file:///main.logo", "to circle\nend");
+    IndexCache.write(file, List.of(first));
+    var loaded = IndexCache.load(file);
+
+    IndexCache.write(file, List.of(second));
+
+    assertThat(loaded.get("file:///main.logo")).isEqualTo(first);
+    assertThat(IndexCache.load(file).get("file:///main.logo")).isEqualTo(second);
+  }
+
+  @Test
+  void returnsNullForUriThatIsNotCached() throws IOException {
+    var file = folder.resolve("index");
+    IndexCache.write(file, List.of(summaryOf("file:///main.logo", "to square\nend")));
+    assertThat(IndexCache.load(file).get("file:///other.logo")).isNull();
+  }
+
+  @Test
+  void missingFileIsEmptyCache() {
+    assertThat(IndexCache.load(folder.resolve("index")).size()).isEqualTo(0);
+  }
+
+  @Test
+  void corruptedFileIsEmptyCache() throws IOException {
+    var file = folder.resolve("index");
+    IndexCache.write(file, List.of(summaryOf("file:///main.logo", "to square\nend")));
+    var bytes = Files.readAllBytes(file);
+    Files.write(file, Arrays.copyOf(bytes, bytes.length / 2));
+
+    assertThat(IndexCache.load(file).size()).isEqualTo(0);
+  }
+
+  @Test
+  void fileInOtherFormatIsEmptyCache() throws IOException {
+    var file = folder.resolve("index");
+    Files.writeString(file, "not an index");
+    assertThat(IndexCache.load(file).size()).isEqualTo(0);
+  }
+
+  private static FileSummary summaryOf(String uri, String document) {
+    var syntaxTree = new Parser().parse(document).syntaxTree();
+    return new FileSummary(
+        uri,
+        document.length(),
+        1234,
+        5678,
+        new DeclarationsProvider().declarationsFrom(syntaxTree),
+        References.of(syntaxTree, new ReferencesProvider().referencesFrom(syntaxTree)));
+  }
+}
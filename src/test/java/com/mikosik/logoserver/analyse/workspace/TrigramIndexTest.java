@@ -0,0 +1,77 @@
+package com.mikosik.logoserver.analyse.workspace;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class TrigramIndexTest {
+  private TrigramIndex index;
+
+  @BeforeEach
+  void beforeEach() {
+    index = new TrigramIndex();
+  }
+
+  @Test
+  void findsNameContainingQuery() {
+    index.add("drawsquare");
+    index.add("drawcircle");
+    assertThat(index.search("square", 10)).containsExactly("drawsquare");
+  }
+
+  @Test
+  void findsNameContainingQueryCharactersInOrder() {
+    index.add("drawsquare");
+    assertThat(index.search("drwsq", 10)).containsExactly("drawsquare");
+  }
+
+  @Test
+  void searchIsCaseInsensitive() {
+    index.add("drawsquare");
+    assertThat(index.search("SQUARE", 10)).containsExactly("drawsquare");
+  }
+
+  @Test
+  void ranksNamesSharingMoreTrigramsFirst() {
+    index.add("squarepattern");
+    index.add("square");
+    index.add("sqsquare");
+    assertThat(index.search("square", 10))
+        .containsExactly("square", "sqsquare", "squarepattern")
+        .inOrder();
+  }
+
+  @Test
+  void shortQueryMatchesAllNames() {
+    index.add("square");
+    index.add("circle");
+    assertThat(index.search("c", 10)).containsExactly("circle");
+    assertThat(index.search("", 10)).containsExactly("square", "circle");
+  }
+
+  @Test
+  void returnsAtMostLimitNames() {
+    index.add("square1");
+    index.add("square2");
+    assertThat(index.search("square", 1)).hasSize(1);
+  }
+
+  @Test
+  void nameIsRemovedOnceAllAddsAreRemoved() {
+    index.add("square");
+    index.add("square");
+    index.remove("square");
+    assertThat(index.search("square", 10)).containsExactly("square");
+    index.remove("square");
+    assertThat(index.search("square", 10)).isEmpty();
+  }
+
+  @Test
+  void removingOneNameKeepsOthersSharingTrigrams() {
+    index.add("square");
+    index.add("squares");
+    index.remove("square");
+    assertThat(index.search("square", 10)).containsExactly("squares");
+  }
+}
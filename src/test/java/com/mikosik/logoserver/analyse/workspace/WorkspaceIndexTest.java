@@ -0,0 +1,195 @@
+package com.mikosik.logoserver.analyse.workspace;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.mikosik.logoserver.analyse.declaration.Declarations;
+import com.mikosik.logoserver.analyse.declaration.DeclarationsProvider;
+import com.mikosik.logoserver.analyse.declaration.References;
+import com.mikosik.logoserver.analyse.declaration.ReferencesProvider;
+import com.mikosik.logoserver.analyse.parser.Parser;
+import com.mikosik.logoserver.analyse.parser.SyntaxTree;
+import org.eclipse.lsp4j.Location;
+import org.eclipse.lsp4j.Position;
+import org.eclipse.lsp4j.Range;
+import org.eclipse.lsp4j.SymbolKind;
+import org.eclipse.lsp4j.WorkspaceSymbol;
+import org.eclipse.lsp4j.jsonrpc.messages.Either;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+public class WorkspaceIndexTest {
+  private WorkspaceIndex index;
+
+  @BeforeEach
+  void beforeEach() {
+    index = new WorkspaceIndex();
+  }
+
+  @Test
+  void findsProcedureDeclaredInIndexedFile() {
+    indexFile("lib", "to square\nend");
+    assertThat(index.procedureDeclarations("square", "main"))
+        .containsExactly(location("lib", 0, 3, 0, 9));
+  }
+
+  @Test
+  void findsVariableDeclaredInIndexedFile() {
+    indexFile("lib", "make \"size 10");
+    assertThat(index.variableDeclarations("size", "main"))
+        .containsExactly(location("lib", 0, 5, 0, 10));
+  }
+
+  @Test
+  void findsDeclarationsInAllFiles() {
+    indexFile("lib1", "to square\nend");
+    indexFile("lib2", "to square\nend");
+    assertThat(index.procedureDeclarations("square", "main"))
+        .containsExactly(location("lib1", 0, 3, 0, 9), location("lib2", 0, 3, 0, 9));
+  }
+
+  @Test
+  void skipsExcludedFile() {
+    indexFile("lib", "to square\nend");
+    assertThat(index.procedureDeclarations("square", "lib")).isEmpty();
+  }
+
+  @Test
+  void reindexingFileReplacesItsDeclarations() {
+    indexFile("lib", "to square\nend");
+    indexFile("lib", "to circle\nend");
+    assertThat(index.procedureDeclarations("square", "main")).isEmpty();
+    assertThat(index.procedureDeclarations("circle", "main"))
+        .containsExactly(location("lib", 0, 3, 0, 9));
+  }
+
+  @Test
+  void openDocumentTakesPrecedenceOverFileFromDisk() {
+    indexOpenDocument("lib", "to circle\nend");
+    indexFile("lib", "to square\nend");
+    assertThat(index.procedureDeclarations("square", "main")).isEmpty();
+    assertThat(index.procedureDeclarations("circle", "main")).hasSize(1);
+  }
+
+  @Test
+  void closedDocumentCanBeReplacedByFileFromDisk() {
+    indexOpenDocument("lib", "to circle\nend");
+    index.closeDocument("lib");
+    assertThat(index.procedureDeclarations("circle", "main")).hasSize(1);
+
+    indexFile("lib", "to square\nend");
+
+    assertThat(index.procedureDeclarations("circle", "main")).isEmpty();
+    assertThat(index.procedureDeclarations("square", "main")).hasSize(1);
+  }
+
+  @Test
+  void removingFileRemovesItsDeclarationsAndReferences() {
+    indexFile("lib", "to square\nend\nsquare");
+    index.removeFile("lib");
+    assertThat(index.procedureDeclarations("square", "main")).isEmpty();
+    assertThat(index.procedureReferences("square", "main")).isEmpty();
+    assertThat(index.searchSymbols("square", 10)).isEmpty();
+  }
+
+  @Test
+  void removingFileKeepsOpenDocument() {
+    indexOpenDocument("lib", "to square\nend");
+    index.removeFile("lib");
+    assertThat(index.procedureDeclarations("square", "main")).hasSize(1);
+  }
+
+  @Test
+  void searchFindsProceduresAndVariablesInAllFiles() {
+    indexFile("lib1", "to square\nend");
+    indexFile("lib2", "make \"squaresize 10");
+    assertThat(index.searchSymbols("squ", 10))
+        .containsExactly(
+            new WorkspaceSymbol(
+                "square", SymbolKind.Function, Either.forLeft(location("lib1", 0, 3, 0, 9))),
+            new WorkspaceSymbol(
+                "squaresize",
+                SymbolKind.Variable,
+                Either.forLeft(location("lib2", 0, 5, 0, 16))))
+        .inOrder();
+  }
+
+  @Test
+  void searchDoesNotFindNamesRemovedByReindexing() {
+    indexFile("lib", "to square\nend");
+    indexFile("lib", "to circle\nend");
+    assertThat(index.searchSymbols("square", 10)).isEmpty();
+    assertThat(index.searchSymbols("circle", 10)).hasSize(1);
+  }
+
+  @Test
+  void searchFindsNameAsLongAsSomeFileDeclaresIt() {
+    indexFile("lib1", "to square\nend");
+    indexFile("lib2", "to square\nend");
+    indexFile("lib1", "");
+    assertThat(index.searchSymbols("square", 10))
+        .containsExactly(
+            new WorkspaceSymbol(
+                "square", SymbolKind.Function, Either.forLeft(location("lib2", 0, 3, 0, 9))));
+  }
+
+  @Test
+  void searchReturnsAtMostLimitSymbols() {
+    indexFile("lib1", "to square\nend");
+    indexFile("lib2", "to square\nend");
+    assertThat(index.searchSymbols("square", 1)).hasSize(1);
+  }
+
+  @Test
+  void findsProcedureReferencesInAllFiles() {
+    indexFile("lib1", "square");
+    indexFile("lib2", "to square\nend\nsquare");
+    assertThat(index.procedureReferences("square", "main"))
+        .containsExactly(location("lib1", 0, 0, 0, 6), location("lib2", 2, 0, 2, 6));
+  }
+
+  @Test
+  void findsVariableReferencesInIndexedFile() {
+    indexFile("lib", "forward :size");
+    assertThat(index.variableReferences("size", "main"))
+        .containsExactly(location("lib", 0, 8, 0, 13));
+  }
+
+  @Test
+  void reindexingFileReplacesItsReferences() {
+    indexFile("lib", "square");
+    indexFile("lib", "circle");
+    assertThat(index.procedureReferences("square", "main")).isEmpty();
+    assertThat(index.procedureReferences("circle", "main")).hasSize(1);
+  }
+
+  @Test
+  void searchDoesNotFindNamesThatAreOnlyReferenced() {
+    indexFile("lib", "square");
+    assertThat(index.searchSymbols("square", 10)).isEmpty();
+  }
+
+  private void indexFile(String uri, String document) {
+    var syntaxTree = new Parser().parse(document).syntaxTree();
+    index.indexFile(uri, declarationsOf(syntaxTree), referencesOf(syntaxTree));
+  }
+
+  private void indexOpenDocument(String uri, String document) {
+    var syntaxTree = new Parser().parse(document).syntaxTree();
+    index.indexOpenDocument(uri, declarationsOf(syntaxTree), referencesOf(syntaxTree));
+  }
+
+  private static Declarations declarationsOf(SyntaxTree syntaxTree) {
+    return new DeclarationsProvider().declarationsFrom(syntaxTree);
+  }
+
+  private static References referencesOf(SyntaxTree syntaxTree) {
+    return References.of(syntaxTree, new ReferencesProvider().referencesFrom(syntaxTree));
+  }
+
+  private static Location location(
+      String uri, int startLine, int startCharacter, int endLine, int endCharacter) {
+    return new Location(
+        uri,
+        new Range(new Position(startLine, startCharacter), new Position(endLine, endCharacter)));
+  }
+}
@@ -0,0 +1,312 @@
+package com.mikosik.logoserver.analyse.workspace;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.util.concurrent.Uninterruptibles.awaitUninterruptibly;
+import static com.google.common.util.concurrent.Uninterruptibles.sleepUninterruptibly;
+import static com.mikosik.logoserver.analyse.DocumentScheduler.Priority.INTERACTIVE;
+import static org.awaitility.Awaitility.await;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+
+import com.mikosik.logoserver.analyse.DocumentScheduler;
+import com.mikosik.logoserver.analyse.parser.DfaCache;
+import com.mikosik.logoserver.analyse.parser.ParseMetrics;
+import com.mikosik.logoserver.analyse.parser.Parser;
+import com.mikosik.logoserver.analyse.parser.ParserSettings;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+import org.eclipse.lsp4j.FileChangeType;
+import org.eclipse.lsp4j.FileEvent;
+import org.eclipse.lsp4j.Location;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class WorkspaceIndexerTest {
+  @TempDir
+  Path workspace;
+
+  private WorkspaceIndex index;
+  private WorkspaceIndexer indexer;
+
+  @BeforeEach
+  void beforeEach() {
+    index = new WorkspaceIndex();
+    indexer = new WorkspaceIndexer(index);
+  }
+
+  @Test
+  void indexesLogoFilesInNestedFolders() throws IOException {
+    var file = write("lib/shapes/square.logo", "to square\nend");
+
+    indexer.indexFolder(workspace);
+
+    var declarations = index.procedureDeclarations("square", "main");
+    assertThat(declarations).hasSize(1);
+    assertThat(declarations.getFirst().getUri()).isEqualTo(file.toUri().toString());
+  }
+
+  @Test
+  void indexesFileWhoseParseExceedsTimeBudget() throws IOException {
+    write("square.logo", "to square\nend");
+    var settings = ParserSettings.DEFAULT.withParseTimeBudget(Duration.ZERO);
+    var parser = new Parser(settings, new ParseMetrics(), DfaCache.shared());
+
+    new WorkspaceIndexer(index, parser).indexFolder(workspace);
+
+    assertThat(index.procedureDeclarations("square", "main")).hasSize(1);
+  }
+
+  @Test
+  void indexesReferences() throws IOException {
+    write("main.logo", "square :size");
+    indexer.indexFolder(workspace);
+    assertThat(index.procedureReferences("square", "other")).hasSize(1);
+    assertThat(index.variableReferences("size", "other")).hasSize(1);
+  }
+
+  @Test
+  void indexesFileExtensionCaseInsensitively() throws IOException {
+    write("SQUARE.LOGO", "to square\nend");
+    indexer.indexFolder(workspace);
+    assertThat(index.procedureDeclarations("square", "main")).hasSize(1);
+  }
+
+  @Test
+  void skipsFilesWithOtherExtensions() throws IOException {
+    write("square.txt", "to square\nend");
+    indexer.indexFolder(workspace);
+    assertThat(index.procedureDeclarations("square", "main")).isEmpty();
+  }
+
+  @Test
+  void skipsHiddenFolders() throws IOException {
+    write(".git/square.logo", "to square\nend");
+    indexer.indexFolder(workspace);
+    assertThat(index.procedureDeclarations("square", "main")).isEmpty();
+  }
+
+  @Test
+  void indexesFoldersInBackground() throws IOException {
+    write("square.logo", "to square\nend");
+
+    indexer.indexFoldersInBackground(List.of(workspace)).join();
+
+    assertThat(index.procedureDeclarations("square", "main")).hasSize(1);
+  }
+
+  @Test
+  void indexingRunsBehindInteractiveTasks() throws IOException {
+    write("square.logo", "to square\nend");
+    var scheduler = new DocumentScheduler(1);
+    var indexer = new WorkspaceIndexer(index, new Parser(), scheduler);
+    var blocker = new CountDownLatch(1);
+    scheduler.execute("blocker", INTERACTIVE, () -> awaitUninterruptibly(blocker));
+    var seenByInteractiveTask = new AtomicReference<List<Location>>();
+
+    var indexed = indexer.indexFoldersInBackground(List.of(workspace));
+    scheduler.execute("document", INTERACTIVE, () ->
+        seenByInteractiveTask.set(index.procedureDeclarations("square", "main")));
+    blocker.countDown();
+    indexed.join();
+
+    assertThat(seenByInteractiveTask.get()).isEmpty();
+    assertThat(index.procedureDeclarations("square", "main")).hasSize(1);
+  }
+
+  @Test
+  void reusesCachedSummaryOfFileWithUnchangedSizeAndModificationTime() throws IOException {
+    var file = write("shapes.logo", "to square\nend");
+    var modifiedTime = Files.getLastModifiedTime(file);
+    indexer.indexFolder(workspace);
+    Files.writeString(file, "to circle\nend");
+    Files.setLastModifiedTime(file, modifiedTime);
+
+    var restartedIndex = new WorkspaceIndex();
+    new WorkspaceIndexer(restartedIndex).indexFolder(workspace);
+
+    assertThat(restartedIndex.procedureDeclarations("square", "main")).hasSize(1);
+    assertThat(restartedIndex.procedureDeclarations("circle", "main")).isEmpty();
+  }
+
+  @Test
+  void reusesCachedSummaryOfFileWithUnchangedContent() throws IOException {
+    var file = write("shapes.logo", "to square\nend");
+    indexer.indexFolder(workspace);
+    Files.setLastModifiedTime(file, FileTime.fromMillis(0));
+    var parser = spy(new Parser());
+
+    var restartedIndex = new WorkspaceIndex();
+    new WorkspaceIndexer(restartedIndex, parser).indexFolder(workspace);
+
+    assertThat(restartedIndex.procedureDeclarations("square", "main")).hasSize(1);
+    verify(parser, never()).parseInBackground(anyString(), any());
+  }
+
+  @Test
+  void parsesFileChangedSinceItWasCached() throws IOException {
+    var file = write("shapes.logo", "to square\nend");
+    indexer.indexFolder(workspace);
+    Files.writeString(file, "to circle\nend");
+    Files.setLastModifiedTime(file, FileTime.fromMillis(0));
+
+    var restartedIndex = new WorkspaceIndex();
+    new WorkspaceIndexer(restartedIndex).indexFolder(workspace);
+
+    assertThat(restartedIndex.procedureDeclarations("square", "main")).isEmpty();
+    assertThat(restartedIndex.procedureDeclarations("circle", "main")).hasSize(1);
+  }
+
+  @Test
+  void cacheContainsOnlyFilesPresentInFolder() throws IOException {
+    var file = write("shapes.logo", "to square\nend");
+    write("other.logo", "to circle\nend");
+    indexer.indexFolder(workspace);
+    Files.delete(file);
+
+    indexer.indexFolder(workspace);
+
+    assertThat(IndexCache.load(workspace.resolve(WorkspaceIndexer.CACHE_FILE)).size())
+        .isEqualTo(1);
+  }
+
+  @Test
+  void reindexesChangedFileInBackground() throws IOException {
+    var file = write("shapes.logo", "to square\nend");
+    indexer.indexFolder(workspace);
+    Files.writeString(file, "to circle\nend");
+
+    indexer.filesChanged(List.of(new FileEvent(uri(file), FileChangeType.Changed)));
+
+    await().until(() -> !index.procedureDeclarations("circle", "main").isEmpty());
+    assertThat(index.procedureDeclarations("square", "main")).isEmpty();
+  }
+
+  @Test
+  void persistsSummaryOfReindexedFile() throws IOException {
+    var file = write("shapes.logo", "to square\nend");
+    indexer.indexFolder(workspace);
+    Files.writeString(file, "to circle\nend");
+
+    indexer.filesChanged(List.of(new FileEvent(uri(file), FileChangeType.Changed)));
+
+    await().until(() -> {
+      var cached = IndexCache.load(workspace.resolve(WorkspaceIndexer.CACHE_FILE)).get(uri(file));
+      return cached != null && cached.declarations().procedures().containsKey("circle");
+    });
+  }
+
+  @Test
+  void removesDeletedFileFromCache() throws IOException {
+    var file = write("shapes.logo", "to square\nend");
+    indexer.indexFolder(workspace);
+    Files.delete(file);
+
+    indexer.filesChanged(List.of(new FileEvent(uri(file), FileChangeType.Deleted)));
+
+    await().until(() ->
+        IndexCache.load(workspace.resolve(WorkspaceIndexer.CACHE_FILE)).size() == 0);
+  }
+
+  @Test
+  void indexesCreatedFileInBackground() throws IOException {
+    var file = write("shapes.logo", "to square\nend");
+    indexer.filesChanged(List.of(new FileEvent(uri(file), FileChangeType.Created)));
+    await().until(() -> !index.procedureDeclarations("square", "main").isEmpty());
+  }
+
+  @Test
+  void removesDeletedFileInBackground() throws IOException {
+    var file = write("shapes.logo", "to square\nend");
+    indexer.indexFolder(workspace);
+    Files.delete(file);
+
+    indexer.filesChanged(List.of(new FileEvent(uri(file), FileChangeType.Deleted)));
+
+    await().until(() -> index.procedureDeclarations("square", "main").isEmpty());
+  }
+
+  @Test
+  void removesFileThatIsMissingWhenChangeIsProcessed() throws IOException {
+    var file = write("shapes.logo", "to square\nend");
+    indexer.indexFolder(workspace);
+    Files.delete(file);
+
+    indexer.filesChanged(List.of(new FileEvent(uri(file), FileChangeType.Changed)));
+
+    await().until(() -> index.procedureDeclarations("square", "main").isEmpty());
+  }
+
+  @Test
+  void appliesLastOfCoalescedChanges() throws IOException {
+    var file = write("shapes.logo", "to square\nend");
+    indexer.indexFolder(workspace);
+    var other = write("other.logo", "to circle\nend");
+
+    indexer.filesChanged(List.of(
+        new FileEvent(uri(file), FileChangeType.Changed),
+        new FileEvent(uri(file), FileChangeType.Deleted),
+        new FileEvent(uri(other), FileChangeType.Created)));
+
+    await().until(() -> !index.procedureDeclarations("circle", "main").isEmpty());
+    await().until(() -> index.procedureDeclarations("square", "main").isEmpty());
+  }
+
+  @Test
+  void changeSubmittedWhileFileIsIndexedWins() throws IOException {
+    var file = write("shapes.logo", "to square\nend");
+    var parser = spy(new Parser());
+    var parsing = new CountDownLatch(1);
+    var release = new CountDownLatch(1);
+    doAnswer(invocation -> {
+      if (parsing.getCount() > 0) {
+        parsing.countDown();
+        awaitUninterruptibly(release);
+      }
+      return invocation.callRealMethod();
+    }).when(parser).parseInBackground(anyString(), any());
+    var indexer = new WorkspaceIndexer(index, parser, new DocumentScheduler(2));
+
+    var indexed = indexer.indexFoldersInBackground(List.of(workspace));
+    awaitUninterruptibly(parsing);
+    Files.writeString(file, "to circle\nend");
+    indexer.filesChanged(List.of(new FileEvent(uri(file), FileChangeType.Changed)));
+    sleepUninterruptibly(WorkspaceIndexer.COALESCING_DELAY.multipliedBy(3));
+    release.countDown();
+    indexed.join();
+
+    await().until(() -> !index.procedureDeclarations("circle", "main").isEmpty());
+    assertThat(index.procedureDeclarations("square", "main")).isEmpty();
+  }
+
+  @Test
+  void ignoresChangesOfOtherFiles() throws IOException {
+    var file = write("shapes.txt", "to square\nend");
+    indexer.filesChanged(List.of(new FileEvent(uri(file), FileChangeType.Created)));
+    var marker = write("marker.logo", "to marker\nend");
+    indexer.filesChanged(List.of(new FileEvent(uri(marker), FileChangeType.Created)));
+
+    await().until(() -> !index.procedureDeclarations("marker", "main").isEmpty());
+    assertThat(index.procedureDeclarations("square", "main")).isEmpty();
+  }
+
+  private static String uri(Path file) {
+    return file.toUri().toString();
+  }
+
+  private Path write(String relativePath, String content) throws IOException {
+    var file = workspace.resolve(relativePath);
+    Files.createDirectories(file.getParent());
+    return Files.writeString(file, content);
+  }
+}
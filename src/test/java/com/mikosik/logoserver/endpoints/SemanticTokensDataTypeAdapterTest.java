@@ -0,0 +1,51 @@
+package com.mikosik.logoserver.endpoints;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.mikosik.logoserver.analyse.highlight.SemanticTokensData;
+import java.util.List;
+import org.eclipse.lsp4j.SemanticTokens;
+import org.eclipse.lsp4j.SemanticTokensEdit;
+import org.junit.jupiter.api.Test;
+
+public class SemanticTokensDataTypeAdapterTest {
+  private final Gson gson = gson();
+
+  @Test
+  void writesSemanticTokensData() {
+    var semanticTokens = new SemanticTokens("1", SemanticTokensData.of(0, 0, 7, 0, 0));
+
+    assertThat(gson.toJson(semanticTokens)).isEqualTo("{\"resultId\":\"1\",\"data\":[0,0,7,0,0]}");
+  }
+
+  @Test
+  void writesEmptySemanticTokensData() {
+    var semanticTokens = new SemanticTokens(SemanticTokensData.empty());
+
+    assertThat(gson.toJson(semanticTokens)).isEqualTo("{\"data\":[]}");
+  }
+
+  @Test
+  void writesSubListOfSemanticTokensData() {
+    var data = SemanticTokensData.of(0, 0, 7, 0, 0, 0, 8, 2, 2, 0).subList(5, 10);
+    var edit = new SemanticTokensEdit(5, 5, data);
+
+    assertThat(gson.toJson(edit))
+        .isEqualTo("{\"start\":5,\"deleteCount\":5,\"data\":[0,8,2,2,0]}");
+  }
+
+  @Test
+  void readsSemanticTokensData() {
+    var data = gson.fromJson("[0,8,2,2,0]", SemanticTokensData.class);
+
+    assertThat(data).isEqualTo(List.of(0, 8, 2, 2, 0));
+  }
+
+  private static Gson gson() {
+    var gsonBuilder = new GsonBuilder();
+    SemanticTokensDataTypeAdapter.register(gsonBuilder);
+    return gsonBuilder.create();
+  }
+}